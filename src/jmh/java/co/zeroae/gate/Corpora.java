@@ -0,0 +1,90 @@
+package co.zeroae.gate;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.amazonaws.xray.AWSXRay;
+import gate.Document;
+
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static com.github.stefanbirkner.systemlambda.SystemLambda.withEnvironmentVariable;
+
+/**
+ * Generated corpora for the benchmarks, and the ANNIE test application to annotate them.
+ */
+class Corpora {
+    private static final String[] people = {"Wanda Maximoff", "Tony Stark", "Carol Danvers", "Peter Parker"};
+    private static final String[] places = {"New York", "London", "Paris", "Tokyo"};
+    private static final String[] companies = {"Stark Industries", "Acme Corp.", "Oscorp Inc.", "Roxxon Energy"};
+
+    private static App app = null;
+
+    /**
+     * @return the App, running the ANNIE application in src/test/resources/annie.
+     */
+    static synchronized App app() throws Exception {
+        if (app == null)
+            // Every fork starts from an empty cache, the misses of one fork are not the hits of the next.
+            app = withEnvironmentVariable("GATE_APP_NAME", "annie")
+                    .and("CACHE_DIR_PREFIX", Files.createTempDirectory("lru").toString())
+                    .and("CACHE_KEY_SALT", UUID.randomUUID().toString())
+                    .execute(App::new);
+        return app;
+    }
+
+    /**
+     * @param sentences the number of sentences
+     * @param seed      the seed of the generator, the same seed generates the same text
+     * @return plain text, with people, places, organizations, dates and amounts for ANNIE to find.
+     */
+    static String text(int sentences, long seed) {
+        final Random random = new Random(seed);
+        final StringBuilder rv = new StringBuilder();
+        for (int i = 0; i < sentences; i++) {
+            rv.append(people[random.nextInt(people.length)]).append(" met the board of ")
+                    .append(companies[random.nextInt(companies.length)]).append(" in ")
+                    .append(places[random.nextInt(places.length)]).append(" on March ")
+                    .append(1 + random.nextInt(28)).append(", 2021, and paid $")
+                    .append(random.nextInt(100000)).append(" for ").append(random.nextInt(100)).append("% of it.");
+            rv.append(i % 5 == 4 ? "\n\n" : " ");
+        }
+        return rv.toString();
+    }
+
+    /**
+     * @param body the plain text body
+     * @return a request for the App, it asks for GateXML.
+     */
+    static APIGatewayProxyRequestEvent request(String body) {
+        final Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "text/plain");
+        headers.put("Accept", "application/gate+xml");
+        return new APIGatewayProxyRequestEvent()
+                .withPath("/annie")
+                .withHttpMethod("POST")
+                .withHeaders(headers)
+                .withBody(body)
+                .withIsBase64Encoded(false);
+    }
+
+    /**
+     * @param sentences the number of sentences
+     * @return a Document annotated by ANNIE, the caller owns it.
+     */
+    static Document annotated(int sentences) throws Exception {
+        AWSXRay.beginSegment("Corpora");
+        try {
+            final APIGatewayProxyResponseEvent response = app().handleExecute(request(text(sentences, sentences)), null);
+            if (response.getStatusCode() != 200)
+                throw new IllegalStateException(response.getBody());
+            return Utils.xmlToDocument(new StringReader(response.getBody()));
+        } finally {
+            AWSXRay.endSegment();
+        }
+    }
+}
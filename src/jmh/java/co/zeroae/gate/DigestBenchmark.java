@@ -0,0 +1,60 @@
+package co.zeroae.gate;
+
+import com.amazonaws.util.Base64;
+import gate.util.GateException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Ingesting a request body: decoding, decompressing and digesting it with RequestContent, in a single pass.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DigestBenchmark {
+    @Param({"10", "100", "1000"})
+    public int sentences;
+
+    private String text;
+    private String base64;
+    private String gzipBase64;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Corpora.app();
+        text = Corpora.text(sentences, sentences);
+        base64 = Base64.encodeAsString(text.getBytes(StandardCharsets.UTF_8));
+        final ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        gzipBase64 = Base64.encodeAsString(gzipped.toByteArray());
+    }
+
+    @Benchmark
+    public String ingestText() throws GateException {
+        final RequestContent content = RequestContent.ingest("text/plain", text, false, null, 0, "salt");
+        content.close();
+        return content.getDigest();
+    }
+
+    @Benchmark
+    public String ingestBase64() throws GateException {
+        final RequestContent content = RequestContent.ingest("application/fastinfoset", base64, true, null, 0, "salt");
+        content.close();
+        return content.getDigest();
+    }
+
+    @Benchmark
+    public String ingestGzip() throws GateException {
+        final RequestContent content = RequestContent.ingest(
+                "application/fastinfoset", gzipBase64, true, "gzip", 0, "salt");
+        content.close();
+        return content.getDigest();
+    }
+}
@@ -0,0 +1,35 @@
+package co.zeroae.gate;
+
+import gate.Document;
+import gate.Factory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Utils.xmlToDocument, the GateXML parser behind the cache and the XML requests.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DocumentBenchmark {
+    @Param({"10", "100", "1000"})
+    public int sentences;
+
+    private String xml;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final Document doc = Corpora.annotated(sentences);
+        xml = doc.toXml();
+        Factory.deleteResource(doc);
+    }
+
+    @Benchmark
+    public Document xmlToDocument() throws Exception {
+        final Document rv = Utils.xmlToDocument(new StringReader(xml));
+        Factory.deleteResource(rv);
+        return rv;
+    }
+}
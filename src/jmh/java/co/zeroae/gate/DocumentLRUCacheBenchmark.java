@@ -0,0 +1,83 @@
+package co.zeroae.gate;
+
+import com.amazonaws.xray.AWSXRay;
+import gate.Document;
+import gate.Factory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DocumentLRUCache.get and put, with every read served by the heap tier or by the disk tier, and every entry
+ * written with one codec. The entry size of each codec, and how many such entries fit in the 512MB of the default
+ * Lambda /tmp, are reported next to the scores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DocumentLRUCacheBenchmark {
+    @Param({"10", "100", "1000"})
+    public int sentences;
+
+    @Param({"heap", "disk"})
+    public String tier;
+
+    @Param({"none", "lz4", "deflate"})
+    public String codec;
+
+    private DocumentLRUCache cache;
+    private Document doc;
+    private long nonce = 0;
+    private long entryBytes;
+
+    /**
+     * Reports the entry size with the results, rather than in the middle of the benchmark output.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class EntrySize {
+        public long entryBytes;
+        public long entriesPer512MB;
+
+        @Setup(Level.Iteration)
+        public void setUp(DocumentLRUCacheBenchmark benchmark) {
+            entryBytes = benchmark.entryBytes;
+            entriesPer512MB = (512L << 20) / Math.max(1, entryBytes);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        doc = Corpora.annotated(sentences);
+        // A heap budget of zero forces every read through the disk tier.
+        cache = new DocumentLRUCache(Files.createTempDirectory("lru-bench").toString(), .5,
+                tier.equals("heap") ? Long.MAX_VALUE : 0, 30000, new CacheAdmission(1024, 2, Long.MAX_VALUE),
+                null, EntryCodec.Selector.always(EntryCodec.byName(codec)));
+        AWSXRay.getGlobalRecorder().beginDummySegment();
+        cache.put("hit", doc);
+        entryBytes = (Long) ((Map<?, ?>) cache.getStats().get("admission")).get("bytesWritten");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        AWSXRay.endSegment();
+        Factory.deleteResource(doc);
+    }
+
+    @Benchmark
+    public Document get(EntrySize entrySize) {
+        final Document rv = cache.get("hit");
+        if (rv == null)
+            throw new IllegalStateException("The cache lost its only entry.");
+        cache.release(rv);
+        return rv;
+    }
+
+    @Benchmark
+    public void put(EntrySize entrySize) {
+        cache.put("put-" + (++nonce % 64), doc);
+    }
+}
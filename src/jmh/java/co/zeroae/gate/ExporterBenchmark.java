@@ -0,0 +1,58 @@
+package co.zeroae.gate;
+
+import gate.Document;
+import gate.DocumentExporter;
+import gate.Factory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every exporter in Utils.exporters, including the AnnotationSetExporter and CompactJsonExporter variants.
+ * Compare the gc.alloc.rate.norm of the compact JSON variants with application/gate+json.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExporterBenchmark {
+    @Param({"10", "100", "1000"})
+    public int sentences;
+
+    @Param({
+            "application/gate+xml",
+            "application/gate+json",
+            "application/json",
+            "application/fastinfoset",
+            "application/gate+xml; includeText=no",
+            "application/fastinfoset; includeText=no",
+            "application/gate+json; includeText=no",
+            "application/gate+json; offsetsOnly=yes",
+            "application/vnd.zeroae.gate.columnar",
+    })
+    public String responseType;
+
+    private DocumentExporter exporter;
+    private Document doc;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        doc = Corpora.annotated(sentences);
+        exporter = Utils.exporters.get(responseType);
+        if (exporter == null)
+            throw new IllegalArgumentException("No exporter for " + responseType);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Factory.deleteResource(doc);
+    }
+
+    @Benchmark
+    public byte[] export() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exporter.export(doc, out, Factory.newFeatureMap());
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,58 @@
+package co.zeroae.gate;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.amazonaws.xray.AWSXRay;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * App.handleExecute end to end, on a cache miss and on a cache hit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HandlerBenchmark {
+    @Param({"10", "100", "1000"})
+    public int sentences;
+
+    private App app;
+    private String text;
+    private long nonce = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        app = Corpora.app();
+        text = Corpora.text(sentences, sentences);
+        // The dummy segment keeps the subsegments of every invocation from piling up.
+        AWSXRay.getGlobalRecorder().beginDummySegment();
+        app.handleExecute(Corpora.request(text), null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        AWSXRay.endSegment();
+    }
+
+    @Benchmark
+    public APIGatewayProxyResponseEvent executeMiss() {
+        // A different nextAnnotationId is a different cache key for the same text.
+        final APIGatewayProxyRequestEvent request = Corpora.request(text);
+        request.withQueryStringParameters(Collections.singletonMap(
+                "nextAnnotationId", String.valueOf(++nonce)));
+        return check(app.handleExecute(request, null), "MISS");
+    }
+
+    @Benchmark
+    public APIGatewayProxyResponseEvent executeHit() {
+        return check(app.handleExecute(Corpora.request(text), null), "HIT-RESPONSE");
+    }
+
+    private static APIGatewayProxyResponseEvent check(APIGatewayProxyResponseEvent response, String cache) {
+        if (response.getStatusCode() != 200 || !cache.equals(response.getHeaders().get("x-zae-gate-cache")))
+            throw new IllegalStateException(response.getStatusCode() + " " + response.getHeaders());
+        return response;
+    }
+}
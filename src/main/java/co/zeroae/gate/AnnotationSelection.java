@@ -0,0 +1,130 @@
+package co.zeroae.gate;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.FeatureMap;
+
+import java.util.*;
+
+/**
+ * A read-only view of the annotations an annotation selector picks from a Document.
+ * It is built from the AnnotationSet type indexes, the Document itself is never modified,
+ * so one Document can be exported with several selectors, by several requests at the same time.
+ * <p>
+ * Selectors are "SetName:Type", an empty SetName is the default annotation set. Without a selector the view
+ * holds every annotation set, and the default annotation set by type.
+ */
+class AnnotationSelection {
+    /**
+     * The export option exporters find the selection under.
+     */
+    static final String OPTION = "annotationSelection";
+
+    private final Document doc;
+    private final Map<String, Set<String>> typesBySet;
+
+    private AnnotationSelection(Document doc, Map<String, Set<String>> typesBySet) {
+        this.doc = doc;
+        this.typesBySet = typesBySet;
+    }
+
+    /**
+     * @param doc                the Document
+     * @param annotationSelector the "SetName:Type" selectors, or null for everything.
+     * @return the selection, it reads the Document as it is when the exporter runs.
+     */
+    static AnnotationSelection of(Document doc, List<String> annotationSelector) {
+        return new AnnotationSelection(doc, parse(annotationSelector));
+    }
+
+    /**
+     * @param annotationSelector the "SetName:Type" selectors, or null for everything.
+     * @return the selected types by annotation set name, "" for the default set, or null for everything.
+     */
+    static Map<String, Set<String>> parse(List<String> annotationSelector) {
+        if (annotationSelector == null)
+            return null;
+        final Map<String, Set<String>> rv = new LinkedHashMap<>();
+        for (String selector : annotationSelector) {
+            final int colon = selector.indexOf(':');
+            final String setName = colon < 0 ? "" : selector.substring(0, colon).trim();
+            final String type = selector.substring(colon + 1).trim();
+            rv.computeIfAbsent(setName, (key) -> new HashSet<>()).add(type);
+        }
+        return rv;
+    }
+
+    /**
+     * @param doc     the Document being exported
+     * @param options the export options
+     * @return the selection in the options, or one with every annotation.
+     */
+    static AnnotationSelection fromOptions(Document doc, FeatureMap options) {
+        final Object rv = options != null ? options.get(OPTION) : null;
+        return rv instanceof AnnotationSelection ? (AnnotationSelection) rv : of(doc, null);
+    }
+
+    /**
+     * Builds the lazy type indexes of every annotation set, so readers sharing the Document never race to do it.
+     *
+     * @param doc a Document about to be shared
+     */
+    static void prepare(Document doc) {
+        doc.getAnnotations().getAllTypes();
+        for (String name : doc.getAnnotationSetNames())
+            doc.getAnnotations(name).getAllTypes();
+    }
+
+    /**
+     * @return the selected annotations by annotation set name, the default set is under the null key.
+     */
+    Map<String, Collection<Annotation>> byAnnotationSet() {
+        final Map<String, Collection<Annotation>> rv = new LinkedHashMap<>();
+        if (typesBySet == null) {
+            rv.put(null, doc.getAnnotations());
+            for (String name : doc.getAnnotationSetNames())
+                rv.put(name, doc.getAnnotations(name));
+            return rv;
+        }
+        for (Map.Entry<String, Set<String>> entry : typesBySet.entrySet()) {
+            final AnnotationSet annotations = getAnnotationSet(entry.getKey());
+            if (annotations != null)
+                rv.put(entry.getKey().isEmpty() ? null : entry.getKey(), nonNull(annotations.get(entry.getValue())));
+        }
+        return rv;
+    }
+
+    /**
+     * @return the selected annotations by type, "SetName:Type" for the types outside the default set.
+     */
+    Map<String, Collection<Annotation>> byType() {
+        final Map<String, Collection<Annotation>> rv = new LinkedHashMap<>();
+        final Map<String, Set<String>> selected = typesBySet != null ? typesBySet :
+                Collections.singletonMap("", doc.getAnnotations().getAllTypes());
+        for (Map.Entry<String, Set<String>> entry : selected.entrySet()) {
+            final AnnotationSet annotations = getAnnotationSet(entry.getKey());
+            if (annotations == null)
+                continue;
+            for (String type : entry.getValue()) {
+                final Collection<Annotation> typed = nonNull(annotations.get(type));
+                if (!typed.isEmpty())
+                    rv.put(entry.getKey().isEmpty() ? type : entry.getKey() + ":" + type, typed);
+            }
+        }
+        return rv;
+    }
+
+    /**
+     * Document.getAnnotations(name) creates the set when it is missing, we must not.
+     */
+    private AnnotationSet getAnnotationSet(String name) {
+        if (name.isEmpty())
+            return doc.getAnnotations();
+        return doc.getAnnotationSetNames().contains(name) ? doc.getAnnotations(name) : null;
+    }
+
+    private static Collection<Annotation> nonNull(AnnotationSet annotations) {
+        return annotations != null ? annotations : Collections.emptySet();
+    }
+}
@@ -1,7 +1,7 @@
 package co.zeroae.gate;
 
 import com.sun.xml.fastinfoset.stax.StAXDocumentSerializer;
-import gate.AnnotationSet;
+import gate.Annotation;
 import gate.Document;
 import gate.DocumentExporter;
 import gate.FeatureMap;
@@ -12,8 +12,8 @@ import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Set;
-import java.util.function.Supplier;
+import java.util.Collection;
+import java.util.Map;
 
 import static gate.corpora.DocumentStaxUtils.GATE_XML_VERSION;
 
@@ -31,30 +31,19 @@ abstract class AnnotationSetExporter extends DocumentExporter {
     }
 
     protected void export(Document doc, XMLStreamWriter xsw, FeatureMap options) throws XMLStreamException {
-        final AnnotationSet annotations = filterAnnotationSet(doc.getAnnotations(), options);
+        final AnnotationSelection selection = AnnotationSelection.fromOptions(doc, options);
         final String namespaceURI = "";
         xsw.writeStartDocument("1.0");
         xsw.setDefaultNamespace(namespaceURI);
         xsw.writeStartElement(namespaceURI, "GateDocument");
         xsw.writeAttribute("version", GATE_XML_VERSION);
-        DocumentStaxUtils.writeAnnotationSet(annotations, xsw, namespaceURI);
+        for (Map.Entry<String, Collection<Annotation>> annotations : selection.byAnnotationSet().entrySet())
+            DocumentStaxUtils.writeAnnotationSet(annotations.getValue(), annotations.getKey(), xsw, namespaceURI);
         xsw.writeEndDocument();
         xsw.flush();
         xsw.close();
     }
 
-    @SuppressWarnings("unchecked")
-    private AnnotationSet filterAnnotationSet(AnnotationSet annotations, FeatureMap options) {
-        final Set<String> annotationTypes = ((Supplier<Set<String>>) () -> {
-            Object types = options.get("annotationTypes");
-            if (types instanceof Set) {
-                return (Set<String>) types;
-            } else
-                return null;
-        }).get();
-        return annotationTypes != null ? annotations.get(annotationTypes) : annotations;
-    }
-
     static class GATEFastInfoset extends AnnotationSetExporter {
         /**
          * Creates a new exporter instance that excludes the original text.
@@ -12,18 +12,18 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import gate.*;
 import gate.corpora.DocumentImpl;
 import gate.util.GateException;
-import gate.util.persistence.PersistenceManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLStreamHandler;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.function.Supplier;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * This class implements a GATE application using AWS Lambda.
@@ -31,29 +31,71 @@ import java.util.function.Supplier;
  * For every lambda invocation, it runs the application and outputs the result in GateXML format.
  */
 public class App implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
-    static {
-        AWSXRay.createSegment("Gate Init", () -> {
-            try {
-                Gate.init();
-                Utils.loadDocumentFormats();
-            } catch (GateException e) {
-                throw new RuntimeException(e);
-            }
-        });
-    }
+    private static final long INIT_START = System.nanoTime();
 
     private static final String GATE_APP_NAME = System.getenv("GATE_APP_NAME");
     private static final String CACHE_DIR = System.getenv().getOrDefault(
             "CACHE_DIR_PREFIX", "/tmp/lru/" + GATE_APP_NAME);
     private static final double CACHE_DIR_USAGE = .9;
-    private static final String DIGEST_SALT = UUID.randomUUID().toString();
+    private static final double CACHE_HEAP_USAGE = Double.parseDouble(System.getenv().getOrDefault(
+            "CACHE_HEAP_USAGE", ".1"));
+    private static final long CACHE_COALESCE_TIMEOUT_MS = Long.parseLong(System.getenv().getOrDefault(
+            "CACHE_COALESCE_TIMEOUT_MS", "30000"));
+    private static final int CACHE_ADMISSION_MIN_FREQUENCY = Integer.parseInt(System.getenv().getOrDefault(
+            "CACHE_ADMISSION_MIN_FREQUENCY", "2"));
+    private static final long CACHE_ADMISSION_EXPENSIVE_MS = Long.parseLong(System.getenv().getOrDefault(
+            "CACHE_ADMISSION_EXPENSIVE_MS", "1000"));
+    private static final String CACHE_REMOTE_URL = System.getenv("CACHE_REMOTE_URL");
     private static final Logger logger = LoggerFactory.getLogger(App.class);
-    private static final CorpusController application = AWSXRay.createSegment(
-            "Gate Load", App::loadApplication);
+    private static final CompletableFuture<DocumentLRUCache> cacheInit = Startup.initCache(
+            CACHE_DIR, CACHE_DIR_USAGE, (long) (Runtime.getRuntime().maxMemory() * CACHE_HEAP_USAGE),
+            CACHE_COALESCE_TIMEOUT_MS, new CacheAdmission(
+                    1 << 16, CACHE_ADMISSION_MIN_FREQUENCY, CACHE_ADMISSION_EXPENSIVE_MS * 1000000),
+            CACHE_REMOTE_URL == null ? null : new RespCacheStore(CACHE_REMOTE_URL, "zae-gate:" + GATE_APP_NAME + ":",
+                    Integer.parseInt(System.getenv().getOrDefault("CACHE_REMOTE_TIMEOUT_MS", "50")),
+                    Integer.parseInt(System.getenv().getOrDefault("CACHE_REMOTE_TTL_SECONDS", "604800")),
+                    Long.parseLong(System.getenv().getOrDefault("CACHE_REMOTE_COOLDOWN_MS", "30000"))),
+            new EntryCodec.Selector(
+                    Integer.parseInt(System.getenv().getOrDefault("CACHE_CODEC_LZ4_MIN_BYTES", "4096")),
+                    Integer.parseInt(System.getenv().getOrDefault("CACHE_CODEC_DEFLATE_MIN_BYTES", "1048576"))));
+    private static final CorpusController application = Startup.join(Startup.loadApplication(GATE_APP_NAME));
+    private static final ControllerPool pool = new ControllerPool(application, ControllerPool.defaultCapacity());
+    private static final boolean PIPELINE_PRUNING = Boolean.parseBoolean(System.getenv().getOrDefault(
+            "GATE_APP_PIPELINE_PRUNING", "true"));
+    private static final PipelinePruner pruner = new PipelinePruner(pool, syntheticContent(0));
+    private static final PipelineMetrics pipelineMetrics = new PipelineMetrics(GATE_APP_NAME,
+            System.getenv().getOrDefault("GATE_APP_METRICS_NAMESPACE", "ZeroAE/GATE"),
+            Boolean.parseBoolean(System.getenv().getOrDefault("GATE_APP_PR_METRICS", "false")),
+            Boolean.parseBoolean(System.getenv().getOrDefault("GATE_APP_PR_TRACING", "false")));
+    private static final String CHUNK_THRESHOLD = System.getenv().getOrDefault("GATE_APP_CHUNK_THRESHOLD", "0");
+    private static final String CHUNK_SEAM_TYPES = System.getenv().getOrDefault(
+            "GATE_APP_CHUNK_SEAM_TYPES", "Sentence");
+    private static final DocumentChunker chunker = new DocumentChunker(pool, pipelineMetrics,
+            Integer.parseInt(CHUNK_THRESHOLD), new HashSet<>(Arrays.asList(CHUNK_SEAM_TYPES.split("\\s*,\\s*"))));
+    /**
+     * Every process running the same application, with the same settings, computes the same cache keys.
+     * CACHE_KEY_SALT invalidates them all at once.
+     */
+    private static final String DIGEST_SALT = Startup.join(Startup.fingerprintApplication(
+            GATE_APP_NAME, CHUNK_THRESHOLD, CHUNK_SEAM_TYPES, System.getenv("CACHE_KEY_SALT")));
     private static final AppMetadata metadata = loadMetadata();
-    private static final DocumentLRUCache cache = AWSXRay.createSegment("Cache Init",
-            () -> new DocumentLRUCache(App.CACHE_DIR, App.CACHE_DIR_USAGE));
-    private static final URLStreamHandler mmapHandler = new Handler();
+    private static final DocumentLRUCache cache = Startup.join(cacheInit);
+    private static final double CACHE_RESPONSE_HEAP_USAGE = Double.parseDouble(System.getenv().getOrDefault(
+            "CACHE_RESPONSE_HEAP_USAGE", ".05"));
+    private static final ResponseCache responseCache = new ResponseCache(
+            (long) (Runtime.getRuntime().maxMemory() * CACHE_RESPONSE_HEAP_USAGE));
+    private static final int PRIME_DOCUMENTS = Integer.parseInt(System.getenv().getOrDefault(
+            "GATE_APP_PRIME_DOCUMENTS", "0"));
+    private static final int RESPONSE_COMPRESSION_MIN_BYTES = Integer.parseInt(System.getenv().getOrDefault(
+            "GATE_RESPONSE_COMPRESSION_MIN_BYTES", "1024"));
+
+    static {
+        if (PRIME_DOCUMENTS > 0)
+            AWSXRay.createSegment("Gate Prime", () -> prime(PRIME_DOCUMENTS));
+        logger.info("Initialized in " + (System.nanoTime() - INIT_START) / 1000000 + " ms, " +
+                ManagementFactory.getRuntimeMXBean().getUptime() + " ms since JVM start, " +
+                ManagementFactory.getClassLoadingMXBean().getLoadedClassCount() + " classes loaded.");
+    }
 
     private static AppMetadata loadMetadata() {
         final AppMetadata rv = new AppMetadata();
@@ -66,25 +108,61 @@ public class App implements RequestHandler<APIGatewayProxyRequestEvent, APIGatew
         return rv;
     }
 
-    private static CorpusController loadApplication() {
+    /**
+     * Runs synthetic documents through every controller in the pool, and exports them with every exporter.
+     * Nothing is cached, the point is to load the classes and warm up the JIT before the first request,
+     * or before the runtime snapshot is taken.
+     *
+     * @param documents the number of documents per controller
+     */
+    private static void prime(int documents) {
+        final List<CorpusController> controllers = new ArrayList<>();
         try {
-            final String gappResourcePah = GATE_APP_NAME + "/application.xgapp";
-            final URL gappUrl = App.class.getClassLoader().getResource(gappResourcePah);
-            final File gappFile = new File(Objects.requireNonNull(gappUrl).getFile());
-            final CorpusController rv =
-                    (CorpusController) PersistenceManager.loadObjectFromFile(gappFile);
-            final Corpus corpus = Factory.newCorpus("Lambda Corpus");
-            rv.setCorpus(corpus);
-            return rv;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            while (controllers.size() < pool.getCapacity())
+                controllers.add(pool.checkout());
+            final Set<DocumentExporter> exporters = new HashSet<>(Utils.exporters.values());
+            for (CorpusController controller : controllers) {
+                for (int i = 0; i < documents; i++) {
+                    final Document doc = Factory.newDocument(syntheticContent(i));
+                    try {
+                        controller.getCorpus().add(doc);
+                        controller.execute();
+                        controller.getCorpus().clear();
+                        for (DocumentExporter exporter : exporters)
+                            exporter.export(doc, new ByteArrayOutputStream(), Factory.newFeatureMap());
+                    } finally {
+                        Factory.deleteResource(doc);
+                    }
+                }
+            }
+            logger.info("Primed " + controllers.size() + " controllers with " + documents + " documents each.");
+        } catch (GateException | IOException e) {
+            logger.warn("Priming failed, the first requests will run cold.", e);
+        } finally {
+            controllers.forEach(pool::release);
+        }
+    }
+
+    private static String syntheticContent(int seed) {
+        final String[] people = {"Wanda Maximoff", "Tony Stark", "Carol Danvers", "Peter Parker"};
+        final String[] places = {"New York", "London", "Paris", "Tokyo"};
+        final String[] companies = {"Stark Industries", "Acme Corp.", "Oscorp Inc.", "Roxxon Energy"};
+        final StringBuilder rv = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            final int j = (seed + i) % 4;
+            rv.append(people[j]).append(" met the board of ").append(companies[(j + 1) % 4])
+                    .append(" in ").append(places[(j + 2) % 4]).append(" on March ").append(j + 10)
+                    .append(", 2021, and paid $").append((seed + 1) * 1000 + i).append(" for 12% of it.\n\n");
         }
+        return rv.toString();
     }
 
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent input, final Context context) {
         final String path = input.getPath();
         if (path.matches("^/([^/]*)/?$"))
             return handleExecute(input, context);
+        else if (path.matches("^/([^/]*)/batch/?$"))
+            return handleBatch(input, context);
         else if (path.matches("^/([^/]*)/metadata/?$"))
             return handleMetadata(input, context);
         else
@@ -106,8 +184,77 @@ public class App implements RequestHandler<APIGatewayProxyRequestEvent, APIGatew
     }
 
     public APIGatewayProxyResponseEvent handleExecute(APIGatewayProxyRequestEvent input, final Context context) {
-        final APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent()
-                .withHeaders(new HashMap<>());
+        final Execution execution = prepareExecute(input);
+        final APIGatewayProxyResponseEvent response = execution.response;
+        if (execution.doc == null)
+            return response;
+
+        AWSXRay.beginSubsegment("Gate Export");
+        AWSXRay.getCurrentSubsegment().putMetadata("Content-Type", response.getHeaders().get("Content-Type"));
+        try {
+            export(execution.exporter, execution.doc, execution.annotationSelector, execution.contentEncoding,
+                    response);
+            responseCache.put(execution.responseKey, ResponseCache.Entry.of(response));
+            return response.withStatusCode(200);
+        } catch (IOException e) {
+            return errorResponse(response, 406, e);
+        } finally {
+            cache.release(execution.doc);
+            AWSXRay.endSubsegment();
+        }
+    }
+
+    /**
+     * Writes the proxy response of an execute request to out, with the exported Document streamed into its body.
+     * Streamed responses are not kept in the response cache, that would mean holding them in memory after all.
+     *
+     * @param input the execute request
+     * @param out   the Lambda output stream
+     * @throws IOException if the response can not be written, it may be incomplete.
+     */
+    void streamExecute(APIGatewayProxyRequestEvent input, OutputStream out) throws IOException {
+        final Execution execution = prepareExecute(input);
+        final APIGatewayProxyResponseEvent response = execution.response;
+        if (execution.doc == null) {
+            ProxyResponseWriter.write(out, response);
+            return;
+        }
+
+        AWSXRay.beginSubsegment("Gate Export");
+        AWSXRay.getCurrentSubsegment().putMetadata("Content-Type", response.getHeaders().get("Content-Type"));
+        try {
+            response.withStatusCode(200).withIsBase64Encoded(isBinary(execution.exporter));
+            ProxyResponseWriter.stream(out, response, execution.contentEncoding, RESPONSE_COMPRESSION_MIN_BYTES,
+                    (body) -> export(execution.exporter, execution.doc, execution.annotationSelector, body));
+        } catch (IOException e) {
+            AWSXRay.getCurrentSubsegment().addException(e);
+            throw e;
+        } finally {
+            cache.release(execution.doc);
+            AWSXRay.endSubsegment();
+        }
+    }
+
+    /**
+     * The executed Document of a request, and what it takes to export it.
+     * When there is nothing left to export, doc is null and the response is complete.
+     */
+    private static class Execution {
+        final APIGatewayProxyResponseEvent response;
+        Document doc = null;
+        DocumentExporter exporter = null;
+        List<String> annotationSelector = null;
+        String contentEncoding = null;
+        String responseKey = null;
+
+        Execution(APIGatewayProxyResponseEvent response) {
+            this.response = response;
+        }
+    }
+
+    private Execution prepareExecute(APIGatewayProxyRequestEvent input) {
+        final Execution rv = new Execution(new APIGatewayProxyResponseEvent().withHeaders(new HashMap<>()));
+        final APIGatewayProxyResponseEvent response = rv.response;
         final Map<String, String> headers = input.getHeaders();
         final Map<String, String> queryStringParams = Optional.ofNullable(
                 input.getQueryStringParameters()).orElse(new HashMap<>());
@@ -116,115 +263,403 @@ public class App implements RequestHandler<APIGatewayProxyRequestEvent, APIGatew
         try {
             final String responseType = Utils.ensureValidResponseType(headers.getOrDefault(
                     "Accept", "application/json"));
-            final DocumentExporter exporter = Utils.exporters.get(responseType);
+            rv.exporter = Utils.exporters.get(responseType);
             response.getHeaders().put("Content-Type", responseType.split(";")[0].trim());
+            rv.contentEncoding = Utils.negotiateContentEncoding(headers.get("Accept-Encoding"));
+            response.getHeaders().put("Vary", "Accept-Encoding");
 
-            final FeatureMap featureMap = Factory.newFeatureMap();
-            final Integer nextAnnotationId = Integer.parseInt(queryStringParams.getOrDefault(
+            final int nextAnnotationId = Integer.parseInt(queryStringParams.getOrDefault(
                     "nextAnnotationId", "0"));
             final String contentType = Utils.ensureValidRequestContentType(headers.getOrDefault(
                     "Content-Type", "text/plain"));
-            final String contentDigest = AWSXRay.createSubsegment("Message Digest", () -> {
-                String rv = Utils.computeMessageDigest(contentType + input.getBody() + nextAnnotationId + DIGEST_SALT);
-                AWSXRay.getCurrentSubsegment().putMetadata("SHA256", rv);
-                return rv;
-            });
-            featureMap.put("nextAnnotationId", nextAnnotationId);
-            featureMapPutContent(featureMap, contentType, contentDigest, input.getBody(), input.getIsBase64Encoded());
-
-            response.getHeaders().put("x-zae-gate-cache", "HIT");
-            final Document doc = cache.computeIfNull(contentDigest, () -> {
-                response.getHeaders().put("x-zae-gate-cache", "MISS");
-                return execute(featureMap);
-            });
+            final String requestEncoding = Utils.ensureValidContentEncoding(headers.get("Content-Encoding"));
+            final RequestContent content;
+            AWSXRay.beginSubsegment("Message Digest");
+            try {
+                content = RequestContent.ingest(contentType, input.getBody(),
+                        Boolean.TRUE.equals(input.getIsBase64Encoded()), requestEncoding, nextAnnotationId,
+                        DIGEST_SALT);
+                AWSXRay.getCurrentSubsegment().putMetadata("SHA256", content.getDigest());
+            } finally {
+                AWSXRay.endSubsegment();
+            }
+            final String contentDigest = content.getDigest();
+            rv.annotationSelector = getAnnotationSelector(queryStringParams, mQueryStringParams);
 
-            AWSXRay.beginSubsegment("Gate Export");
-            AWSXRay.getCurrentSubsegment().putMetadata("Content-Type", response.getHeaders().get("Content-Type"));
-            final List<String> annotationSelector = ((Supplier<List<String>>) () -> {
-                String singleValued = queryStringParams.get("annotations");
-                if (singleValued == null)
-                    return mQueryStringParams.get("annotations");
-                return Arrays.asList(singleValued.split("\\s*,\\s*"));
-            }).get();
+            // A response level hit skips GATE altogether.
+            rv.responseKey = ResponseCache.key(
+                    contentDigest, responseType, rv.annotationSelector, rv.contentEncoding);
+            final ResponseCache.Entry cachedResponse = responseCache.get(rv.responseKey);
+            if (cachedResponse != null) {
+                content.close();
+                response.getHeaders().put("x-zae-gate-cache", "HIT-RESPONSE");
+                cachedResponse.applyTo(response).withStatusCode(200);
+                return rv;
+            }
 
             try {
-                return export(exporter, doc, annotationSelector, response).withStatusCode(200);
+                final FeatureMap featureMap = Factory.newFeatureMap();
+                featureMap.put("nextAnnotationId", nextAnnotationId);
+                content.putContent(featureMap, contentType);
+
+                response.getHeaders().put("x-zae-gate-cache", "HIT");
+                final PipelinePruner.Plan plan = plan(rv.annotationSelector);
+                // A Document from the whole pipeline has every annotation a pruned one would.
+                rv.doc = plan.isFull() ? null : cache.get(contentDigest);
+                if (rv.doc == null)
+                    rv.doc = cache.computeIfNull(plan.cacheKey(contentDigest), () -> {
+                        response.getHeaders().put("x-zae-gate-cache", "MISS");
+                        return execute(featureMap, plan);
+                    });
             } finally {
-                Factory.deleteResource(doc);
-                AWSXRay.endSubsegment();
+                content.close();
             }
+            return rv;
+        } catch (RequestContent.TooLargeException e) {
+            errorResponse(response, 413, e);
+            return rv;
         } catch (GateException e) {
-            logger.error(e.getMessage(), e);
-            AWSXRay.getCurrentSubsegmentOptional().ifPresent((segment -> segment.addException(e)));
-            response.getHeaders().put("Content-Type", "application/json");
-            return response.withStatusCode(400).withBody(Utils.asJson(
-                    new HashMap<String, Object>() {{
-                        put("message", e.getMessage());
-                    }}
-            ));
+            errorResponse(response, 400, e);
+            return rv;
         } catch (IOException e) {
-            logger.error(e.getMessage(), e);
-            AWSXRay.getCurrentSubsegmentOptional().ifPresent((segment -> segment.addException(e)));
-            response.getHeaders().put("Content-Type", "application/json");
-            return response.withStatusCode(406).withBody(Utils.asJson(
-                    new HashMap<String, Object>() {{
-                        put("message", e.getMessage());
-                    }}
-            ));
+            errorResponse(response, 406, e);
+            return rv;
+        }
+    }
+
+    /**
+     * Runs a batch of documents through a single controller pass.
+     * The body is a JSON array, or NDJSON, of {@link BatchDocument}s. Identical documents are executed once,
+     * and every document comes back as one result with its own statusCode, headers and body.
+     */
+    public APIGatewayProxyResponseEvent handleBatch(APIGatewayProxyRequestEvent input, final Context context) {
+        final APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent()
+                .withHeaders(new HashMap<>());
+        final Map<String, String> headers = input.getHeaders();
+        final Map<String, String> queryStringParams = Optional.ofNullable(
+                input.getQueryStringParameters()).orElse(new HashMap<>());
+        final Map<String, List<String>> mQueryStringParams = Optional.ofNullable(
+                input.getMultiValueQueryStringParameters()).orElse(new HashMap<>());
+        final boolean isNDJson = headers.getOrDefault("Content-Type", "application/json")
+                .startsWith("application/x-ndjson");
+        final List<BatchDocument> batch;
+        final String responseType;
+        try {
+            responseType = Utils.ensureValidResponseType(headers.getOrDefault("Accept", "application/json"));
+            batch = BatchDocument.readAll(Boolean.TRUE.equals(input.getIsBase64Encoded()) ?
+                    new String(Base64.decode(input.getBody()), StandardCharsets.UTF_8) :
+                    input.getBody());
+        } catch (GateException | IOException e) {
+            return errorResponse(response, 400, e);
+        }
+        final List<String> annotationSelector = getAnnotationSelector(queryStringParams, mQueryStringParams);
+
+        final List<Map<String, Object>> results;
+        try {
+            results = executeBatch(batch, responseType, annotationSelector);
+        } catch (IOException e) {
+            return errorResponse(response, 406, e);
+        }
+
+        try {
+            if (isNDJson) {
+                final StringBuilder body = new StringBuilder();
+                for (Map<String, Object> result : results)
+                    body.append(Utils.objectMapper.writeValueAsString(result)).append('\n');
+                response.getHeaders().put("Content-Type", "application/x-ndjson");
+                return response.withStatusCode(200).withBody(body.toString());
+            } else {
+                response.getHeaders().put("Content-Type", "application/json");
+                return response.withStatusCode(200).withBody(Utils.objectMapper.writeValueAsString(results));
+            }
+        } catch (JsonProcessingException e) {
+            // This is really bad... let it go through
+            throw new RuntimeException(e);
         }
     }
 
-    private void featureMapPutContent(
-            FeatureMap featureMap,
-            String mimeType,
-            String contentDigest,
-            String content,
-            boolean isBase64Encoded
-    ) throws MalformedURLException {
-        featureMap.put(Document.DOCUMENT_MIME_TYPE_PARAMETER_NAME, mimeType);
-        if (!isBase64Encoded)
-            featureMap.put(Document.DOCUMENT_STRING_CONTENT_PARAMETER_NAME, content);
-        else {
-            // GATE FastInfosetFormat can not handle binary in the string content.
-            Handler.paths.put(contentDigest, Base64.decode(content));
-            featureMap.put(
-                    Document.DOCUMENT_URL_PARAMETER_NAME,
-                    new URL("mmap",
-                            mimeType != null ? Base64.encodeAsString(mimeType.getBytes()) : null,
-                            64,
-                            contentDigest,
-                            mmapHandler));
+    /**
+     * Runs a batch of documents through the cache and, for the misses, a single controller pass.
+     *
+     * @param batch              the documents
+     * @param responseType       a valid response type, see {@link Utils#ensureValidResponseType(String)}
+     * @param annotationSelector the List of AnnotationTypes to return
+     * @return one result per document, with the id, statusCode and either the headers and body or a message.
+     * @throws IOException if a document fails to export.
+     */
+    List<Map<String, Object>> executeBatch(
+            List<BatchDocument> batch,
+            String responseType,
+            List<String> annotationSelector
+    ) throws IOException {
+        final DocumentExporter exporter = Utils.exporters.get(responseType);
+
+        // Compute every digest first, identical documents share a single FeatureMap.
+        final List<Map<String, Object>> results = new ArrayList<>(batch.size());
+        final List<String> digests = new ArrayList<>(batch.size());
+        final Map<String, FeatureMap> uniqueFeatureMaps = new LinkedHashMap<>();
+        final List<RequestContent> contents = new ArrayList<>();
+        AWSXRay.beginSubsegment("Message Digest");
+        try {
+            for (BatchDocument batchDocument : batch) {
+                final Map<String, Object> result = new LinkedHashMap<>();
+                result.put("id", batchDocument.id);
+                results.add(result);
+                try {
+                    final String contentType = Utils.ensureValidRequestContentType(
+                            Optional.ofNullable(batchDocument.contentType).orElse("text/plain"));
+                    final int nextAnnotationId = Optional.ofNullable(batchDocument.nextAnnotationId).orElse(0);
+                    final RequestContent content = RequestContent.ingest(contentType, batchDocument.content,
+                            batchDocument.isBase64Encoded, null, nextAnnotationId, DIGEST_SALT);
+                    contents.add(content);
+                    if (!uniqueFeatureMaps.containsKey(content.getDigest())) {
+                        final FeatureMap featureMap = Factory.newFeatureMap();
+                        featureMap.put("nextAnnotationId", nextAnnotationId);
+                        content.putContent(featureMap, contentType);
+                        uniqueFeatureMaps.put(content.getDigest(), featureMap);
+                    }
+                    digests.add(content.getDigest());
+                } catch (GateException | MalformedURLException e) {
+                    digests.add(null);
+                    result.put("statusCode", e instanceof RequestContent.TooLargeException ? 413 : 400);
+                    result.put("message", e.getMessage());
+                }
+            }
+            AWSXRay.getCurrentSubsegment().putMetadata("Unique Documents", uniqueFeatureMaps.size());
+        } finally {
+            AWSXRay.endSubsegment();
         }
+
+        // Serve what we can from the caches, and run everything else in one pass.
+        final PipelinePruner.Plan plan = plan(annotationSelector);
+        final Map<String, ResponseCache.Entry> responses = new HashMap<>();
+        final Map<String, Document> docs = new HashMap<>();
+        final Map<String, String> cacheStatus = new HashMap<>();
+        final Map<String, String> errors = new HashMap<>();
+        final Map<String, String> invalid = new HashMap<>();
+        try {
+            final List<String> missing = new ArrayList<>();
+            for (String contentDigest : uniqueFeatureMaps.keySet()) {
+                final ResponseCache.Entry cachedResponse = responseCache.get(
+                        ResponseCache.key(contentDigest, responseType, annotationSelector));
+                if (cachedResponse != null) {
+                    responses.put(contentDigest, cachedResponse);
+                    cacheStatus.put(contentDigest, "HIT-RESPONSE");
+                    continue;
+                }
+                Document doc = plan.isFull() ? null : cache.get(contentDigest);
+                if (doc == null)
+                    doc = cache.get(plan.cacheKey(contentDigest));
+                if (doc != null) {
+                    docs.put(contentDigest, doc);
+                    cacheStatus.put(contentDigest, "HIT");
+                } else
+                    missing.add(contentDigest);
+            }
+            if (!missing.isEmpty()) {
+                try {
+                    final List<FeatureMap> featureMaps = new ArrayList<>(missing.size());
+                    for (String contentDigest : missing)
+                        featureMaps.add(uniqueFeatureMaps.get(contentDigest));
+                    final long start = System.nanoTime();
+                    final Map<Integer, GateException> invalidDocuments = new HashMap<>();
+                    final List<Document> executed = execute(featureMaps, plan, invalidDocuments);
+                    // One pass ran them all, so each one is charged its share of it.
+                    final long cost = (System.nanoTime() - start) /
+                            Math.max(1, missing.size() - invalidDocuments.size());
+                    for (int i = 0; i < missing.size(); i++) {
+                        if (executed.get(i) == null) {
+                            invalid.put(missing.get(i), invalidDocuments.get(i).getMessage());
+                            continue;
+                        }
+                        cache.put(plan.cacheKey(missing.get(i)), executed.get(i), cost);
+                        docs.put(missing.get(i), executed.get(i));
+                        cacheStatus.put(missing.get(i), "MISS");
+                    }
+                } catch (GateException e) {
+                    logger.error(e.getMessage(), e);
+                    for (String contentDigest : missing)
+                        errors.put(contentDigest, e.getMessage());
+                }
+            }
+            contents.forEach(RequestContent::close);
+            contents.clear();
+
+            AWSXRay.beginSubsegment("Gate Export");
+            AWSXRay.getCurrentSubsegment().putMetadata("Content-Type", responseType);
+            try {
+                for (int i = 0; i < results.size(); i++) {
+                    final String contentDigest = digests.get(i);
+                    final Map<String, Object> result = results.get(i);
+                    if (contentDigest == null)
+                        continue;
+                    if (errors.containsKey(contentDigest)) {
+                        result.put("statusCode", 500);
+                        result.put("message", errors.get(contentDigest));
+                        continue;
+                    }
+                    if (invalid.containsKey(contentDigest)) {
+                        result.put("statusCode", 400);
+                        result.put("message", invalid.get(contentDigest));
+                        continue;
+                    }
+                    final APIGatewayProxyResponseEvent docResponse = new APIGatewayProxyResponseEvent()
+                            .withHeaders(new HashMap<>());
+                    docResponse.getHeaders().put("Content-Type", responseType.split(";")[0].trim());
+                    if (!responses.containsKey(contentDigest)) {
+                        export(exporter, docs.get(contentDigest), annotationSelector, null, docResponse);
+                        responses.put(contentDigest, ResponseCache.Entry.of(docResponse));
+                        responseCache.put(ResponseCache.key(contentDigest, responseType, annotationSelector),
+                                responses.get(contentDigest));
+                    } else
+                        responses.get(contentDigest).applyTo(docResponse);
+                    docResponse.getHeaders().put("x-zae-gate-cache", cacheStatus.get(contentDigest));
+                    result.put("statusCode", 200);
+                    result.put("headers", docResponse.getHeaders());
+                    result.put("isBase64Encoded", Boolean.TRUE.equals(docResponse.getIsBase64Encoded()));
+                    result.put("body", docResponse.getBody());
+                }
+            } finally {
+                AWSXRay.endSubsegment();
+            }
+        } finally {
+            contents.forEach(RequestContent::close);
+            docs.values().forEach(cache::release);
+        }
+        return results;
+    }
+
+    private static APIGatewayProxyResponseEvent errorResponse(
+            APIGatewayProxyResponseEvent response,
+            int statusCode,
+            Exception e
+    ) {
+        logger.error(e.getMessage(), e);
+        AWSXRay.getCurrentSubsegmentOptional().ifPresent((segment -> segment.addException(e)));
+        response.getHeaders().put("Content-Type", "application/json");
+        return response.withStatusCode(statusCode).withBody(Utils.asJson(
+                new HashMap<String, Object>() {{
+                    put("message", e.getMessage());
+                }}
+        ));
+    }
+
+    private static List<String> getAnnotationSelector(
+            Map<String, String> queryStringParams,
+            Map<String, List<String>> mQueryStringParams
+    ) {
+        final String singleValued = queryStringParams.get("annotations");
+        if (singleValued == null)
+            return ResponseCache.normalize(mQueryStringParams.get("annotations"));
+        return ResponseCache.normalize(Arrays.asList(singleValued.split("\\s*,\\s*")));
+    }
+
+    /**
+     * @param annotationSelector a normalized annotation selector
+     * @return the PRs to run for the selector, all of them unless GATE_APP_PIPELINE_PRUNING is enabled.
+     */
+    private static PipelinePruner.Plan plan(List<String> annotationSelector) {
+        return PIPELINE_PRUNING ? pruner.plan(annotationSelector) : PipelinePruner.Plan.FULL;
+    }
+
+    private Document execute(FeatureMap docFeatureMap, PipelinePruner.Plan plan) throws GateException {
+        final Map<Integer, GateException> invalid = new HashMap<>();
+        final Document rv = execute(Collections.singletonList(docFeatureMap), plan, invalid).get(0);
+        if (rv == null)
+            throw invalid.get(0);
+        return rv;
     }
 
-    private Document execute(FeatureMap docFeatureMap) throws GateException {
+    /**
+     * Creates one Document per FeatureMap and runs all of them through a single controller pass.
+     * A Document that can not be created does not fail the others, it is left out of the pass.
+     *
+     * @param docFeatureMaps the Document parameters, including our nextAnnotationId
+     * @param plan           the PRs to run
+     * @param invalid        receives the error of every Document that could not be created, by index
+     * @return the executed Documents, in the same order as the FeatureMaps, null where one could not be created.
+     * @throws GateException if the pipeline fails, all the Documents are lost.
+     */
+    private List<Document> execute(
+            List<FeatureMap> docFeatureMaps,
+            PipelinePruner.Plan plan,
+            Map<Integer, GateException> invalid
+    ) throws GateException {
         AWSXRay.beginSubsegment("Gate Execute");
+        final List<Document> rv = new ArrayList<>(docFeatureMaps.size());
         try {
-            final DocumentImpl rvImpl;
-
-            // Note: The DocumentImpl API does not conform to JavaBeans for the nextAnnotationId method.
-            //       Paragraphs may be annotated right away, so we need to handle that issue.
-            final int nextAnnotationId = (Integer) docFeatureMap.get("nextAnnotationId");
-            docFeatureMap.remove("nextAnnotationId");
-            rvImpl = (DocumentImpl) Factory.createResource("gate.corpora.DocumentImpl", docFeatureMap);
-            rvImpl.setNextAnnotationId(Math.max(nextAnnotationId, rvImpl.getNextAnnotationId()));
-
-            application.getCorpus().add(rvImpl);
-            application.execute();
-            return rvImpl;
+            for (FeatureMap docFeatureMap : docFeatureMaps) {
+                try {
+                    rv.add(newDocument(docFeatureMap));
+                } catch (GateException e) {
+                    logger.warn("Unable to create document: " + e.getMessage());
+                    AWSXRay.getCurrentSubsegment().addException(e);
+                    invalid.put(rv.size(), e);
+                    rv.add(null);
+                }
+            }
+            AWSXRay.getCurrentSubsegment().putMetadata("Documents", rv.size() - invalid.size());
+            AWSXRay.getCurrentSubsegment().putMetadata("Plan", plan.toString());
+
+            // Very large Documents run in chunks across the pool, the rest in a single controller pass.
+            final List<Document> whole = new ArrayList<>(rv.size());
+            for (Document doc : rv) {
+                if (doc == null)
+                    continue;
+                if (chunker.accepts(doc))
+                    chunker.execute(doc, plan);
+                else
+                    whole.add(doc);
+            }
+            if (whole.isEmpty())
+                return rv;
+
+            final CorpusController controller = pool.checkout();
+            try {
+                AWSXRay.getCurrentSubsegment().putMetadata("Pool", new HashMap<String, Object>() {{
+                    put("size", pool.getSize());
+                    put("idle", pool.getIdleCount());
+                    put("busy", pool.getBusyCount());
+                }});
+                final Runnable restore = plan.applyTo(controller);
+                try {
+                    controller.getCorpus().addAll(whole);
+                    pipelineMetrics.execute(controller);
+                } finally {
+                    restore.run();
+                }
+            } finally {
+                pool.release(controller);
+            }
+            return rv;
         } catch (GateException e) {
+            rv.stream().filter(Objects::nonNull).forEach(Factory::deleteResource);
             AWSXRay.getCurrentSubsegment().addException(e);
             throw e;
         } finally {
-            application.getCorpus().clear();
             AWSXRay.endSubsegment();
         }
     }
 
+    private static Document newDocument(FeatureMap docFeatureMap) throws GateException {
+        // Note: The DocumentImpl API does not conform to JavaBeans for the nextAnnotationId method.
+        //       Paragraphs may be annotated right away, so we need to handle that issue.
+        final int nextAnnotationId = (Integer) docFeatureMap.get("nextAnnotationId");
+        docFeatureMap.remove("nextAnnotationId");
+        final DocumentImpl rv = (DocumentImpl) Factory.createResource("gate.corpora.DocumentImpl", docFeatureMap);
+        // GATE has read the binary content, give its buffer back before the pipeline runs.
+        final Object sourceUrl = docFeatureMap.get(Document.DOCUMENT_URL_PARAMETER_NAME);
+        if (sourceUrl instanceof URL)
+            Handler.release((URL) sourceUrl);
+        rv.setNextAnnotationId(Math.max(nextAnnotationId, rv.getNextAnnotationId()));
+        return rv;
+    }
+
     /**
      * @param exporter           The document exporter
      * @param doc                an instance of gate.Document
      * @param annotationSelector the List of AnnotationTypes to return
+     * @param contentEncoding    gzip or deflate to compress large bodies, null to never compress
      * @param response           The response where we put the exported Document as body
      * @return the modified response
      */
@@ -232,38 +667,53 @@ public class App implements RequestHandler<APIGatewayProxyRequestEvent, APIGatew
             DocumentExporter exporter,
             Document doc,
             List<String> annotationSelector,
+            String contentEncoding,
             APIGatewayProxyResponseEvent response
     ) throws IOException {
-        final FeatureMap exportOptions = Factory.newFeatureMap();
-
-        // Include the selected annotations in the doc features.
-        if (annotationSelector != null)
-            doc.getFeatures().put("gate.cloud.annotationSelectors", String.join(",", annotationSelector));
-
-        // Take *all* annotation types and filter based on AnnotationSelector
-        final AnnotationSet defaultAnnots = doc.getAnnotations();
-        final Set<String> includeTypes = new HashSet<>(defaultAnnots.getAllTypes());
-        if (annotationSelector != null)
-            includeTypes.removeIf((type) -> !annotationSelector.contains(":" + type));
-        exportOptions.put("annotationTypes", includeTypes);
-
-        // This is a hack for FastInfoSet and XML *only*, but we are going to do for all modes...
-        defaultAnnots.removeIf((annotation) -> !includeTypes.contains(annotation.getType()));
-
         final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final CompressingOutputStream body = new CompressingOutputStream(
+                contentEncoding, RESPONSE_COMPRESSION_MIN_BYTES, (compressed) -> baos);
+        export(exporter, doc, annotationSelector, body);
+        body.close();
+        if (body.isCompressed()) {
+            response.getHeaders().put("Content-Encoding", contentEncoding);
+            response.withIsBase64Encoded(true).setBody(Base64.encodeAsString(baos.toByteArray()));
+        } else if (isBinary(exporter)) {
+            response.withIsBase64Encoded(true).setBody(Base64.encodeAsString(baos.toByteArray()));
+        } else {
+            response.setBody(baos.toString());
+        }
+        return response;
+    }
+
+    /**
+     * @param exporter           The document exporter
+     * @param doc                an instance of gate.Document
+     * @param annotationSelector the List of AnnotationTypes to return
+     * @param out                where the exporter writes the Document
+     */
+    private void export(
+            DocumentExporter exporter,
+            Document doc,
+            List<String> annotationSelector,
+            OutputStream out
+    ) throws IOException {
+        // The exporters read the selection, the Document may be shared with other requests.
+        final FeatureMap exportOptions = Factory.newFeatureMap();
+        exportOptions.put(AnnotationSelection.OPTION, AnnotationSelection.of(doc, annotationSelector));
         try {
-            exporter.export(doc, baos, exportOptions);
+            exporter.export(doc, out, exportOptions);
         } catch (IOException e) {
             AWSXRay.getCurrentSubsegment().addException(e);
             throw e;
         }
+    }
 
-        // If we add a second type, then we should create a "Set" at the Utils level and test against it.
-        if (exporter.getMimeType().startsWith("application/fastinfoset")) {
-            response.withIsBase64Encoded(true).setBody(Base64.encodeAsString(baos.toByteArray()));
-        } else {
-            response.setBody(baos.toString());
-        }
-        return response;
+    /**
+     * @param exporter the document exporter
+     * @return true if the exporter writes binary content, which goes Base64 encoded into the response.
+     */
+    private static boolean isBinary(DocumentExporter exporter) {
+        return Utils.binaryResponseTypes.contains(exporter.getMimeType());
     }
 }
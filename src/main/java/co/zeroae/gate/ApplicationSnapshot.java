@@ -0,0 +1,178 @@
+package co.zeroae.gate;
+
+import gate.CorpusController;
+import gate.Gate;
+import gate.ProcessingResource;
+import gate.creole.Parameter;
+import gate.creole.ResourceData;
+import gate.creole.ResourceReference;
+import gate.creole.SerialController;
+import gate.util.GateException;
+import gate.util.persistence.PersistenceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A copy of a GATE application whose JAPE transducers load pre-compiled binary grammars.
+ * The snapshot lives next to the application.xgapp it was built from, so it shares the maven-cache.gate:
+ * <pre>
+ *     application.snapshot.xgapp         the application, with binaryGrammarURL instead of grammarURL
+ *     application.snapshot.fingerprint   the fingerprint of the application directory, GATE and Java versions
+ *     snapshot/*.jape.ser                the serialized grammars
+ * </pre>
+ * Build it with: ApplicationSnapshot path/to/application.xgapp
+ */
+class ApplicationSnapshot {
+    static final String XGAPP = "application.snapshot.xgapp";
+    static final String FINGERPRINT = "application.snapshot.fingerprint";
+    static final String GRAMMARS = "snapshot";
+    /**
+     * The JAPE transducer lives in the ANNIE plugin, which GATE loads in its own class loader.
+     */
+    private static final String TRANSDUCER = "gate.creole.Transducer";
+    private static final String BINARY_GRAMMAR_URL = "binaryGrammarURL";
+
+    private static final Logger logger = LoggerFactory.getLogger(ApplicationSnapshot.class);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: ApplicationSnapshot path/to/application.xgapp");
+            System.exit(2);
+        }
+        Gate.init();
+        final File xgapp = new File(args[0]);
+        final CorpusController controller = (CorpusController) PersistenceManager.loadObjectFromFile(xgapp);
+        write(controller, xgapp);
+        System.out.println("Wrote " + new File(xgapp.getParentFile(), XGAPP));
+    }
+
+    /**
+     * Serializes the grammars of every JAPE transducer and saves the application next to the xgapp.
+     * The transducers that persist a binaryGrammarURL are switched to their binary grammars in the process.
+     *
+     * @param controller the application loaded from xgapp
+     * @param xgapp      the application.xgapp file
+     */
+    static void write(CorpusController controller, File xgapp) throws IOException, GateException {
+        final File directory = xgapp.getAbsoluteFile().getParentFile();
+        final File grammars = new File(directory, GRAMMARS);
+        if (!grammars.exists() && !grammars.mkdirs())
+            throw new IOException("Unable to create the grammar directory '" + grammars + "'.");
+
+        if (controller instanceof SerialController) {
+            int index = 0;
+            for (ProcessingResource pr : ((SerialController) controller).getPRs()) {
+                index++;
+                final Class<?> transducer = transducerClass(pr.getClass());
+                if (transducer != null && persistsBinaryGrammar(pr)) {
+                    final File grammar = new File(grammars,
+                            index + "-" + pr.getName().replaceAll("[^A-Za-z0-9_-]", "_") + ".jape.ser");
+                    if (writeGrammar(transducer, pr, grammar))
+                        useBinaryGrammar(transducer, pr, grammar.toURI().toURL());
+                }
+            }
+        }
+        PersistenceManager.saveObjectToFile(controller, new File(directory, XGAPP));
+        Files.write(new File(directory, FINGERPRINT).toPath(),
+                Startup.fingerprint(xgapp.toURI().toURL()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the JAPE Transducer class among the superclasses of clazz, or null if it is not a transducer.
+     */
+    private static Class<?> transducerClass(Class<?> clazz) {
+        for (Class<?> rv = clazz; rv != null; rv = rv.getSuperclass())
+            if (rv.getName().equals(TRANSDUCER))
+                return rv;
+        return null;
+    }
+
+    /**
+     * Subclasses such as the ANNIETransducer hide binaryGrammarURL, GATE would save them without it.
+     *
+     * @return true if binaryGrammarURL is an init-time parameter of the PR.
+     */
+    private static boolean persistsBinaryGrammar(ProcessingResource pr) {
+        final ResourceData data = Gate.getCreoleRegister().get(pr.getClass().getName());
+        if (data == null)
+            return false;
+        for (List<Parameter> disjunction : data.getParameterList().getInitimeParameters())
+            for (Parameter parameter : disjunction)
+                if (BINARY_GRAMMAR_URL.equals(parameter.getName()))
+                    return true;
+        logger.info(pr.getName() + " hides its binary grammar parameter, it stays in source form.");
+        return false;
+    }
+
+    /**
+     * The Transducer only exposes its compiled Batch through the GUI "Serialize Transducer" action,
+     * so we reach for the field that action writes out.
+     *
+     * @return true if the grammar was written.
+     */
+    private static boolean writeGrammar(Class<?> transducer, ProcessingResource pr, File grammar)
+            throws IOException {
+        final Object batch;
+        try {
+            final Field field = transducer.getDeclaredField("batch");
+            field.setAccessible(true);
+            batch = field.get(pr);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            logger.warn("Unable to serialize the grammar of " + pr.getName() + ", it stays in source form.");
+            return false;
+        }
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(grammar)))) {
+            out.writeObject(batch);
+        }
+        return true;
+    }
+
+    /**
+     * Points the transducer at its binary grammar, and away from its source grammar.
+     */
+    private static void useBinaryGrammar(Class<?> transducer, ProcessingResource pr, URL grammar)
+            throws GateException {
+        try {
+            transducer.getMethod("setGrammarURL", ResourceReference.class).invoke(pr, (Object) null);
+            transducer.getMethod("setBinaryGrammarURL", URL.class).invoke(pr, grammar);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            throw new GateException("Unable to switch " + pr.getName() + " to its binary grammar.", e);
+        }
+    }
+
+    /**
+     * @param xgapp the application.xgapp
+     * @return the snapshot application, or null if there is none or it was built from a different xgapp.
+     */
+    static CorpusController load(URL xgapp) {
+        try {
+            // Relative URLs resolve in a directory and in a jar alike.
+            final URL snapshot = new URL(xgapp, XGAPP);
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            try (InputStream in = new URL(xgapp, FINGERPRINT).openStream()) {
+                final byte[] buffer = new byte[256];
+                for (int read = in.read(buffer); read >= 0; read = in.read(buffer))
+                    expected.write(buffer, 0, read);
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+            if (!Objects.equals(expected.toString("UTF-8").trim(), Startup.fingerprint(xgapp))) {
+                logger.warn("Ignoring " + snapshot + ", its fingerprint does not match the application.");
+                return null;
+            }
+            return (CorpusController) PersistenceManager.loadObjectFromUrl(snapshot);
+        } catch (GateException | IOException | IllegalArgumentException e) {
+            logger.warn("Unable to load the application snapshot, falling back to the xgapp.", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package co.zeroae.gate;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.MappingIterator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One entry of a batch request, it carries the same information as a single execute request.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+class BatchDocument {
+    public String id;
+
+    public String content;
+
+    public String contentType;
+
+    public Integer nextAnnotationId;
+
+    public boolean isBase64Encoded;
+
+    /**
+     * @param body a JSON array or a sequence of newline delimited JSON objects.
+     * @return the BatchDocuments in the order they appear in the body.
+     * @throws IOException if the body is not valid JSON.
+     */
+    static List<BatchDocument> readAll(String body) throws IOException {
+        final List<BatchDocument> rv = new ArrayList<>();
+        if (body == null)
+            return rv;
+        try (MappingIterator<BatchDocument> it = Utils.objectMapper.readerFor(BatchDocument.class).readValues(body)) {
+            while (it.hasNextValue())
+                rv.add(it.nextValue());
+        }
+        return rv;
+    }
+}
@@ -0,0 +1,147 @@
+package co.zeroae.gate;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides which computed Documents are worth caching.
+ * <ul>
+ *     <li>A tier under pressure only admits keys looked up at least minFrequency times recently, or Documents
+ *     that took at least expensiveNanos to compute. One-hit wonders no longer evict the hot entries.</li>
+ *     <li>The disk tier never admits a Document that computes faster than it would be written and read back,
+ *     as estimated from the disk round-trips observed so far.</li>
+ * </ul>
+ * It also keeps the byte counts and the entry size histogram of the disk tier.
+ */
+class CacheAdmission {
+    /**
+     * The cost of a Document the caller did not measure, it is always worth caching.
+     */
+    static final long UNKNOWN_COST = Long.MAX_VALUE;
+
+    private static final double DECAY = .1;
+
+    private final FrequencySketch sketch;
+    private final int minFrequency;
+    private final long expensiveNanos;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejectedFrequency = new AtomicLong();
+    private final AtomicLong rejectedCost = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    /**
+     * Entry sizes in power of two buckets, from under 1KiB to 1GiB and over.
+     */
+    private final AtomicLongArray sizeHistogram = new AtomicLongArray(22);
+
+    private double writeNanosPerByte = 0;
+    private double readNanosPerByte = 0;
+
+    /**
+     * @param width          the expected number of distinct keys
+     * @param minFrequency   the lookups a key needs before a tier under pressure admits it
+     * @param expensiveNanos the cost above which a tier under pressure admits any Document
+     */
+    CacheAdmission(int width, int minFrequency, long expensiveNanos) {
+        this.sketch = new FrequencySketch(width);
+        this.minFrequency = minFrequency;
+        this.expensiveNanos = expensiveNanos;
+    }
+
+    /**
+     * Counts a lookup of the key.
+     *
+     * @param key the cache key
+     */
+    void record(String key) {
+        sketch.increment(key);
+    }
+
+    /**
+     * @param key      the cache key
+     * @param cost     the nanoseconds the Document took to compute
+     * @param pressure true if admitting it means evicting other entries
+     * @return true if the tier should keep the Document.
+     */
+    boolean admit(String key, long cost, boolean pressure) {
+        if (!pressure || cost >= expensiveNanos || sketch.frequency(key) >= minFrequency)
+            return true;
+        rejectedFrequency.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @param cost      the nanoseconds the Document took to compute
+     * @param footprint the estimated footprint of the Document
+     * @return true if recomputing the Document is slower than writing it to disk and reading it back.
+     */
+    boolean worthWriting(long cost, long footprint) {
+        final double roundTrip;
+        synchronized (this) {
+            roundTrip = (writeNanosPerByte + readNanosPerByte) * footprint;
+        }
+        if (cost >= roundTrip) {
+            admitted.incrementAndGet();
+            return true;
+        }
+        rejectedCost.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @param footprint the estimated footprint of the Document written
+     * @param bytes     the size of the entry
+     * @param nanos     the time it took to serialize and write it
+     */
+    void wrote(long footprint, long bytes, long nanos) {
+        bytesWritten.addAndGet(bytes);
+        sizeHistogram.incrementAndGet(bucket(bytes));
+        synchronized (this) {
+            writeNanosPerByte = decay(writeNanosPerByte, (double) nanos / Math.max(1, footprint));
+        }
+    }
+
+    /**
+     * @param footprint the estimated footprint of the Document read
+     * @param bytes     the size of the entry
+     * @param nanos     the time it took to read and deserialize it
+     */
+    void read(long footprint, long bytes, long nanos) {
+        bytesRead.addAndGet(bytes);
+        synchronized (this) {
+            readNanosPerByte = decay(readNanosPerByte, (double) nanos / Math.max(1, footprint));
+        }
+    }
+
+    private static double decay(double average, double sample) {
+        return average == 0 ? sample : average + DECAY * (sample - average);
+    }
+
+    private static int bucket(long bytes) {
+        return Math.min(64 - Long.numberOfLeadingZeros(bytes >> 10), 21);
+    }
+
+    Map<String, Object> asMap() {
+        final Map<String, Object> histogram = new LinkedHashMap<>();
+        for (int i = 0; i < sizeHistogram.length(); i++)
+            if (sizeHistogram.get(i) > 0)
+                histogram.put(i < 21 ? "<" + (1L << (i + 10)) : ">=" + (1L << 30), sizeHistogram.get(i));
+
+        final Map<String, Object> rv = new LinkedHashMap<>();
+        rv.put("diskAdmitted", admitted.get());
+        rv.put("rejectedFrequency", rejectedFrequency.get());
+        rv.put("rejectedCost", rejectedCost.get());
+        rv.put("bytesWritten", bytesWritten.get());
+        rv.put("bytesRead", bytesRead.get());
+        rv.put("entrySizes", histogram);
+        synchronized (this) {
+            rv.put("writeNanosPerByte", writeNanosPerByte);
+            rv.put("readNanosPerByte", readNanosPerByte);
+        }
+        return rv;
+    }
+}
@@ -0,0 +1,48 @@
+package co.zeroae.gate;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hit, miss and eviction counters for one cache tier, and its hit ratio.
+ */
+class CacheStats {
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+    void miss() {
+        misses.incrementAndGet();
+    }
+
+    void evicted(long count) {
+        evictions.addAndGet(count);
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    Map<String, Object> asMap() {
+        final Map<String, Object> rv = new LinkedHashMap<>();
+        rv.put("hits", getHits());
+        rv.put("misses", getMisses());
+        rv.put("evictions", getEvictions());
+        final long lookups = getHits() + getMisses();
+        rv.put("hitRatio", lookups > 0 ? (double) getHits() / lookups : 0.);
+        return rv;
+    }
+}
@@ -0,0 +1,36 @@
+package co.zeroae.gate;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A tier of serialized cache entries behind the heap tier of the {@link DocumentLRUCache}.
+ */
+interface CacheStore {
+    /**
+     * @param key the entry key
+     * @return the entry, or null if there is none.
+     * @throws IOException if the store could not be read, callers treat it as a miss.
+     */
+    byte[] get(String key) throws IOException;
+
+    /**
+     * Stores the entry, unless another writer is already storing the same key.
+     *
+     * @param key   the entry key
+     * @param entry the entry
+     * @throws IOException if the entry could not be stored.
+     */
+    void put(String key, byte[] entry) throws IOException;
+
+    /**
+     * @param key the entry key
+     * @return true if the entry was removed.
+     */
+    boolean remove(String key);
+
+    /**
+     * @return the counters of the store.
+     */
+    Map<String, Object> getStats();
+}
@@ -0,0 +1,137 @@
+package co.zeroae.gate;
+
+import gate.Annotation;
+import gate.Document;
+import gate.DocumentExporter;
+import gate.FeatureMap;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static co.zeroae.gate.ColumnarReader.*;
+
+/**
+ * Writes the selected annotations in a columnar binary layout, see {@link ColumnarReader} to decode it.
+ * <p>
+ * All integers are big-endian, "varint" is an unsigned LEB128 and "zigzag" a signed one.
+ * <pre>
+ *   magic "GCOL", u8 version
+ *   varint stringCount, stringCount * (varint length, UTF-8 bytes)      the dictionary
+ *   varint blockCount, blockCount * block                               one block per "SetName:Type"
+ *   block: varint type, varint n, n * i32 start, n * i32 end, n * i32 id,
+ *          varint featureCount, featureCount * varint name,
+ *          featureCount * n * value                                     one column per feature name
+ *   value: u8 tag, then nothing, a varint dictionary index, a zigzag long or an f64
+ * </pre>
+ * Type names, feature names and String values are dictionary indexes. Collections and Maps are encoded as JSON.
+ * The magic, version and value tags live in ColumnarReader, so it can decode the layout without GATE.
+ */
+class ColumnarExporter extends DocumentExporter {
+    static final String MIME_TYPE = "application/vnd.zeroae.gate.columnar";
+
+    ColumnarExporter() {
+        super("GATE Columnar", "gcol", MIME_TYPE);
+    }
+
+    @Override
+    public void export(Document doc, OutputStream out, FeatureMap options) throws IOException {
+        final AnnotationSelection selection = AnnotationSelection.fromOptions(doc, options);
+        final Map<String, Integer> dictionary = new LinkedHashMap<>();
+        final ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        final DataOutputStream blocksOut = new DataOutputStream(blocks);
+
+        final Map<String, Collection<Annotation>> byType = selection.byType();
+        writeVarint(blocksOut, byType.size());
+        for (Map.Entry<String, Collection<Annotation>> entry : byType.entrySet())
+            writeBlock(blocksOut, dictionary, entry.getKey(), entry.getValue());
+        blocksOut.flush();
+
+        final DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out));
+        dataOut.write(MAGIC);
+        dataOut.writeByte(VERSION);
+        writeVarint(dataOut, dictionary.size());
+        for (String string : dictionary.keySet()) {
+            final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            writeVarint(dataOut, bytes.length);
+            dataOut.write(bytes);
+        }
+        blocks.writeTo(dataOut);
+        dataOut.close();
+    }
+
+    private static void writeBlock(
+            DataOutputStream out,
+            Map<String, Integer> dictionary,
+            String type,
+            Collection<Annotation> annotations
+    ) throws IOException {
+        final Annotation[] sorted = annotations.toArray(new Annotation[0]);
+        Arrays.sort(sorted, Comparator
+                .comparing((Annotation annotation) -> annotation.getStartNode().getOffset())
+                .thenComparing(Annotation::getId));
+
+        writeVarint(out, intern(dictionary, type));
+        writeVarint(out, sorted.length);
+        for (Annotation annotation : sorted)
+            out.writeInt(annotation.getStartNode().getOffset().intValue());
+        for (Annotation annotation : sorted)
+            out.writeInt(annotation.getEndNode().getOffset().intValue());
+        for (Annotation annotation : sorted)
+            out.writeInt(annotation.getId());
+
+        final Set<Object> featureNames = new LinkedHashSet<>();
+        for (Annotation annotation : sorted)
+            if (annotation.getFeatures() != null)
+                featureNames.addAll(annotation.getFeatures().keySet());
+        writeVarint(out, featureNames.size());
+        for (Object name : featureNames)
+            writeVarint(out, intern(dictionary, String.valueOf(name)));
+        for (Object name : featureNames)
+            for (Annotation annotation : sorted) {
+                final FeatureMap features = annotation.getFeatures();
+                if (features == null || !features.containsKey(name))
+                    out.writeByte(TAG_ABSENT);
+                else
+                    writeValue(out, dictionary, features.get(name));
+            }
+    }
+
+    private static void writeValue(DataOutputStream out, Map<String, Integer> dictionary, Object value)
+            throws IOException {
+        if (value == null)
+            out.writeByte(TAG_NULL);
+        else if (value instanceof String) {
+            out.writeByte(TAG_STRING);
+            writeVarint(out, intern(dictionary, (String) value));
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short ||
+                value instanceof Byte) {
+            out.writeByte(TAG_LONG);
+            final long l = ((Number) value).longValue();
+            writeVarint(out, (l << 1) ^ (l >> 63));
+        } else if (value instanceof Number) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Boolean)
+            out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        else if (value instanceof Collection || value instanceof Map) {
+            out.writeByte(TAG_JSON);
+            writeVarint(out, intern(dictionary, Utils.objectMapper.writeValueAsString(value)));
+        } else {
+            out.writeByte(TAG_STRING);
+            writeVarint(out, intern(dictionary, value.toString()));
+        }
+    }
+
+    private static int intern(Map<String, Integer> dictionary, String string) {
+        return dictionary.computeIfAbsent(string, (key) -> dictionary.size());
+    }
+
+    static void writeVarint(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
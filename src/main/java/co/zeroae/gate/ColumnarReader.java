@@ -0,0 +1,211 @@
+package co.zeroae.gate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Decodes the application/vnd.zeroae.gate.columnar responses, the layout is documented in ColumnarExporter.
+ * It only needs this class and Jackson, which decodes the Collection and Map feature values, not GATE.
+ * <pre>
+ *   for (ColumnarReader.Block tokens : ColumnarReader.read(in).values())
+ *       for (int i = 0; i &lt; tokens.size(); i++)
+ *           index(tokens.getType(), tokens.getStarts()[i], tokens.getEnds()[i], tokens.getFeature("string", i));
+ * </pre>
+ */
+public class ColumnarReader {
+    static final byte[] MAGIC = {'G', 'C', 'O', 'L'};
+    static final int VERSION = 1;
+
+    static final int TAG_ABSENT = 0;
+    static final int TAG_NULL = 1;
+    static final int TAG_STRING = 2;
+    static final int TAG_LONG = 3;
+    static final int TAG_DOUBLE = 4;
+    static final int TAG_TRUE = 5;
+    static final int TAG_FALSE = 6;
+    static final int TAG_JSON = 7;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final Object ABSENT = new Object();
+
+    private ColumnarReader() {
+    }
+
+    /**
+     * The annotations of one "SetName:Type", as parallel arrays.
+     */
+    public static class Block {
+        private final String type;
+        private final int[] starts;
+        private final int[] ends;
+        private final int[] ids;
+        private final Map<String, Object[]> features;
+        private final Map<String, BitSet> absent;
+
+        Block(String type, int[] starts, int[] ends, int[] ids, Map<String, Object[]> features,
+              Map<String, BitSet> absent) {
+            this.type = type;
+            this.starts = starts;
+            this.ends = ends;
+            this.ids = ids;
+            this.features = features;
+            this.absent = absent;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public int size() {
+            return ids.length;
+        }
+
+        public int[] getStarts() {
+            return starts;
+        }
+
+        public int[] getEnds() {
+            return ends;
+        }
+
+        public int[] getIds() {
+            return ids;
+        }
+
+        public Set<String> getFeatureNames() {
+            return features.keySet();
+        }
+
+        /**
+         * @param name the feature name
+         * @return the feature values of every annotation, in order, null where the feature is missing or null.
+         */
+        public Object[] getFeatureColumn(String name) {
+            return features.get(name);
+        }
+
+        /**
+         * @param name  the feature name
+         * @param index the annotation index
+         * @return the feature value, or null if the annotation does not have it or its value is null.
+         */
+        public Object getFeature(String name, int index) {
+            final Object[] column = features.get(name);
+            return column != null ? column[index] : null;
+        }
+
+        /**
+         * @param name  the feature name
+         * @param index the annotation index
+         * @return true if the annotation has the feature, even with a null value.
+         */
+        public boolean hasFeature(String name, int index) {
+            final BitSet column = absent.get(name);
+            return column != null && !column.get(index);
+        }
+    }
+
+    /**
+     * @param in a columnar response body, it is read to the end but not closed.
+     * @return the blocks by "SetName:Type", in the order they were written.
+     * @throws IOException if the content is not in a version of the columnar layout we know.
+     */
+    public static Map<String, Block> read(InputStream in) throws IOException {
+        final DataInputStream dataIn = new DataInputStream(new BufferedInputStream(in));
+        final byte[] magic = new byte[MAGIC.length];
+        dataIn.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC))
+            throw new IOException("Not a columnar annotation stream.");
+        final int version = dataIn.readUnsignedByte();
+        if (version != VERSION)
+            throw new IOException("Unsupported columnar version " + version + ".");
+
+        final String[] dictionary = new String[readInt(dataIn)];
+        for (int i = 0; i < dictionary.length; i++) {
+            final byte[] bytes = new byte[readInt(dataIn)];
+            dataIn.readFully(bytes);
+            dictionary[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        final int blockCount = readInt(dataIn);
+        final Map<String, Block> rv = new LinkedHashMap<>();
+        for (int b = 0; b < blockCount; b++) {
+            final String type = dictionary[readInt(dataIn)];
+            final int n = readInt(dataIn);
+            final int[] starts = readInts(dataIn, n);
+            final int[] ends = readInts(dataIn, n);
+            final int[] ids = readInts(dataIn, n);
+            final String[] names = new String[readInt(dataIn)];
+            for (int f = 0; f < names.length; f++)
+                names[f] = dictionary[readInt(dataIn)];
+            final Map<String, Object[]> features = new LinkedHashMap<>();
+            final Map<String, BitSet> absent = new HashMap<>();
+            for (String name : names) {
+                final Object[] column = new Object[n];
+                final BitSet absentColumn = new BitSet(n);
+                for (int i = 0; i < n; i++) {
+                    final Object value = readValue(dataIn, dictionary);
+                    if (value == ABSENT)
+                        absentColumn.set(i);
+                    else
+                        column[i] = value;
+                }
+                features.put(name, column);
+                absent.put(name, absentColumn);
+            }
+            rv.put(type, new Block(type, starts, ends, ids, features, absent));
+        }
+        return rv;
+    }
+
+    private static Object readValue(DataInputStream in, String[] dictionary) throws IOException {
+        final int tag = in.readUnsignedByte();
+        switch (tag) {
+            case TAG_ABSENT:
+                return ABSENT;
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return dictionary[readInt(in)];
+            case TAG_LONG:
+                final long zigzag = readVarint(in);
+                final long value = (zigzag >>> 1) ^ -(zigzag & 1);
+                return value == (int) value ? (Object) (int) value : (Object) value;
+            case TAG_DOUBLE:
+                return in.readDouble();
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_JSON:
+                return objectMapper.readValue(dictionary[readInt(in)], Object.class);
+            default:
+                throw new IOException("Unknown value tag " + tag + ".");
+        }
+    }
+
+    private static int[] readInts(DataInputStream in, int n) throws IOException {
+        final int[] rv = new int[n];
+        for (int i = 0; i < n; i++)
+            rv[i] = in.readInt();
+        return rv;
+    }
+
+    private static int readInt(DataInputStream in) throws IOException {
+        return (int) readVarint(in);
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long rv = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            rv |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return rv;
+        }
+        throw new IOException("Malformed varint.");
+    }
+}
@@ -0,0 +1,106 @@
+package co.zeroae.gate;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import gate.Annotation;
+import gate.Document;
+import gate.DocumentExporter;
+import gate.FeatureMap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+
+/**
+ * Streams the selected annotations through a Jackson JsonGenerator, without the document text.
+ * <p>
+ * The annotations are grouped by type, "SetName:Type" outside the default set, in document order:
+ * <pre>
+ *   {"entities": {"Token": [{"id": 0, "start": 0, "end": 5, "features": {"string": "Hello"}}, ...]}}
+ * </pre>
+ * The offsets only variant drops the features and writes every annotation as {@code [id, start, end]}.
+ * Offsets are GATE offsets, in UTF-16 code units, like the includeText=no XML variants.
+ */
+class CompactJsonExporter extends DocumentExporter {
+    static final String MIME_TYPE = "application/gate+json; includeText=no";
+    static final String OFFSETS_ONLY_MIME_TYPE = "application/gate+json; offsetsOnly=yes";
+
+    private static final Comparator<Annotation> documentOrder = Comparator
+            .comparing((Annotation annotation) -> annotation.getStartNode().getOffset())
+            .thenComparing(Annotation::getId);
+
+    private final boolean offsetsOnly;
+
+    /**
+     * @param offsetsOnly true to write the ids and offsets only, without the features.
+     */
+    CompactJsonExporter(boolean offsetsOnly) {
+        super(offsetsOnly ? "Compact JSON Offsets" : "Compact JSON", "json",
+                offsetsOnly ? OFFSETS_ONLY_MIME_TYPE : MIME_TYPE);
+        this.offsetsOnly = offsetsOnly;
+    }
+
+    @Override
+    public void export(Document doc, OutputStream out, FeatureMap options) throws IOException {
+        final AnnotationSelection selection = AnnotationSelection.fromOptions(doc, options);
+        try (JsonGenerator json = Utils.objectMapper.getFactory().createGenerator(out)) {
+            json.writeStartObject();
+            json.writeObjectFieldStart("entities");
+            for (Map.Entry<String, Collection<Annotation>> entry : selection.byType().entrySet()) {
+                json.writeArrayFieldStart(entry.getKey());
+                final List<Annotation> annotations = new ArrayList<>(entry.getValue());
+                annotations.sort(documentOrder);
+                for (Annotation annotation : annotations) {
+                    if (offsetsOnly)
+                        writeOffsets(json, annotation);
+                    else
+                        writeAnnotation(json, annotation);
+                }
+                json.writeEndArray();
+            }
+            json.writeEndObject();
+            json.writeEndObject();
+        }
+    }
+
+    private static void writeOffsets(JsonGenerator json, Annotation annotation) throws IOException {
+        json.writeStartArray();
+        json.writeNumber(annotation.getId());
+        json.writeNumber(annotation.getStartNode().getOffset());
+        json.writeNumber(annotation.getEndNode().getOffset());
+        json.writeEndArray();
+    }
+
+    private static void writeAnnotation(JsonGenerator json, Annotation annotation) throws IOException {
+        json.writeStartObject();
+        json.writeNumberField("id", annotation.getId());
+        json.writeNumberField("start", annotation.getStartNode().getOffset());
+        json.writeNumberField("end", annotation.getEndNode().getOffset());
+        final FeatureMap features = annotation.getFeatures();
+        if (features != null && !features.isEmpty()) {
+            json.writeObjectFieldStart("features");
+            for (Map.Entry<Object, Object> feature : features.entrySet()) {
+                json.writeFieldName(String.valueOf(feature.getKey()));
+                writeValue(json, feature.getValue());
+            }
+            json.writeEndObject();
+        }
+        json.writeEndObject();
+    }
+
+    /**
+     * Scalars are written directly, collections and maps through the ObjectMapper, anything else as a String.
+     */
+    private static void writeValue(JsonGenerator json, Object value) throws IOException {
+        if (value == null)
+            json.writeNull();
+        else if (value instanceof String)
+            json.writeString((String) value);
+        else if (value instanceof Integer || value instanceof Long)
+            json.writeNumber(((Number) value).longValue());
+        else if (value instanceof Number || value instanceof Boolean ||
+                value instanceof Collection || value instanceof Map)
+            json.writeObject(value);
+        else
+            json.writeString(value.toString());
+    }
+}
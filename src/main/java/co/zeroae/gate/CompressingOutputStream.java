@@ -0,0 +1,112 @@
+package co.zeroae.gate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses a response body as it is exported, once it is large enough to be worth it.
+ * The first minBytes are held back. If the body ends before that it goes through as it is, otherwise what was held
+ * back and everything after it is compressed on the way to the target. The target is only opened once the choice
+ * is made, so the caller can still change how it encodes the body and which headers it sends.
+ */
+class CompressingOutputStream extends OutputStream {
+    @FunctionalInterface
+    interface Opener {
+        /**
+         * @param compressed true if the body written to the target is compressed
+         * @return where the body goes, it is closed with this stream.
+         */
+        OutputStream open(boolean compressed) throws IOException;
+    }
+
+    private final String contentEncoding;
+    private final int minBytes;
+    private final Opener opener;
+    private ByteArrayOutputStream head = new ByteArrayOutputStream();
+    private OutputStream target = null;
+    private boolean compressed = false;
+    private boolean closed = false;
+
+    /**
+     * @param contentEncoding gzip, deflate, or null to never compress
+     * @param minBytes        the size from which the body is compressed
+     * @param opener          opens the target
+     */
+    CompressingOutputStream(String contentEncoding, int minBytes, Opener opener) {
+        this.contentEncoding = contentEncoding;
+        this.minBytes = minBytes;
+        this.opener = opener;
+    }
+
+    /**
+     * @return true if the body was compressed, it is only known for sure once the stream is closed.
+     */
+    boolean isCompressed() {
+        return compressed;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed)
+            throw new IOException("Stream closed.");
+        if (target == null) {
+            if (contentEncoding != null && head.size() + len < minBytes) {
+                head.write(b, off, len);
+                return;
+            }
+            open(contentEncoding != null);
+        }
+        target.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (target != null)
+            target.flush();
+    }
+
+    /**
+     * Finishes the compressed stream, if any, and closes the target. Exporters may close it first, that is fine.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        if (target == null)
+            open(false);
+        closed = true;
+        target.close();
+    }
+
+    private void open(boolean compress) throws IOException {
+        final OutputStream sink = opener.open(compress);
+        target = compress ? wrap(contentEncoding, sink) : sink;
+        compressed = compress;
+        head.writeTo(target);
+        head = null;
+    }
+
+    /**
+     * @param contentEncoding gzip or deflate, which is the zlib format
+     * @param out             where the compressed bytes go
+     * @return the compressing stream.
+     */
+    static OutputStream wrap(String contentEncoding, OutputStream out) throws IOException {
+        switch (contentEncoding) {
+            case "gzip":
+                return new GZIPOutputStream(out, 8192);
+            case "deflate":
+                return new DeflaterOutputStream(out);
+            default:
+                throw new IllegalArgumentException("Unsupported content encoding '" + contentEncoding + "'.");
+        }
+    }
+}
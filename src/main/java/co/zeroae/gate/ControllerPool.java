@@ -0,0 +1,126 @@
+package co.zeroae.gate;
+
+import gate.CorpusController;
+import gate.Factory;
+import gate.creole.ExecutionInterruptedException;
+import gate.creole.ResourceInstantiationException;
+import gate.util.GateException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of CorpusControllers, each one with its own Corpus.
+ * The pool starts with the loaded application and lazily fills itself with Factory.duplicate copies of it.
+ */
+class ControllerPool {
+    private static final Logger logger = LoggerFactory.getLogger(ControllerPool.class);
+
+    private final CorpusController template;
+    private final int capacity;
+    private final BlockingQueue<CorpusController> idle;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger busy = new AtomicInteger();
+
+    /**
+     * @param template the loaded application, it becomes the first member of the pool.
+     * @param capacity the maximum number of controllers, including the template.
+     */
+    ControllerPool(CorpusController template, int capacity) {
+        this.template = template;
+        this.capacity = Math.max(1, capacity);
+        this.idle = new LinkedBlockingQueue<>(this.capacity);
+        this.idle.add(template);
+        this.size.set(1);
+    }
+
+    /**
+     * Sizes the pool from the available cores and the heap we are allowed to use.
+     * GATE_APP_POOL_SIZE overrides the computation, GATE_APP_POOL_MEMORY_MB is the heap budget per controller.
+     *
+     * @return the default pool capacity.
+     */
+    static int defaultCapacity() {
+        final String override = System.getenv("GATE_APP_POOL_SIZE");
+        if (override != null)
+            return Math.max(1, Integer.parseInt(override));
+
+        final long memoryPerController = Long.parseLong(System.getenv().getOrDefault(
+                "GATE_APP_POOL_MEMORY_MB", "256")) * 1024 * 1024;
+        final Runtime runtime = Runtime.getRuntime();
+        final long freeMemory = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        final int memoryBound = (int) Math.max(1, freeMemory / Math.max(1, memoryPerController));
+        return Math.max(1, Math.min(runtime.availableProcessors(), memoryBound));
+    }
+
+    /**
+     * Takes an idle controller, duplicates the template if there is none and the pool is not full,
+     * otherwise waits for another caller to release one.
+     *
+     * @return a controller for the exclusive use of the caller, it must be given back with release.
+     * @throws ResourceInstantiationException if the template could not be duplicated.
+     * @throws ExecutionInterruptedException  if we were interrupted while waiting.
+     */
+    CorpusController checkout() throws GateException {
+        CorpusController rv = idle.poll();
+        if (rv == null)
+            rv = duplicate();
+        if (rv == null) {
+            try {
+                rv = idle.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ExecutionInterruptedException("Interrupted while waiting for an idle controller.");
+            }
+        }
+        busy.incrementAndGet();
+        return rv;
+    }
+
+    /**
+     * @param controller a controller obtained through checkout.
+     */
+    void release(CorpusController controller) {
+        controller.getCorpus().clear();
+        busy.decrementAndGet();
+        idle.add(controller);
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    int getSize() {
+        return size.get();
+    }
+
+    int getIdleCount() {
+        return idle.size();
+    }
+
+    int getBusyCount() {
+        return busy.get();
+    }
+
+    private CorpusController duplicate() throws ResourceInstantiationException {
+        int current;
+        do {
+            current = size.get();
+            if (current >= capacity)
+                return null;
+        } while (!size.compareAndSet(current, current + 1));
+
+        try {
+            final CorpusController rv = (CorpusController) Factory.duplicate(template);
+            rv.setCorpus(Factory.newCorpus("Lambda Corpus " + current));
+            logger.info("Added controller " + (current + 1) + " of " + capacity + " to the pool.");
+            return rv;
+        } catch (ResourceInstantiationException | RuntimeException e) {
+            size.decrementAndGet();
+            throw e;
+        }
+    }
+}
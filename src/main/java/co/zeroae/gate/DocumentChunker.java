@@ -0,0 +1,379 @@
+package co.zeroae.gate;
+
+import com.amazonaws.xray.AWSXRay;
+import com.amazonaws.xray.entities.Entity;
+import gate.*;
+import gate.util.GateException;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs very large Documents as chunks, concurrently, on separate controllers from the pool.
+ * <p>
+ * The text is split at paragraph breaks, else at sentence ends, else at whitespace, into about one chunk per
+ * controller. Each chunk runs as its own Document, with a copy of the Original markups clipped to it. The annotations
+ * the pipeline adds are then merged back into the Document, offsets shifted and ids taken from the Document in chunk
+ * order, so they still start at its nextAnnotationId. The "matches" features and the MatchesAnnots document feature
+ * of the OrthoMatcher are remapped to the new ids, matches across chunks are lost.
+ * <p>
+ * Seams at whitespace may cut annotations in two, the two halves of the seam types are joined back together and
+ * the matches of the second half point at the first one.
+ * Only Documents without annotations outside the Original markups are chunked, the pipeline must see all of them.
+ */
+class DocumentChunker {
+    static final String MATCHES_FEATURE = "matches";
+    static final String MATCHES_ANNOTS_FEATURE = "MatchesAnnots";
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool((runnable) -> {
+        final Thread rv = new Thread(runnable, "chunk");
+        rv.setDaemon(true);
+        return rv;
+    });
+
+    private final ControllerPool pool;
+    private final PipelineMetrics metrics;
+    private final int threshold;
+    private final Set<String> seamTypes;
+
+    /**
+     * @param pool      the controllers the chunks run on
+     * @param metrics   measures the PRs of every chunk
+     * @param threshold the content size, in characters, above which Documents are chunked. 0 disables chunking.
+     * @param seamTypes the annotation types to join across seams at whitespace
+     */
+    DocumentChunker(ControllerPool pool, PipelineMetrics metrics, int threshold, Set<String> seamTypes) {
+        this.pool = pool;
+        this.metrics = metrics;
+        this.threshold = threshold;
+        this.seamTypes = seamTypes;
+    }
+
+    /**
+     * A slice of the text, and whether the seam at its start cuts through a sentence.
+     */
+    static class Chunk {
+        final int start;
+        final int end;
+        final boolean reconcile;
+
+        Chunk(int start, int end, boolean reconcile) {
+            this.start = start;
+            this.end = end;
+            this.reconcile = reconcile;
+        }
+    }
+
+    /**
+     * @param doc a Document about to be executed
+     * @return true if the Document should be executed in chunks.
+     */
+    boolean accepts(Document doc) {
+        if (threshold <= 0 || pool.getCapacity() < 2 || doc.getContent().size() <= threshold)
+            return false;
+        if (!doc.getAnnotations().isEmpty())
+            return false;
+        for (String name : doc.getAnnotationSetNames())
+            if (!name.equals(GateConstants.ORIGINAL_MARKUPS_ANNOT_SET_NAME) && !doc.getAnnotations(name).isEmpty())
+                return false;
+        return true;
+    }
+
+    /**
+     * Executes the Document in chunks, the annotations end up in the Document itself.
+     *
+     * @param doc  a Document accepted by this chunker
+     * @param plan the PRs to run on every chunk
+     * @throws GateException if any of the chunks fails.
+     */
+    void execute(Document doc, PipelinePruner.Plan plan) throws GateException {
+        final String text = doc.getContent().toString();
+        final List<Chunk> chunks = split(text, Math.max(threshold / 2, text.length() / pool.getCapacity() + 1));
+        AWSXRay.getCurrentSubsegment().putMetadata("Chunks", chunks.size());
+
+        final List<Document> chunkDocs = new ArrayList<>(chunks.size());
+        try {
+            for (Chunk chunk : chunks)
+                chunkDocs.add(newChunkDocument(doc, text, chunk));
+
+            final Entity parent = AWSXRay.getTraceEntity();
+            final List<CompletableFuture<Void>> futures = new ArrayList<>(chunks.size());
+            for (Document chunkDoc : chunkDocs)
+                futures.add(CompletableFuture.runAsync(() -> {
+                    AWSXRay.setTraceEntity(parent);
+                    try {
+                        AWSXRay.createSubsegment("Gate Chunk", (subsegment) -> {
+                            try {
+                                executeChunk(chunkDoc, plan);
+                            } catch (GateException e) {
+                                throw new CompletionException(e);
+                            }
+                        });
+                    } finally {
+                        AWSXRay.clearTraceEntity();
+                    }
+                }, executor));
+            try {
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof GateException)
+                    throw (GateException) e.getCause();
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw e;
+            }
+
+            for (int i = 0; i < chunks.size(); i++)
+                merge(doc, chunks.get(i), chunkDocs.get(i));
+            for (Chunk chunk : chunks)
+                if (chunk.reconcile)
+                    reconcile(doc, text, chunk.start);
+        } finally {
+            chunkDocs.forEach(Factory::deleteResource);
+        }
+    }
+
+    private void executeChunk(Document chunkDoc, PipelinePruner.Plan plan) throws GateException {
+        final CorpusController controller = pool.checkout();
+        try {
+            final Runnable restore = plan.applyTo(controller);
+            try {
+                controller.getCorpus().add(chunkDoc);
+                metrics.execute(controller);
+            } finally {
+                restore.run();
+            }
+        } finally {
+            pool.release(controller);
+        }
+    }
+
+    /**
+     * @param text   the text to split
+     * @param target the preferred chunk size, chunks are between half and the whole of it, except the last one.
+     * @return the chunks, covering the whole text.
+     */
+    static List<Chunk> split(String text, int target) {
+        final List<Chunk> rv = new ArrayList<>();
+        int start = 0;
+        boolean reconcile = false;
+        while (text.length() - start > target) {
+            final int limit = start + target;
+            final int min = start + target / 2;
+            boolean safe = true;
+            int cut = text.lastIndexOf("\n\n", limit - 2);
+            if (cut >= min)
+                cut += 2;
+            else {
+                cut = sentenceEnd(text, min, limit);
+                if (cut < 0) {
+                    safe = false;
+                    cut = limit;
+                    while (cut > min && !Character.isWhitespace(text.charAt(cut - 1)))
+                        cut--;
+                    if (cut == min)
+                        cut = limit;
+                }
+            }
+            rv.add(new Chunk(start, cut, reconcile));
+            reconcile = !safe;
+            start = cut;
+        }
+        rv.add(new Chunk(start, text.length(), reconcile));
+        return rv;
+    }
+
+    /**
+     * @return the offset after the last ". X" like sentence end in [min, limit), or -1.
+     */
+    private static int sentenceEnd(String text, int min, int limit) {
+        for (int i = limit - 2; i > min; i--) {
+            final char c = text.charAt(i - 1);
+            if ((c == '.' || c == '!' || c == '?') && Character.isWhitespace(text.charAt(i)) &&
+                    Character.isUpperCase(text.charAt(i + 1)))
+                return i + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the Document of the chunk, with the Original markups that overlap it, clipped to it.
+     */
+    static Document newChunkDocument(Document doc, String text, Chunk chunk) throws GateException {
+        final Document rv = Factory.newDocument(text.substring(chunk.start, chunk.end));
+        final AnnotationSet markups = doc.getAnnotations(GateConstants.ORIGINAL_MARKUPS_ANNOT_SET_NAME);
+        final AnnotationSet chunkMarkups = rv.getAnnotations(GateConstants.ORIGINAL_MARKUPS_ANNOT_SET_NAME);
+        for (Annotation annotation : markups.get((long) chunk.start, (long) chunk.end)) {
+            final long start = annotation.getStartNode().getOffset();
+            final long end = annotation.getEndNode().getOffset();
+            // A markup that only touches the chunk belongs to its neighbour.
+            if (start != end && (end <= chunk.start || start >= chunk.end))
+                continue;
+            chunkMarkups.add(
+                    Math.max(start, chunk.start) - chunk.start,
+                    Math.min(end, chunk.end) - chunk.start,
+                    annotation.getType(),
+                    copy(annotation.getFeatures()));
+        }
+        return rv;
+    }
+
+    private static void merge(Document doc, Chunk chunk, Document chunkDoc) throws GateException {
+        final Map<Integer, Integer> ids = new HashMap<>();
+        final List<Annotation> added = new ArrayList<>();
+        final List<String> setNames = new ArrayList<>();
+        setNames.add(null);
+        setNames.addAll(chunkDoc.getAnnotationSetNames());
+        setNames.remove(GateConstants.ORIGINAL_MARKUPS_ANNOT_SET_NAME);
+        for (String setName : setNames) {
+            final AnnotationSet source = setName == null ? chunkDoc.getAnnotations() : chunkDoc.getAnnotations(setName);
+            final AnnotationSet target = setName == null ? doc.getAnnotations() : doc.getAnnotations(setName);
+            final List<Annotation> annotations = new ArrayList<>(source);
+            annotations.sort(Comparator.comparing(Annotation::getId));
+            for (Annotation annotation : annotations) {
+                final Integer id = target.add(
+                        annotation.getStartNode().getOffset() + chunk.start,
+                        annotation.getEndNode().getOffset() + chunk.start,
+                        annotation.getType(),
+                        copy(annotation.getFeatures()));
+                ids.put(annotation.getId(), id);
+                added.add(target.get(id));
+            }
+        }
+
+        for (Annotation annotation : added) {
+            final Object matches = annotation.getFeatures().get(MATCHES_FEATURE);
+            if (matches instanceof List)
+                annotation.getFeatures().put(MATCHES_FEATURE, remap((List<?>) matches, ids));
+        }
+        for (Map.Entry<Object, Object> feature : chunkDoc.getFeatures().entrySet()) {
+            if (MATCHES_ANNOTS_FEATURE.equals(feature.getKey()) && feature.getValue() instanceof Map)
+                mergeMatchesAnnots(doc, (Map<?, ?>) feature.getValue(), ids);
+            else
+                doc.getFeatures().putIfAbsent(feature.getKey(), feature.getValue());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void mergeMatchesAnnots(Document doc, Map<?, ?> chunkMatches, Map<Integer, Integer> ids) {
+        Object rv = doc.getFeatures().get(MATCHES_ANNOTS_FEATURE);
+        if (!(rv instanceof Map)) {
+            rv = new HashMap<>();
+            doc.getFeatures().put(MATCHES_ANNOTS_FEATURE, rv);
+        }
+        final Map<Object, List<Object>> matchesAnnots = (Map<Object, List<Object>>) rv;
+        for (Map.Entry<?, ?> entry : chunkMatches.entrySet()) {
+            if (!(entry.getValue() instanceof List))
+                continue;
+            final List<Object> target = matchesAnnots.computeIfAbsent(entry.getKey(), (key) -> new ArrayList<>());
+            for (Object matches : (List<?>) entry.getValue())
+                target.add(matches instanceof List ? remap((List<?>) matches, ids) : matches);
+        }
+    }
+
+    private static List<Object> remap(List<?> matches, Map<Integer, Integer> ids) {
+        final List<Object> rv = new ArrayList<>(matches.size());
+        for (Object id : matches)
+            rv.add(ids.containsKey(id) ? ids.get(id) : id);
+        return rv;
+    }
+
+    /**
+     * Joins the seam type annotations that end right before the seam with the ones that start right after it.
+     * The joined annotation keeps the id of the first half, the matches of both halves and every match of the
+     * second half point at it.
+     */
+    void reconcile(Document doc, String text, int seam) throws GateException {
+        int left = seam;
+        while (left > 0 && Character.isWhitespace(text.charAt(left - 1)))
+            left--;
+        int right = seam;
+        while (right < text.length() && Character.isWhitespace(text.charAt(right)))
+            right++;
+
+        for (AnnotationSet set : annotationSets(doc)) {
+            for (String type : seamTypes) {
+                Annotation before = null;
+                Annotation after = null;
+                for (Annotation annotation : set.get(type, (long) Math.max(0, left - 1), (long) right + 1)) {
+                    final long start = annotation.getStartNode().getOffset();
+                    final long end = annotation.getEndNode().getOffset();
+                    if (end >= left && end <= seam && start < left)
+                        before = annotation;
+                    else if (start >= seam && start <= right && end > right)
+                        after = annotation;
+                }
+                if (before == null || after == null)
+                    continue;
+                final FeatureMap features = copy(before.getFeatures());
+                final Object afterMatches = after.getFeatures().get(MATCHES_FEATURE);
+                if (afterMatches instanceof List) {
+                    final Object beforeMatches = features.get(MATCHES_FEATURE);
+                    final Set<Object> matches = new LinkedHashSet<>();
+                    if (beforeMatches instanceof List)
+                        matches.addAll((List<?>) beforeMatches);
+                    matches.addAll((List<?>) afterMatches);
+                    features.put(MATCHES_FEATURE, new ArrayList<>(matches));
+                }
+                set.remove(before);
+                set.remove(after);
+                set.add(before.getId(), before.getStartNode().getOffset(), after.getEndNode().getOffset(),
+                        type, features);
+                replaceId(doc, after.getId(), before.getId());
+            }
+        }
+    }
+
+    /**
+     * Points the "matches" features, and the MatchesAnnots document feature, at the id that replaces another.
+     */
+    @SuppressWarnings("unchecked")
+    private static void replaceId(Document doc, Integer from, Integer to) {
+        for (AnnotationSet set : annotationSets(doc))
+            for (Annotation annotation : set) {
+                final Object matches = annotation.getFeatures().get(MATCHES_FEATURE);
+                if (matches instanceof List && ((List<?>) matches).contains(from))
+                    annotation.getFeatures().put(MATCHES_FEATURE, replaced((List<?>) matches, from, to));
+            }
+        final Object matchesAnnots = doc.getFeatures().get(MATCHES_ANNOTS_FEATURE);
+        if (!(matchesAnnots instanceof Map))
+            return;
+        ((Map<Object, Object>) matchesAnnots).replaceAll((setName, groups) -> {
+            if (!(groups instanceof List))
+                return groups;
+            final List<Object> rv = new ArrayList<>();
+            for (Object matches : (List<?>) groups)
+                rv.add(matches instanceof List ? replaced((List<?>) matches, from, to) : matches);
+            return rv;
+        });
+    }
+
+    private static List<Object> replaced(List<?> matches, Integer from, Integer to) {
+        final Set<Object> rv = new LinkedHashSet<>();
+        for (Object id : matches)
+            rv.add(from.equals(id) ? to : id);
+        return new ArrayList<>(rv);
+    }
+
+    /**
+     * @return the annotation sets the pipeline writes to, every one but the Original markups.
+     */
+    private static List<AnnotationSet> annotationSets(Document doc) {
+        final List<AnnotationSet> rv = new ArrayList<>();
+        rv.add(doc.getAnnotations());
+        for (String name : doc.getAnnotationSetNames())
+            if (!name.equals(GateConstants.ORIGINAL_MARKUPS_ANNOT_SET_NAME))
+                rv.add(doc.getAnnotations(name));
+        return rv;
+    }
+
+    private static FeatureMap copy(FeatureMap features) {
+        final FeatureMap rv = Factory.newFeatureMap();
+        if (features != null)
+            rv.putAll(features);
+        return rv;
+    }
+}
@@ -1,91 +1,483 @@
 package co.zeroae.gate;
 
 import com.amazonaws.xray.AWSXRay;
-import com.jakewharton.disklrucache.DiskLruCache;
+import gate.Annotation;
+import gate.AnnotationSet;
 import gate.Document;
+import gate.Factory;
+import gate.creole.ExecutionInterruptedException;
 import gate.creole.ResourceInstantiationException;
 import gate.util.GateException;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
 import javax.xml.stream.XMLStreamException;
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.Objects;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A tiered Document cache: a size-weighted LRU of parsed Documents on the heap, in front of a {@link FileStore},
+ * in front of an optional remote {@link CacheStore} that every container shares.
+ * The heap tier shares its Documents with every caller, so callers must treat them as read-only and give them
+ * back with {@link #release(Document)} instead of deleting them.
+ * <p>
+ * The remote tier is only read on a disk miss, and its hits are written back to disk. It is written along
+ * with the disk tier, and its failures are misses.
+ * <p>
+ * Both tiers go through a {@link CacheAdmission} filter, so what we cache is what is looked up often or is
+ * expensive to compute, and the disk tier follows the free space of its file system.
+ */
 class DocumentLRUCache {
-    private static final int VERSION = 1;
-    private static final int VALUE_COUNT = 1;
+    /**
+     * The first byte of every entry, entries written in any other format are dropped on read.
+     * 2: the Document as GateXML encoded with FastInfoset.
+     * 3: a u8 {@link EntryCodec} id and the i32 length of the FastInfoset, then the FastInfoset encoded with it.
+     */
+    private static final int ENTRY_FORMAT = 3;
+    private static final int ENTRY_FORMAT_FASTINFOSET = 2;
+    private static final int ENTRY_HEADER_BYTES = 6;
 
     private static final Logger logger = LogManager.getLogger(DocumentLRUCache.class);
 
-    private final DiskLruCache cache;
+    private final File cacheDir;
+    private final FileStore disk;
+    private final CacheStore remote;
+    private final WeightedLRUCache<String, Document> heap;
+    private final CacheAdmission admission;
+    private final EntryCodec.Selector codecs;
 
-    DocumentLRUCache(String cacheDir, double maxUsage) {
-        cache = initializeCache(cacheDir, maxUsage);
+    private final CacheStats heapStats = new CacheStats();
+    private final CacheStats diskStats = new CacheStats();
+    private final CacheStats remoteStats = new CacheStats();
+
+    private final double maxUsage;
+    private final AtomicLong lastCapacityCheck = new AtomicLong(System.nanoTime());
+
+    private final long coalesceTimeoutMillis;
+    private final Map<String, CompletableFuture<Document>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong leaders = new AtomicLong();
+    private final AtomicLong followers = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Every Document the heap tier ever held, evicted ones may still be in use by the requests they were shared with.
+     */
+    private final Map<Document, Boolean> shared = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * The callers holding each Document a computeIfNull leader shared with its followers, outside the heap tier.
+     * The last one to release it deletes it.
+     */
+    private final Map<Document, AtomicInteger> borrowed = new ConcurrentHashMap<>();
+
+    /**
+     * @param cacheDir     the FileStore directory, it may be shared with other processes
+     * @param maxUsage     the fraction of the usable space in cacheDir for the disk tier
+     * @param maxHeapBytes the estimated heap budget for the heap tier
+     */
+    DocumentLRUCache(String cacheDir, double maxUsage, long maxHeapBytes) {
+        this(cacheDir, maxUsage, maxHeapBytes, 30000);
     }
 
-    private static DiskLruCache initializeCache(String cacheDir, double maxUsage) {
-        File cacheDirPath = new File(cacheDir);
-        if (!cacheDirPath.exists() && !cacheDirPath.mkdirs()) {
-            throw new RuntimeException("Unable to create cache directory '" + cacheDirPath.getName() + "'.");
-        }
-        for (File file : Objects.requireNonNull(cacheDirPath.listFiles())) file.delete();
+    /**
+     * @param cacheDir              the FileStore directory, it may be shared with other processes
+     * @param maxUsage              the fraction of the usable space in cacheDir for the disk tier
+     * @param maxHeapBytes          the estimated heap budget for the heap tier
+     * @param coalesceTimeoutMillis how long computeIfNull waits for another caller computing the same key
+     */
+    DocumentLRUCache(String cacheDir, double maxUsage, long maxHeapBytes, long coalesceTimeoutMillis) {
+        this(cacheDir, maxUsage, maxHeapBytes, coalesceTimeoutMillis, new CacheAdmission(1 << 16, 2, 1000000000L),
+                null, new EntryCodec.Selector(4096, 1 << 20));
+    }
+
+    /**
+     * @param cacheDir              the FileStore directory, it may be shared with other processes
+     * @param maxUsage              the fraction of the usable space in cacheDir for the disk tier
+     * @param maxHeapBytes          the estimated heap budget for the heap tier
+     * @param coalesceTimeoutMillis how long computeIfNull waits for another caller computing the same key
+     * @param admission             decides which Documents each tier keeps
+     * @param remote                the remote tier, or null for none
+     * @param codecs                chooses how each entry is compressed
+     */
+    DocumentLRUCache(
+            String cacheDir, double maxUsage, long maxHeapBytes, long coalesceTimeoutMillis,
+            CacheAdmission admission, CacheStore remote, EntryCodec.Selector codecs) {
+        this.coalesceTimeoutMillis = coalesceTimeoutMillis;
+        this.codecs = codecs;
+        this.admission = admission;
+        this.remote = remote;
+        this.maxUsage = maxUsage;
+        this.cacheDir = new File(cacheDir);
         try {
-            long usableSpace = (long) (cacheDirPath.getUsableSpace() * maxUsage);
-            return DiskLruCache.open(cacheDirPath, VERSION, VALUE_COUNT, usableSpace);
+            disk = new FileStore(this.cacheDir, Long.MAX_VALUE, diskStats::evicted);
+            // The usable space is only known once the directory exists.
+            disk.setMaxSize((long) (this.cacheDir.getUsableSpace() * maxUsage));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        heap = new WeightedLRUCache<>(maxHeapBytes, Utils::unregisterResource);
     }
 
+    /**
+     * Gets the Document, or computes and puts it. Concurrent callers with the same key compute it once,
+     * the first one computes while the others wait for it and then share its Document, read-only.
+     * A follower that times out, or comes too late to share it, reads the cache or computes the Document itself.
+     * The time the supplier takes is the cost the admission filter weighs.
+     *
+     * @param key      the cache key
+     * @param supplier computes the Document on a miss
+     * @return the Document, it must be given back with release.
+     * @throws GateException if the supplier failed, followers get the exception of the caller they waited for.
+     */
     public Document computeIfNull(String key, Utils.GATESupplier<Document> supplier) throws GateException {
         Document rv = get(key);
-        if (rv == null) {
-            rv = supplier.get();
-            put(key, rv);
+        if (rv != null)
+            return rv;
+
+        final CompletableFuture<Document> flight = new CompletableFuture<>();
+        final CompletableFuture<Document> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            followers.incrementAndGet();
+            rv = await(key, leader);
+            return rv != null ? rv : compute(key, supplier);
+        }
+
+        leaders.incrementAndGet();
+        try {
+            // The previous leader may have finished between our get and putIfAbsent.
+            rv = heap.get(key);
+            if (rv == null)
+                rv = compute(key, supplier);
+            if (!shared.containsKey(rv)) {
+                AnnotationSelection.prepare(rv);
+                borrowed.put(rv, new AtomicInteger(1));
+            }
+            flight.complete(rv);
+            return rv;
+        } catch (GateException | RuntimeException e) {
+            failures.incrementAndGet();
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
         }
+    }
+
+    private Document compute(String key, Utils.GATESupplier<Document> supplier) throws GateException {
+        final long start = System.nanoTime();
+        final Document rv = supplier.get();
+        put(key, rv, System.nanoTime() - start);
         return rv;
     }
 
+    /**
+     * @return the Document of the leader, the cached one if the leader released it already, or null if we timed out
+     * or it is not cached.
+     */
+    private Document await(String key, CompletableFuture<Document> leader) throws GateException {
+        AWSXRay.beginSubsegment("Cache Wait");
+        final Document rv;
+        try {
+            rv = leader.get(coalesceTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            timeouts.incrementAndGet();
+            AWSXRay.getCurrentSubsegment().putMetadata("Timeout", true);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionInterruptedException("Interrupted while waiting for " + key + ".");
+        } catch (ExecutionException e) {
+            AWSXRay.getCurrentSubsegment().addException(e.getCause());
+            if (e.getCause() instanceof GateException)
+                throw (GateException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw (Error) e.getCause();
+        } finally {
+            AWSXRay.endSubsegment();
+        }
+        return borrow(rv) ? rv : get(key);
+    }
+
+    /**
+     * @param doc the Document of a computeIfNull leader
+     * @return false if it was released by every caller holding it, and deleted.
+     */
+    private boolean borrow(Document doc) {
+        if (shared.containsKey(doc))
+            return true;
+        final AtomicInteger holders = borrowed.get(doc);
+        return holders != null && holders.getAndUpdate((count) -> count > 0 ? count + 1 : count) > 0;
+    }
+
+    /**
+     * @param key the cache key
+     * @return the cached Document or null, it must be given back with release.
+     */
     public Document get(String key) {
         AWSXRay.beginSubsegment("Cache Read");
+        admission.record(key);
         try {
-            final DiskLruCache.Snapshot snapshot = cache.get(key);
-            if (snapshot != null) {
-                AWSXRay.beginSubsegment("Deserialize");
-                try {
-                    return Utils.xmlToDocument(new InputStreamReader(snapshot.getInputStream(0)));
-                } catch (ResourceInstantiationException | XMLStreamException e) {
-                    logger.warn(e);
-                    AWSXRay.getCurrentSubsegment().addException(e);
-                    cache.remove(key);
+            final Document cached = heap.get(key);
+            if (cached != null) {
+                heapStats.hit();
+                AWSXRay.getCurrentSubsegment().putMetadata("Tier", "Heap");
+                return cached;
+            }
+            heapStats.miss();
+
+            final long start = System.nanoTime();
+            Document doc = read(disk, key);
+            if (doc != null) {
+                diskStats.hit();
+                AWSXRay.getCurrentSubsegment().putMetadata("Tier", "Disk");
+            } else {
+                diskStats.miss();
+                doc = remote != null ? read(remote, key) : null;
+                if (doc == null) {
+                    if (remote != null)
+                        remoteStats.miss();
+                    AWSXRay.getCurrentSubsegment().putMetadata("Tier", "None");
                     return null;
-                } finally {
-                    AWSXRay.endSubsegment();
                 }
-            } else
-                return null;
+                remoteStats.hit();
+                AWSXRay.getCurrentSubsegment().putMetadata("Tier", "Remote");
+            }
+
+            // Promote the hit, from now on the heap shares it. Reading it again is what a heap miss costs.
+            putInHeap(key, doc, estimateFootprint(doc), System.nanoTime() - start);
+            return doc;
+        } finally {
+            AWSXRay.endSubsegment();
+        }
+    }
+
+    /**
+     * Gives back a Document obtained from this cache, it is deleted unless the heap tier or another caller shares it.
+     *
+     * @param doc a Document from get, computeIfNull, or one that was put.
+     */
+    public void release(Document doc) {
+        if (shared.containsKey(doc))
+            return;
+        final AtomicInteger holders = borrowed.get(doc);
+        if (holders != null) {
+            if (holders.decrementAndGet() > 0)
+                return;
+            borrowed.remove(doc);
+        }
+        Factory.deleteResource(doc);
+    }
+
+    private void putInHeap(String key, Document doc, long weight, long cost) {
+        final boolean pressure = heap.getWeight() + weight > heap.getMaxWeight();
+        if (heap.fits(weight) && admission.admit(key, cost, pressure)) {
+            AnnotationSelection.prepare(doc);
+            shared.put(doc, Boolean.TRUE);
+            heapStats.evicted(heap.put(key, doc, weight));
+        }
+    }
+
+    /**
+     * @return the Document in the store, or null if it is not there or could not be read.
+     * Remote hits are written back to disk, unreadable entries are removed.
+     */
+    private Document read(CacheStore store, String key) {
+        final long start = System.nanoTime();
+        final byte[] entry;
+        try {
+            entry = store.get(key);
         } catch (IOException e) {
             logger.warn(e);
+            AWSXRay.getCurrentSubsegment().addException(e);
+            return null;
+        }
+        if (entry == null)
+            return null;
+
+        AWSXRay.beginSubsegment("Deserialize");
+        try {
+            final Document rv = Utils.fastInfosetToDocument(decode(key, entry));
+            if (store == disk)
+                admission.read(estimateFootprint(rv), entry.length, System.nanoTime() - start);
+            else
+                write(disk, key, entry);
+            return rv;
+        } catch (ResourceInstantiationException | XMLStreamException | IOException | RuntimeException e) {
+            // A corrupt entry can fail anywhere in the parser, it is a miss all the same.
+            logger.warn(e);
+            AWSXRay.getCurrentSubsegment().addException(e);
+            store.remove(key);
             return null;
         } finally {
             AWSXRay.endSubsegment();
         }
     }
 
+    /**
+     * @return the entry of the Document, compressed with the codec its size calls for.
+     */
+    private byte[] encode(Document doc) throws XMLStreamException, IOException {
+        final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        Utils.documentToFastInfoset(doc, raw);
+        final byte[] fastInfoset = raw.toByteArray();
+        if (fastInfoset.length > EntryCodec.MAX_RAW_BYTES)
+            throw new IOException("The Document is too large to cache, " + fastInfoset.length + " bytes.");
+        final EntryCodec codec = codecs.choose(fastInfoset.length);
+        final byte[] encoded = codec.encode(fastInfoset);
+
+        final ByteArrayOutputStream rv = new ByteArrayOutputStream(ENTRY_HEADER_BYTES + encoded.length);
+        final DataOutputStream out = new DataOutputStream(rv);
+        out.writeByte(ENTRY_FORMAT);
+        out.writeByte(codec.id);
+        out.writeInt(fastInfoset.length);
+        out.write(encoded);
+        AWSXRay.getCurrentSubsegment().putMetadata("Codec", codec.name);
+        return rv.toByteArray();
+    }
+
+    /**
+     * @return the FastInfoset of the entry, the entries of the previous format included.
+     */
+    private static InputStream decode(String key, byte[] entry) throws IOException {
+        if (entry.length > 0 && entry[0] == ENTRY_FORMAT_FASTINFOSET)
+            return new ByteArrayInputStream(entry, 1, entry.length - 1);
+        if (entry.length < ENTRY_HEADER_BYTES || entry[0] != ENTRY_FORMAT)
+            throw new IOException("Unsupported cache entry format " +
+                    (entry.length > 0 ? entry[0] : -1) + " for " + key);
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry, 1, ENTRY_HEADER_BYTES - 1));
+        final EntryCodec codec = EntryCodec.byId(in.readUnsignedByte());
+        final int rawLength = in.readInt();
+        if (codec == EntryCodec.NONE)
+            return new ByteArrayInputStream(entry, ENTRY_HEADER_BYTES, entry.length - ENTRY_HEADER_BYTES);
+        return new ByteArrayInputStream(
+                codec.decode(entry, ENTRY_HEADER_BYTES, entry.length - ENTRY_HEADER_BYTES, rawLength));
+    }
+
+    private static void write(CacheStore store, String key, byte[] entry) {
+        try {
+            store.put(key, entry);
+        } catch (IOException e) {
+            logger.warn(e);
+            AWSXRay.getCurrentSubsegment().addException(e);
+        }
+    }
+
+    /**
+     * Puts a Document whose cost we do not know, both tiers admit it unless they are full.
+     *
+     * @param key the cache key
+     * @param doc the Document, it must be given back with release.
+     */
     public void put(String key, Document doc) {
+        put(key, doc, CacheAdmission.UNKNOWN_COST);
+    }
+
+    /**
+     * @param key  the cache key
+     * @param doc  the Document, it must be given back with release.
+     * @param cost the nanoseconds it took to compute the Document
+     */
+    public void put(String key, Document doc, long cost) {
         AWSXRay.beginSubsegment("Cache Edit");
         try {
-            DiskLruCache.Editor editor = cache.edit(key);
-            editor.set(0, doc.toXml());
-            editor.commit();
-        } catch (IOException e) {
+            final long footprint = estimateFootprint(doc);
+            putInHeap(key, doc, footprint, cost);
+            adaptCapacity();
+
+            final boolean pressure = disk.size() + footprint > disk.getMaxSize();
+            if (!admission.admit(key, cost, pressure) || !admission.worthWriting(cost, footprint)) {
+                AWSXRay.getCurrentSubsegment().putMetadata("Admitted", false);
+                return;
+            }
+            final long start = System.nanoTime();
+            final byte[] bytes = encode(doc);
+            write(disk, key, bytes);
+            admission.wrote(footprint, bytes.length, System.nanoTime() - start);
+            if (remote != null)
+                write(remote, key, bytes);
+            // Only the counters we already keep, getStats is for the end of the request.
+            AWSXRay.getCurrentSubsegment().putMetadata("HeapBytes", heap.getWeight());
+            AWSXRay.getCurrentSubsegment().putMetadata("DiskBytes", disk.size());
+        } catch (XMLStreamException | IOException e) {
             logger.warn(e);
             AWSXRay.getCurrentSubsegment().addException(e);
         } finally {
             AWSXRay.endSubsegment();
         }
     }
+
+    /**
+     * Other users of the cache directory's file system come and go, so once a minute the disk tier is
+     * resized to maxUsage of the space it could use: the usable space plus what it already holds.
+     */
+    private void adaptCapacity() {
+        final long last = lastCapacityCheck.get();
+        final long now = System.nanoTime();
+        if (now - last < TimeUnit.MINUTES.toNanos(1) || !lastCapacityCheck.compareAndSet(last, now))
+            return;
+        final long maxSize = (long) ((cacheDir.getUsableSpace() + disk.size()) * maxUsage);
+        if (maxSize != disk.getMaxSize()) {
+            disk.setMaxSize(maxSize);
+            AWSXRay.getCurrentSubsegment().putMetadata("MaxSize", maxSize);
+        }
+    }
+
+    /**
+     * The disk entries, bytes and evictions are those of the last FileStore sweep, the other processes sharing
+     * the directory included.
+     *
+     * @return the hit, miss and eviction counts of every tier, the admission and disk byte counts,
+     * and the computeIfNull coalescing counts.
+     */
+    public Map<String, Object> getStats() {
+        final Map<String, Object> heapMap = heapStats.asMap();
+        heapMap.put("entries", heap.size());
+        heapMap.put("bytes", heap.getWeight());
+        heapMap.put("maxBytes", heap.getMaxWeight());
+        final Map<String, Object> diskMap = diskStats.asMap();
+        diskMap.putAll(disk.getStats());
+
+        final Map<String, Object> coalescing = new LinkedHashMap<>();
+        coalescing.put("leaders", leaders.get());
+        coalescing.put("followers", followers.get());
+        coalescing.put("timeouts", timeouts.get());
+        coalescing.put("failures", failures.get());
+        coalescing.put("inFlight", inFlight.size());
+
+        final Map<String, Object> rv = new LinkedHashMap<>();
+        rv.put("heap", heapMap);
+        rv.put("disk", diskMap);
+        if (remote != null) {
+            final Map<String, Object> remoteMap = remoteStats.asMap();
+            remoteMap.putAll(remote.getStats());
+            rv.put("remote", remoteMap);
+        }
+        rv.put("admission", admission.asMap());
+        rv.put("coalescing", coalescing);
+        return rv;
+    }
+
+    /**
+     * @param doc a Document
+     * @return a rough estimate of the heap used by the content and annotations of the Document.
+     */
+    static long estimateFootprint(Document doc) {
+        long rv = 512 + 2 * doc.getContent().size();
+        rv += estimateFootprint(doc.getAnnotations());
+        for (String name : doc.getAnnotationSetNames())
+            rv += estimateFootprint(doc.getAnnotations(name));
+        return rv;
+    }
+
+    private static long estimateFootprint(AnnotationSet annotations) {
+        long rv = 256;
+        for (Annotation annotation : annotations)
+            rv += 192 + 96 * annotation.getFeatures().size();
+        return rv;
+    }
 }
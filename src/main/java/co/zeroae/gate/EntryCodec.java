@@ -0,0 +1,198 @@
+package co.zeroae.gate;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the serialized cache entries. The id of the codec goes in the entry header, so every reader
+ * decodes every entry whatever the writer chose.
+ * <ul>
+ *     <li>{@link #NONE}, for entries too small to be worth it.</li>
+ *     <li>{@link #LZ4}, fast both ways, for most entries.</li>
+ *     <li>{@link #DEFLATE}, a better ratio, for the large entries that take up most of the disk.</li>
+ * </ul>
+ */
+abstract class EntryCodec {
+    /**
+     * The largest serialized Document an entry holds, a corrupt header must not make a reader allocate more.
+     */
+    static final int MAX_RAW_BYTES = 256 << 20;
+
+    static final EntryCodec NONE = new EntryCodec(0, "none") {
+        @Override
+        byte[] encode(byte[] raw) {
+            return raw;
+        }
+
+        @Override
+        byte[] decode(byte[] entry, int offset, int length, int rawLength) throws IOException {
+            if (length != rawLength)
+                throw new IOException("Expected " + rawLength + " bytes, got " + length + ".");
+            return Arrays.copyOfRange(entry, offset, offset + length);
+        }
+    };
+
+    static final EntryCodec LZ4 = new EntryCodec(1, "lz4") {
+        private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+        private final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+        @Override
+        byte[] encode(byte[] raw) {
+            return compressor.compress(raw);
+        }
+
+        @Override
+        byte[] decode(byte[] entry, int offset, int length, int rawLength) throws IOException {
+            try {
+                final byte[] rv = allocate(rawLength);
+                if (decompressor.decompress(entry, offset, rv, 0, rawLength) != length)
+                    throw new IOException("Corrupt LZ4 entry.");
+                return rv;
+            } catch (LZ4Exception e) {
+                throw new IOException(e);
+            }
+        }
+    };
+
+    static final EntryCodec DEFLATE = new EntryCodec(2, "deflate") {
+        @Override
+        byte[] encode(byte[] raw) {
+            final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+            try {
+                deflater.setInput(raw);
+                deflater.finish();
+                final ByteArrayOutputStream rv = new ByteArrayOutputStream(raw.length / 4 + 64);
+                final byte[] buffer = new byte[8192];
+                while (!deflater.finished())
+                    rv.write(buffer, 0, deflater.deflate(buffer));
+                return rv.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        byte[] decode(byte[] entry, int offset, int length, int rawLength) throws IOException {
+            final Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(entry, offset, length);
+                final byte[] rv = allocate(rawLength);
+                int read = 0;
+                while (read < rawLength && !inflater.finished()) {
+                    final int n = inflater.inflate(rv, read, rawLength - read);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    read += n;
+                }
+                if (read != rawLength)
+                    throw new IOException("Expected " + rawLength + " bytes, inflated " + read + ".");
+                return rv;
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            } finally {
+                inflater.end();
+            }
+        }
+    };
+
+    private static final EntryCodec[] CODECS = {NONE, LZ4, DEFLATE};
+
+    final int id;
+    final String name;
+
+    private EntryCodec(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    /**
+     * @param raw the serialized Document
+     * @return the encoded bytes.
+     */
+    abstract byte[] encode(byte[] raw);
+
+    /**
+     * @param entry     the bytes holding the encoded Document
+     * @param offset    where it starts
+     * @param length    its encoded length
+     * @param rawLength its decoded length, from the entry header
+     * @return the serialized Document.
+     * @throws IOException if the entry is corrupt.
+     */
+    abstract byte[] decode(byte[] entry, int offset, int length, int rawLength) throws IOException;
+
+    /**
+     * @param rawLength a decoded length from an entry header
+     * @return a buffer of that length.
+     * @throws IOException if the length is out of bounds, the entry is corrupt.
+     */
+    static byte[] allocate(int rawLength) throws IOException {
+        if (rawLength < 0 || rawLength > MAX_RAW_BYTES)
+            throw new IOException("Invalid decoded length " + rawLength + ".");
+        return new byte[rawLength];
+    }
+
+    /**
+     * @param id a codec id from an entry header
+     * @return the codec.
+     * @throws IOException if the codec is unknown, the entry comes from a newer version.
+     */
+    static EntryCodec byId(int id) throws IOException {
+        if (id < 0 || id >= CODECS.length)
+            throw new IOException("Unknown cache entry codec " + id + ".");
+        return CODECS[id];
+    }
+
+    /**
+     * @param name none, lz4 or deflate
+     * @return the codec.
+     */
+    static EntryCodec byName(String name) {
+        for (EntryCodec codec : CODECS)
+            if (codec.name.equalsIgnoreCase(name))
+                return codec;
+        throw new IllegalArgumentException("Unknown cache entry codec '" + name + "'.");
+    }
+
+    /**
+     * Chooses the codec of each entry by its serialized size.
+     */
+    static class Selector {
+        private final int lz4MinBytes;
+        private final int deflateMinBytes;
+
+        /**
+         * @param lz4MinBytes     entries this large or larger are compressed with LZ4
+         * @param deflateMinBytes entries this large or larger are compressed with DEFLATE instead
+         */
+        Selector(int lz4MinBytes, int deflateMinBytes) {
+            this.lz4MinBytes = lz4MinBytes;
+            this.deflateMinBytes = deflateMinBytes;
+        }
+
+        /**
+         * @param codec the codec of every entry
+         * @return a Selector that always chooses it.
+         */
+        static Selector always(EntryCodec codec) {
+            if (codec == NONE)
+                return new Selector(Integer.MAX_VALUE, Integer.MAX_VALUE);
+            return codec == LZ4 ? new Selector(0, Integer.MAX_VALUE) : new Selector(0, 0);
+        }
+
+        EntryCodec choose(int rawLength) {
+            if (rawLength >= deflateMinBytes)
+                return DEFLATE;
+            return rawLength >= lz4MinBytes ? LZ4 : NONE;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package co.zeroae.gate;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.regex.Pattern;
+
+/**
+ * A size-bounded directory of cache entries that any number of processes can share, and that outlives them.
+ * <pre>
+ *     ab/abcdef...             an entry, in a shard named after the first two characters of its key
+ *     ab/abcdef....lock        the write lock of the entry, created exclusively by its writer
+ *     ab/abcdef....&lt;id&gt;.tmp    the entry being written
+ *     .sweep.lock              held by the process evicting entries
+ * </pre>
+ * Entries are published with an atomic rename, readers see either the previous entry or the complete new one.
+ * Reads bump the modification time, and whichever process gets the sweep lock evicts the least recently used
+ * entries of every process once the directory grows past its maximum size.
+ */
+class FileStore implements CacheStore {
+    private static final Logger logger = LogManager.getLogger(FileStore.class);
+    private static final Pattern KEY = Pattern.compile("[A-Za-z0-9_.-]{2,200}");
+    private static final String LOCK = ".lock";
+    private static final String TMP = ".tmp";
+    private static final long STALE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final long SWEEP_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final File dir;
+    private final Path sweepLock;
+    private final LongConsumer onEviction;
+    private volatile long maxSize;
+
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong entries = new AtomicLong();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime() - SWEEP_NANOS);
+
+    /**
+     * Opens the directory as it is, the entries of previous and concurrent processes are kept.
+     *
+     * @param dir        the cache directory, it is created if missing
+     * @param maxSize    the size the entries are trimmed to
+     * @param onEviction called with the number of entries each sweep of this process evicts
+     * @throws IOException if the directory could not be created.
+     */
+    FileStore(File dir, long maxSize, LongConsumer onEviction) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+            throw new IOException("Unable to create cache directory '" + dir + "'.");
+        this.dir = dir;
+        this.sweepLock = new File(dir, ".sweep.lock").toPath();
+        this.maxSize = maxSize;
+        this.onEviction = onEviction;
+        // Learn the size of what is already there, in the background, it is not on the cold start path.
+        sweepAsync();
+    }
+
+    /**
+     * The write side of an entry, it holds the entry's write lock until it is committed or aborted.
+     */
+    class Editor {
+        private final File target;
+        private final File lock;
+        private final File tmp;
+
+        private Editor(File target, File lock) {
+            this.target = target;
+            this.lock = lock;
+            this.tmp = new File(target.getPath() + "." + UUID.randomUUID() + TMP);
+        }
+
+        OutputStream newOutputStream() throws IOException {
+            return new FileOutputStream(tmp);
+        }
+
+        /**
+         * Publishes the entry, replacing the previous one.
+         *
+         * @return the size of the entry.
+         */
+        long commit() throws IOException {
+            final long length = tmp.length();
+            // The entry it replaces, if any, leaves the store with the move.
+            final long replaced = target.length();
+            final boolean existed = replaced > 0 || target.exists();
+            try {
+                Files.move(tmp.toPath(), target.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+            unlock();
+            if (!existed)
+                entries.incrementAndGet();
+            if (size.addAndGet(length - replaced) > maxSize || System.nanoTime() - lastSweep.get() > SWEEP_NANOS)
+                sweepAsync();
+            return length;
+        }
+
+        void abort() {
+            if (!tmp.delete() && tmp.exists())
+                logger.warn("Unable to delete " + tmp);
+            unlock();
+        }
+
+        private void unlock() {
+            if (!lock.delete() && lock.exists())
+                logger.warn("Unable to delete " + lock);
+        }
+    }
+
+    /**
+     * Reads the entry whole, later writes and evictions do not affect a read in progress.
+     */
+    @Override
+    public byte[] get(String key) throws IOException {
+        final File file = file(key);
+        try {
+            final byte[] rv = Files.readAllBytes(file.toPath());
+            file.setLastModified(System.currentTimeMillis());
+            return rv;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void put(String key, byte[] entry) throws IOException {
+        final Editor editor = edit(key);
+        if (editor == null)
+            return;
+        try (OutputStream out = editor.newOutputStream()) {
+            out.write(entry);
+        } catch (IOException e) {
+            editor.abort();
+            throw e;
+        }
+        editor.commit();
+    }
+
+    /**
+     * @param key the entry key
+     * @return an Editor, or null if another thread or process is writing the same entry.
+     * @throws IOException if the entry could not be created.
+     */
+    Editor edit(String key) throws IOException {
+        final File target = file(key);
+        final File lock = new File(target.getPath() + LOCK);
+        final File shard = target.getParentFile();
+        if (!shard.isDirectory() && !shard.mkdirs() && !shard.isDirectory())
+            throw new IOException("Unable to create cache shard '" + shard + "'.");
+        try {
+            Files.createFile(lock.toPath());
+        } catch (FileAlreadyExistsException e) {
+            // A writer that died mid-edit leaves its lock behind, we take over once it is stale.
+            // Every writer has its own temporary file, so the worst a race here does is write the entry twice.
+            if (System.currentTimeMillis() - lock.lastModified() < STALE_MILLIS || !lock.delete())
+                return null;
+            try {
+                Files.createFile(lock.toPath());
+            } catch (FileAlreadyExistsException ignored) {
+                return null;
+            }
+        }
+        return new Editor(target, lock);
+    }
+
+    /**
+     * @param key the entry key
+     * @return true if the entry was removed.
+     */
+    @Override
+    public boolean remove(String key) {
+        final File file = file(key);
+        final long length = file.length();
+        if (!file.delete())
+            return false;
+        entries.decrementAndGet();
+        size.addAndGet(-length);
+        return true;
+    }
+
+    /**
+     * @return the size of the entries as of the last sweep, plus what this process wrote since.
+     */
+    long size() {
+        return size.get();
+    }
+
+    long entryCount() {
+        return entries.get();
+    }
+
+    long getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        final Map<String, Object> rv = new LinkedHashMap<>();
+        rv.put("entries", entryCount());
+        rv.put("bytes", size());
+        rv.put("maxBytes", getMaxSize());
+        return rv;
+    }
+
+    void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        if (size.get() > maxSize)
+            sweepAsync();
+    }
+
+    private File file(String key) {
+        if (!KEY.matcher(key).matches())
+            throw new IllegalArgumentException("Invalid cache key '" + key + "'.");
+        return new File(new File(dir, key.substring(0, 2)), key);
+    }
+
+    private void sweepAsync() {
+        if (!sweeping.compareAndSet(false, true))
+            return;
+        final Thread sweeper = new Thread(() -> {
+            try {
+                sweep();
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Unable to sweep " + dir, e);
+            } finally {
+                sweeping.set(false);
+            }
+        }, "cache-sweeper");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    /**
+     * Measures every entry, deletes stale temporary and lock files, and evicts the least recently used entries down to
+     * 90% of the maximum size. Only one process sweeps at a time, the others skip it.
+     */
+    void sweep() throws IOException {
+        lastSweep.set(System.nanoTime());
+        try (FileChannel channel = FileChannel.open(sweepLock, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = channel.tryLock()) {
+            if (lock == null)
+                return;
+            final List<File> files = new ArrayList<>();
+            final long now = System.currentTimeMillis();
+            final File[] shards = dir.listFiles((file) -> file.isDirectory() && file.getName().length() == 2);
+            for (File shard : shards != null ? shards : new File[0]) {
+                final File[] shardFiles = shard.listFiles();
+                for (File file : shardFiles != null ? shardFiles : new File[0]) {
+                    if (!file.getName().endsWith(TMP) && !file.getName().endsWith(LOCK))
+                        files.add(file);
+                    else if (now - file.lastModified() > STALE_MILLIS)
+                        file.delete();
+                }
+            }
+
+            // Snapshot the attributes, other processes touch them while we sort.
+            final Map<File, long[]> attributes = new HashMap<>();
+            long total = 0;
+            for (File file : files) {
+                final long[] lengthAndTime = {file.length(), file.lastModified()};
+                attributes.put(file, lengthAndTime);
+                total += lengthAndTime[0];
+            }
+            long count = files.size();
+            long evicted = 0;
+            if (total > maxSize) {
+                files.sort(Comparator.comparingLong((file) -> attributes.get(file)[1]));
+                final long target = (long) (maxSize * .9);
+                for (Iterator<File> it = files.iterator(); total > target && it.hasNext(); ) {
+                    final File file = it.next();
+                    if (file.delete()) {
+                        total -= attributes.get(file)[0];
+                        count--;
+                        evicted++;
+                    }
+                }
+            }
+            size.set(total);
+            entries.set(count);
+            if (evicted > 0)
+                onEviction.accept(evicted);
+        } catch (OverlappingFileLockException e) {
+            // Another thread of this process is sweeping.
+        }
+    }
+}
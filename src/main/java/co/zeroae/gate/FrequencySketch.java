@@ -0,0 +1,84 @@
+package co.zeroae.gate;
+
+/**
+ * A count-min sketch of 4-bit counters that estimates how often each key was seen recently, as in TinyLFU.
+ * Every counter is halved once the sketch has counted ten times its width, so old popularity fades away.
+ */
+class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97CB3127, 0xB4B82E1D, 0x9E3779B9, 0x7F4A7C15};
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /**
+     * @param width the expected number of distinct keys, rounded up to a power of two
+     */
+    FrequencySketch(int width) {
+        final int counters = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+        table = new long[counters / 16 * DEPTH];
+        mask = counters / 16 - 1;
+        sampleSize = 10 * counters;
+    }
+
+    /**
+     * Counts one more sighting of the key.
+     *
+     * @param key the key
+     */
+    synchronized void increment(Object key) {
+        final int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++) {
+            final int index = index(hash, row);
+            final int shift = shift(hash, row);
+            if (((table[index] >>> shift) & MAX_COUNT) < MAX_COUNT) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize)
+            reset();
+    }
+
+    /**
+     * @param key the key
+     * @return the estimated number of recent sightings of the key, at most 15.
+     */
+    synchronized int frequency(Object key) {
+        final int hash = spread(key.hashCode());
+        int rv = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++)
+            rv = Math.min(rv, (int) ((table[index(hash, row)] >>> shift(hash, row)) & MAX_COUNT));
+        return rv;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+        additions /= 2;
+    }
+
+    /**
+     * @return the word of the row that holds the counter of the hash.
+     */
+    private int index(int hash, int row) {
+        final int h = (hash ^ SEEDS[row]) * SEEDS[row];
+        return row * (mask + 1) + ((h >>> 16) & mask);
+    }
+
+    /**
+     * @return the position of the counter of the hash inside its word.
+     */
+    private static int shift(int hash, int row) {
+        return ((hash >>> (row * 4)) & 15) << 2;
+    }
+
+    private static int spread(int hash) {
+        hash = (hash ^ (hash >>> 16)) * 0x45D9F3B;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,36 @@
+package co.zeroae.gate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A ResultSink on the local filesystem, results are published atomically so readers never see partial files.
+ */
+class LocalResultSink implements ResultSink {
+    private final Path directory;
+
+    LocalResultSink(Path directory) {
+        this.directory = directory.toAbsolutePath().normalize();
+    }
+
+    @Override
+    public void write(String name, String contentType, byte[] content) throws IOException {
+        final Path target = directory.resolve(name).normalize();
+        if (!target.startsWith(directory))
+            throw new IOException("Result name '" + name + "' escapes the sink directory.");
+        Files.createDirectories(target.getParent());
+        final Path temp = Files.createTempFile(target.getParent(), ".result", ".tmp");
+        try {
+            Files.write(temp, content);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+}
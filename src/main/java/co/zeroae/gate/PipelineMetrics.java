@@ -0,0 +1,285 @@
+package co.zeroae.gate;
+
+import com.amazonaws.xray.AWSXRay;
+import com.amazonaws.xray.entities.Subsegment;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import gate.*;
+import gate.creole.*;
+import gate.util.Benchmark;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Runs the PRs of a serial corpus controller, conditional or not, the way it does, measuring each PR on each Document:
+ * latency, document size, annotations produced and bytes allocated by the thread.
+ * Each PR still runs through the runComponent of the controller, so its run strategy, progress and status listeners
+ * and benchmarks are those of a plain execute, and interrupting the controller stops it between PRs.
+ * <p>
+ * The measurements go out as one CloudWatch Embedded Metric Format line per PR and execution, through the
+ * {@value #LOGGER} logger, with one value per Document so CloudWatch builds the latency percentiles.
+ * Each PR can also get its own X-Ray subsegment. Other controllers run as they are, without measurements.
+ */
+class PipelineMetrics {
+    static final String LOGGER = "co.zeroae.gate.metrics";
+
+    private static final Logger logger = LoggerFactory.getLogger(PipelineMetrics.class);
+    private static final Logger metricsLogger = LoggerFactory.getLogger(LOGGER);
+    private static final com.sun.management.ThreadMXBean threadMXBean = threadMXBean();
+    private static final Method runComponent = serialControllerMember(() -> {
+        final Method rv = SerialController.class.getDeclaredMethod("runComponent", int.class);
+        rv.setAccessible(true);
+        return rv;
+    });
+    private static final Field interrupted = serialControllerMember(() -> {
+        final Field rv = AbstractController.class.getDeclaredField("interrupted");
+        rv.setAccessible(true);
+        return rv;
+    });
+
+    private final String application;
+    private final String namespace;
+    private final boolean emit;
+    private final boolean trace;
+    private final Consumer<String> sink;
+
+    /**
+     * @param application the Application dimension of the metrics
+     * @param namespace   the CloudWatch namespace
+     * @param emit        true to write the EMF lines
+     * @param trace       true to add one X-Ray subsegment per PR and Document
+     */
+    PipelineMetrics(String application, String namespace, boolean emit, boolean trace) {
+        this(application, namespace, emit, trace, metricsLogger::info);
+    }
+
+    /**
+     * @param sink where the EMF lines go
+     * @see #PipelineMetrics(String, String, boolean, boolean)
+     */
+    PipelineMetrics(String application, String namespace, boolean emit, boolean trace, Consumer<String> sink) {
+        this.application = application;
+        this.namespace = namespace;
+        this.emit = emit;
+        this.trace = trace;
+        this.sink = sink;
+    }
+
+    @FunctionalInterface
+    private interface Member<T> {
+        T get() throws ReflectiveOperationException;
+    }
+
+    /**
+     * The controllers only expose what we need to their subclasses, so we reach for it the way
+     * ApplicationSnapshot reaches for the grammar of a Transducer.
+     *
+     * @return the member, or null if this version of GATE does not have it.
+     */
+    private static <T> T serialControllerMember(Member<T> member) {
+        try {
+            return member.get();
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.warn("Unable to reach a member of the GATE controllers, measured PRs run on their own.", e);
+            return null;
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        final java.lang.management.ThreadMXBean rv = ManagementFactory.getThreadMXBean();
+        if (rv instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) rv).isThreadAllocatedMemorySupported())
+            return (com.sun.management.ThreadMXBean) rv;
+        return null;
+    }
+
+    /**
+     * The samples of one PR during one execution, one per Document.
+     */
+    private static class Samples {
+        final List<Double> latency = new ArrayList<>();
+        final List<Long> documentSize = new ArrayList<>();
+        final List<Long> annotations = new ArrayList<>();
+        final List<Long> allocatedBytes = new ArrayList<>();
+    }
+
+    /**
+     * Executes the controller over its Corpus.
+     *
+     * @param controller a controller checked out for the exclusive use of the caller
+     * @throws ExecutionException if any PR fails.
+     */
+    void execute(CorpusController controller) throws ExecutionException {
+        if ((!emit && !trace) || !(controller instanceof SerialController) || controller.getCorpus() == null) {
+            controller.execute();
+            return;
+        }
+        final SerialController serial = (SerialController) controller;
+        final List<ProcessingResource> prs = new ArrayList<>(serial.getPRs());
+        final List<RunningStrategy> strategies = controller instanceof ConditionalController ?
+                new ArrayList<>(((ConditionalController) controller).getRunningStrategies()) : null;
+        final Corpus corpus = controller.getCorpus();
+        final Map<ProcessingResource, Samples> samples = new LinkedHashMap<>();
+
+        for (ProcessingResource pr : prs)
+            if (pr instanceof ControllerAwarePR)
+                ((ControllerAwarePR) pr).controllerExecutionStarted(controller);
+        try {
+            if (Benchmark.isBenchmarkingEnabled())
+                Benchmark.startPoint(serial.getBenchmarkId());
+            resetInterrupted(serial);
+            for (Document doc : new ArrayList<>(corpus)) {
+                checkInterrupted(serial);
+                for (ProcessingResource pr : prs) {
+                    if (pr instanceof LanguageAnalyser) {
+                        ((LanguageAnalyser) pr).setCorpus(corpus);
+                        ((LanguageAnalyser) pr).setDocument(doc);
+                    }
+                }
+                for (int i = 0; i < prs.size(); i++) {
+                    checkInterrupted(serial);
+                    if (strategies != null && !strategies.get(i).shouldRun())
+                        continue;
+                    run(serial, i, doc, samples.computeIfAbsent(prs.get(i), (key) -> new Samples()));
+                }
+                checkInterrupted(serial);
+            }
+            for (ProcessingResource pr : prs)
+                if (pr instanceof ControllerAwarePR)
+                    ((ControllerAwarePR) pr).controllerExecutionFinished(controller);
+        } catch (ExecutionException | RuntimeException e) {
+            for (ProcessingResource pr : prs)
+                if (pr instanceof ControllerAwarePR)
+                    ((ControllerAwarePR) pr).controllerExecutionAborted(controller, e);
+            throw e;
+        } finally {
+            for (ProcessingResource pr : prs) {
+                if (pr instanceof LanguageAnalyser) {
+                    ((LanguageAnalyser) pr).setDocument(null);
+                    ((LanguageAnalyser) pr).setCorpus(null);
+                }
+            }
+        }
+        if (emit)
+            samples.forEach(this::emit);
+    }
+
+    /**
+     * Starts a new execution, as the executeImpl of the controller does.
+     */
+    private static void resetInterrupted(SerialController controller) {
+        if (interrupted == null)
+            return;
+        try {
+            synchronized (controller) {
+                interrupted.setBoolean(controller, false);
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void checkInterrupted(SerialController controller) throws ExecutionInterruptedException {
+        if (controller.isInterrupted())
+            throw new ExecutionInterruptedException(
+                    "The execution of the " + controller.getName() + " application has been abruptly interrupted!");
+    }
+
+    /**
+     * Runs the PR at index through the controller, with the listeners and benchmark id it gives every PR.
+     */
+    private static void runComponent(SerialController controller, int index) throws ExecutionException {
+        if (runComponent == null) {
+            controller.getPRs().get(index).execute();
+            return;
+        }
+        try {
+            runComponent.invoke(controller, index);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof ExecutionException)
+                throw (ExecutionException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw (Error) e.getCause();
+        }
+    }
+
+    private void run(SerialController controller, int index, Document doc, Samples samples)
+            throws ExecutionException {
+        final ProcessingResource pr = controller.getPRs().get(index);
+        final Subsegment subsegment = trace ? AWSXRay.beginSubsegment(pr.getName()) : null;
+        final long threadId = Thread.currentThread().getId();
+        final long annotationsBefore = countAnnotations(doc);
+        final long allocatedBefore = threadMXBean != null ? threadMXBean.getThreadAllocatedBytes(threadId) : 0;
+        final long start = System.nanoTime();
+        try {
+            runComponent(controller, index);
+        } catch (ExecutionException | RuntimeException e) {
+            if (subsegment != null)
+                subsegment.addException(e);
+            throw e;
+        } finally {
+            final long elapsed = System.nanoTime() - start;
+            final long allocated = threadMXBean != null ?
+                    threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore : 0;
+            samples.latency.add(elapsed / 1e6);
+            samples.documentSize.add(doc.getContent().size());
+            samples.annotations.add(countAnnotations(doc) - annotationsBefore);
+            samples.allocatedBytes.add(allocated);
+            if (subsegment != null) {
+                subsegment.putMetadata("AllocatedBytes", allocated);
+                AWSXRay.endSubsegment();
+            }
+        }
+    }
+
+    private static long countAnnotations(Document doc) {
+        long rv = doc.getAnnotations().size();
+        for (String name : doc.getAnnotationSetNames())
+            rv += doc.getAnnotations(name).size();
+        return rv;
+    }
+
+    private void emit(ProcessingResource pr, Samples samples) {
+        final Map<String, Object> directive = new LinkedHashMap<>();
+        directive.put("Namespace", namespace);
+        directive.put("Dimensions", Collections.singletonList(Arrays.asList("Application", "PR")));
+        directive.put("Metrics", Arrays.asList(
+                metric("Latency", "Milliseconds"),
+                metric("DocumentSize", "Count"),
+                metric("Annotations", "Count"),
+                metric("AllocatedBytes", "Bytes")));
+        final Map<String, Object> aws = new LinkedHashMap<>();
+        aws.put("Timestamp", System.currentTimeMillis());
+        aws.put("CloudWatchMetrics", Collections.singletonList(directive));
+
+        final Map<String, Object> rv = new LinkedHashMap<>();
+        rv.put("_aws", aws);
+        rv.put("Application", application);
+        rv.put("PR", pr.getName());
+        rv.put("Latency", samples.latency);
+        rv.put("DocumentSize", samples.documentSize);
+        rv.put("Annotations", samples.annotations);
+        rv.put("AllocatedBytes", samples.allocatedBytes);
+        try {
+            sink.accept(Utils.objectMapper.writeValueAsString(rv));
+        } catch (JsonProcessingException e) {
+            logger.warn("Unable to write the metrics of " + pr.getName(), e);
+        }
+    }
+
+    private static Map<String, String> metric(String name, String unit) {
+        final Map<String, String> rv = new LinkedHashMap<>();
+        rv.put("Name", name);
+        rv.put("Unit", unit);
+        return rv;
+    }
+}
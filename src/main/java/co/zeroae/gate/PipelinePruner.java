@@ -0,0 +1,359 @@
+package co.zeroae.gate;
+
+import gate.*;
+import gate.creole.*;
+import gate.util.GateException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Plans which processing resources of the application an annotation selector actually needs.
+ * <p>
+ * What each PR produces is learned once, by running a profile document through the PRs one by one and recording
+ * the annotation types each of them creates, changes or removes. PRs may also declare it with the
+ * {@value #OUTPUTS_FEATURE} and {@value #INPUTS_FEATURE} features, comma separated "SetName:Type" lists.
+ * A PR runs when it produces a selected type, and every PR before it runs too unless it declares its inputs.
+ * Selected types nobody was seen producing may depend on the content, so they always get the whole pipeline.
+ * A PR that changed nothing on the profile runs when a later PR runs, or when the selected types exist before it.
+ * <p>
+ * The PRs of a ConditionalController that never run are not profiled, and produce nothing. The conditional ones
+ * are profiled as if they ran, what they produce when they do run is what the plans need to know.
+ */
+class PipelinePruner {
+    static final String OUTPUTS_FEATURE = "zae.gate.outputs";
+    static final String INPUTS_FEATURE = "zae.gate.inputs";
+
+    /**
+     * Selectors come from the requests, so the plans are bounded. A plan costs microseconds to recompute.
+     */
+    private static final int MAX_PLANS = 256;
+    /**
+     * What a PR that never runs produces, told apart from a PR that ran and changed nothing by identity.
+     */
+    private static final Set<String> NEVER_RUNS = Collections.unmodifiableSet(new HashSet<>());
+
+    private static final Logger logger = LoggerFactory.getLogger(PipelinePruner.class);
+
+    private final ControllerPool pool;
+    private final String profileContent;
+    private final WeightedLRUCache<Set<String>, Plan> plans = new WeightedLRUCache<>(MAX_PLANS, (plan) -> { });
+    private volatile List<Set<String>> outputs = null;
+    private volatile List<Set<String>> inputs = null;
+
+    /**
+     * @param pool           the controllers to learn from, and to prune.
+     * @param profileContent a document that exercises every PR of the application.
+     */
+    PipelinePruner(ControllerPool pool, String profileContent) {
+        this.pool = pool;
+        this.profileContent = profileContent;
+    }
+
+    /**
+     * @param annotationSelector an annotation selector, or null for everything.
+     * @return the plan for the selector, selectors of the same "SetName:Type" set share it.
+     */
+    Plan plan(List<String> annotationSelector) {
+        if (annotationSelector == null)
+            return Plan.FULL;
+        final Set<String> required = new TreeSet<>();
+        AnnotationSelection.parse(annotationSelector)
+                .forEach((setName, types) -> types.forEach((type) -> required.add(setName + ":" + type)));
+        final Set<String> key = Collections.unmodifiableSet(required);
+        final Plan cached = plans.get(key);
+        if (cached != null)
+            return cached;
+        if (!learn())
+            return Plan.FULL;
+        final Plan rv = plan(key);
+        plans.put(key, rv, 1);
+        logger.info("Pipeline plan for " + key + ": " + rv);
+        return rv;
+    }
+
+    private Plan plan(Set<String> selected) {
+        if (outputs == null)
+            return Plan.FULL;
+        final Set<String> required = new HashSet<>(selected);
+        if (!producedBefore(outputs.size(), required))
+            return Plan.FULL;
+
+        final boolean[] runs = new boolean[outputs.size()];
+        boolean runsAfter = false;
+        for (int i = runs.length - 1; i >= 0; i--) {
+            final Set<String> produced = outputs.get(i);
+            if (produced == NEVER_RUNS)
+                continue;
+            // Nothing visible on the profile, e.g. a reset, it may still prepare the document for the next PRs,
+            // or change the required types on other documents once they exist.
+            if (produced != null && produced.isEmpty()) {
+                runs[i] = runsAfter || anyProducedBefore(i, required);
+                continue;
+            }
+            if (produced != null && Collections.disjoint(produced, required))
+                continue;
+            runsAfter = true;
+            runs[i] = true;
+            final Set<String> consumed = inputs.get(i);
+            if (produced == null || consumed == null || !producedBefore(i, consumed)) {
+                Arrays.fill(runs, 0, i, true);
+                break;
+            }
+            required.addAll(consumed);
+        }
+        return new Plan(runs);
+    }
+
+    /**
+     * @return true if every type has a known producer before the PR at index end.
+     */
+    private boolean producedBefore(int end, Set<String> types) {
+        final Set<String> produced = new HashSet<>();
+        for (int i = 0; i < end; i++) {
+            if (outputs.get(i) == null)
+                return true;
+            produced.addAll(outputs.get(i));
+        }
+        return produced.containsAll(types);
+    }
+
+    /**
+     * @return true if any of the types may exist before the PR at index end.
+     */
+    private boolean anyProducedBefore(int end, Set<String> types) {
+        for (int i = 0; i < end; i++)
+            if (outputs.get(i) == null || !Collections.disjoint(outputs.get(i), types))
+                return true;
+        return false;
+    }
+
+    /**
+     * @return false if there was no controller to learn from, we try again with the next selector.
+     */
+    private synchronized boolean learn() {
+        if (inputs != null)
+            return true;
+        final CorpusController controller;
+        try {
+            controller = pool.checkout();
+        } catch (GateException e) {
+            logger.warn("No controller to profile the pipeline with, running it in full.", e);
+            return false;
+        }
+        try {
+            if (controller instanceof SerialController)
+                learn((SerialController) controller);
+            else
+                logger.warn("Pipeline pruning needs a SerialController, " + controller.getClass().getName() +
+                        " will always run in full.");
+        } catch (GateException | RuntimeException e) {
+            logger.warn("Unable to profile the pipeline, it will always run in full.", e);
+        } finally {
+            pool.release(controller);
+        }
+        if (inputs == null)
+            inputs = Collections.emptyList();
+        return true;
+    }
+
+    private void learn(SerialController controller) throws GateException {
+        final List<ProcessingResource> prs = new ArrayList<>(controller.getPRs());
+        final List<RunningStrategy> strategies = controller instanceof ConditionalController ?
+                new ArrayList<>(((ConditionalController) controller).getRunningStrategies()) :
+                Collections.emptyList();
+        final List<Set<String>> learnedOutputs = new ArrayList<>(prs.size());
+        final List<Set<String>> declaredInputs = new ArrayList<>(prs.size());
+        final Corpus corpus = ((CorpusController) controller).getCorpus();
+        final Document doc = Factory.newDocument(profileContent);
+        corpus.add(doc);
+        for (ProcessingResource pr : prs)
+            if (pr instanceof ControllerAwarePR)
+                ((ControllerAwarePR) pr).controllerExecutionStarted(controller);
+        try {
+            for (int i = 0; i < prs.size(); i++) {
+                final ProcessingResource pr = prs.get(i);
+                declaredInputs.add(declared(pr, INPUTS_FEATURE));
+                if (i < strategies.size() && strategies.get(i).getRunMode() == RunningStrategy.RUN_NEVER) {
+                    learnedOutputs.add(NEVER_RUNS);
+                    continue;
+                }
+                if (!(pr instanceof LanguageAnalyser)) {
+                    learnedOutputs.add(null);
+                    continue;
+                }
+                final Map<String, Long> before = signatures(doc);
+                final LanguageAnalyser analyser = (LanguageAnalyser) pr;
+                analyser.setCorpus(corpus);
+                analyser.setDocument(doc);
+                try {
+                    analyser.execute();
+                } finally {
+                    analyser.setDocument(null);
+                    analyser.setCorpus(null);
+                }
+                final Map<String, Long> after = signatures(doc);
+                final Set<String> touched = new HashSet<>();
+                for (String key : union(before.keySet(), after.keySet()))
+                    if (!Objects.equals(before.get(key), after.get(key)))
+                        touched.add(key);
+                final Set<String> declaredOutputs = declared(pr, OUTPUTS_FEATURE);
+                if (declaredOutputs != null)
+                    touched.addAll(declaredOutputs);
+                learnedOutputs.add(touched);
+            }
+            for (ProcessingResource pr : prs)
+                if (pr instanceof ControllerAwarePR)
+                    ((ControllerAwarePR) pr).controllerExecutionFinished(controller);
+        } catch (GateException | RuntimeException e) {
+            for (ProcessingResource pr : prs)
+                if (pr instanceof ControllerAwarePR)
+                    ((ControllerAwarePR) pr).controllerExecutionAborted(controller, e);
+            throw e;
+        } finally {
+            corpus.clear();
+            Factory.deleteResource(doc);
+        }
+        for (int i = 0; i < prs.size(); i++)
+            logger.info(prs.get(i).getName() + " produces " + (learnedOutputs.get(i) == null ?
+                    "unknown types" : learnedOutputs.get(i)) + ".");
+        outputs = learnedOutputs;
+        inputs = declaredInputs;
+    }
+
+    private static Set<String> declared(ProcessingResource pr, String feature) {
+        final Object value = pr.getFeatures() != null ? pr.getFeatures().get(feature) : null;
+        if (value == null)
+            return null;
+        final Set<String> rv = new HashSet<>();
+        AnnotationSelection.parse(Arrays.asList(value.toString().split("\\s*,\\s*")))
+                .forEach((setName, types) -> types.forEach((type) -> rv.add(setName + ":" + type)));
+        return rv;
+    }
+
+    /**
+     * @return a hash of the annotations of every "SetName:Type", it changes when any of them does.
+     */
+    private static Map<String, Long> signatures(Document doc) {
+        final Map<String, Long> rv = new HashMap<>();
+        signatures("", doc.getAnnotations(), rv);
+        for (String setName : doc.getAnnotationSetNames())
+            signatures(setName, doc.getAnnotations(setName), rv);
+        return rv;
+    }
+
+    private static void signatures(String setName, AnnotationSet annotations, Map<String, Long> rv) {
+        for (Annotation annotation : annotations) {
+            final long signature = 31L * (31L * (31L * annotation.getId() +
+                    annotation.getStartNode().getOffset()) + annotation.getEndNode().getOffset()) +
+                    signature(annotation.getFeatures());
+            rv.merge(setName + ":" + annotation.getType(), signature, Long::sum);
+        }
+    }
+
+    /**
+     * The FeatureMap of gate-core hashes every entry to 0, so we hash the keys and values ourselves.
+     */
+    private static long signature(FeatureMap features) {
+        long rv = 0;
+        for (Map.Entry<Object, Object> feature : features.entrySet())
+            rv += Objects.hashCode(feature.getKey()) ^ Objects.hashCode(feature.getValue());
+        return rv;
+    }
+
+    private static Set<String> union(Set<String> a, Set<String> b) {
+        final Set<String> rv = new HashSet<>(a);
+        rv.addAll(b);
+        return rv;
+    }
+
+    /**
+     * The PRs to run for a selector, applied to a checked out controller for the duration of one execution.
+     */
+    static class Plan {
+        static final Plan FULL = new Plan(null);
+
+        private final boolean[] runs;
+
+        private Plan(boolean[] runs) {
+            boolean full = true;
+            if (runs != null)
+                for (boolean run : runs)
+                    full &= run;
+            this.runs = full ? null : runs;
+        }
+
+        boolean isFull() {
+            return runs == null;
+        }
+
+        /**
+         * @param index the index of a PR in the controller
+         * @return true if the PR runs with this plan.
+         */
+        boolean runs(int index) {
+            return runs == null || index >= runs.length || runs[index];
+        }
+
+        /**
+         * @param contentDigest the Document cache key of a full execution
+         * @return the Document cache key of an execution with this plan.
+         */
+        String cacheKey(String contentDigest) {
+            if (runs == null)
+                return contentDigest;
+            final StringBuilder rv = new StringBuilder(contentDigest).append('-');
+            for (boolean run : runs)
+                rv.append(run ? '1' : '0');
+            return rv.toString();
+        }
+
+        /**
+         * Stops the pruned PRs of the controller from running, through the run modes of a ConditionalController,
+         * or by removing them from any other SerialController.
+         *
+         * @param controller a controller checked out for the exclusive use of the caller
+         * @return restores the controller, it must run before the controller goes back to the pool.
+         */
+        Runnable applyTo(CorpusController controller) {
+            if (runs == null)
+                return () -> { };
+            if (controller instanceof ConditionalController) {
+                final List<RunningStrategy> strategies = new ArrayList<>(
+                        ((ConditionalController) controller).getRunningStrategies());
+                final Map<AnalyserRunningStrategy, Integer> runModes = new HashMap<>();
+                for (int i = 0; i < runs.length && i < strategies.size(); i++) {
+                    if (!runs[i] && strategies.get(i) instanceof AnalyserRunningStrategy) {
+                        final AnalyserRunningStrategy strategy = (AnalyserRunningStrategy) strategies.get(i);
+                        runModes.put(strategy, strategy.getRunMode());
+                        strategy.setRunMode(RunningStrategy.RUN_NEVER);
+                    }
+                }
+                return () -> runModes.forEach(AnalyserRunningStrategy::setRunMode);
+            }
+            final SerialController serial = (SerialController) controller;
+            final List<ProcessingResource> prs = new ArrayList<>(serial.getPRs());
+            final List<ProcessingResource> pruned = new ArrayList<>();
+            for (int i = 0; i < prs.size(); i++)
+                if (i >= runs.length || runs[i])
+                    pruned.add(prs.get(i));
+            serial.setPRs(pruned);
+            return () -> serial.setPRs(prs);
+        }
+
+        /**
+         * @return the indexes of the PRs that run, for the logs and traces.
+         */
+        @Override
+        public String toString() {
+            if (runs == null)
+                return "all PRs";
+            final StringJoiner rv = new StringJoiner(",", "PRs [", "]");
+            for (int i = 0; i < runs.length; i++)
+                if (runs[i])
+                    rv.add(Integer.toString(i));
+            return rv.toString();
+        }
+    }
+}
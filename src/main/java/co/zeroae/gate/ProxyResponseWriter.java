@@ -0,0 +1,159 @@
+package co.zeroae.gate;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes API Gateway proxy responses as JSON, optionally with the body streamed instead of held in a String.
+ */
+class ProxyResponseWriter {
+    static final ObjectMapper objectMapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    @FunctionalInterface
+    interface BodyWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * @param out      the Lambda output stream, it is left open.
+     * @param response a complete response
+     */
+    static void write(OutputStream out, APIGatewayProxyResponseEvent response) throws IOException {
+        objectMapper.writeValue(out, response);
+    }
+
+    /**
+     * Writes the response with the body from the BodyWriter, Base64 encoded if response.isBase64Encoded.
+     * The body goes first, so the statusCode and headers may still change while it is written.
+     *
+     * @param out      the Lambda output stream, it is left open.
+     * @param response the response, without a body.
+     * @param body     writes the raw body, it may close the stream it is given.
+     */
+    static void stream(OutputStream out, APIGatewayProxyResponseEvent response, BodyWriter body) throws IOException {
+        stream(out, response, null, 0, body);
+    }
+
+    /**
+     * Writes the response as above, with the body compressed on the fly once it reaches minBytes.
+     * A compressed body is Base64 encoded, and the response gets its Content-Encoding header.
+     *
+     * @param contentEncoding gzip, deflate, or null to never compress
+     * @param minBytes        the body size from which it is compressed
+     */
+    static void stream(
+            OutputStream out,
+            APIGatewayProxyResponseEvent response,
+            String contentEncoding,
+            int minBytes,
+            BodyWriter body
+    ) throws IOException {
+        out.write("{\"body\":\"".getBytes(StandardCharsets.US_ASCII));
+        final CompressingOutputStream compressing = new CompressingOutputStream(contentEncoding, minBytes,
+                (compressed) -> {
+                    if (compressed)
+                        response.withIsBase64Encoded(true).getHeaders().put("Content-Encoding", contentEncoding);
+                    // Base64 has nothing to escape, closing the encoder writes the padding.
+                    return Boolean.TRUE.equals(response.getIsBase64Encoded()) ?
+                            Base64.getEncoder().wrap(new NonClosingOutputStream(out)) :
+                            new JsonStringOutputStream(out);
+                });
+        body.writeTo(new NonClosingOutputStream(compressing));
+        compressing.close();
+        out.write('"');
+
+        final Map<String, Object> rest = new LinkedHashMap<>();
+        rest.put("statusCode", response.getStatusCode());
+        rest.put("headers", response.getHeaders());
+        rest.put("isBase64Encoded", Boolean.TRUE.equals(response.getIsBase64Encoded()));
+        final byte[] json = objectMapper.writeValueAsBytes(rest);
+        out.write(',');
+        out.write(json, 1, json.length - 1);
+        out.flush();
+    }
+
+    /**
+     * Keeps exporters from closing the Lambda output stream under us.
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Escapes UTF-8 text for the inside of a JSON string, multi-byte characters go through as they are.
+     */
+    private static class JsonStringOutputStream extends NonClosingOutputStream {
+        private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+        JsonStringOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int start = off;
+            final int end = off + len;
+            for (int i = off; i < end; i++) {
+                final int c = b[i] & 0xff;
+                if (c >= 0x20 && c != '"' && c != '\\')
+                    continue;
+                out.write(b, start, i - start);
+                start = i + 1;
+                switch (c) {
+                    case '"':
+                        out.write('\\');
+                        out.write('"');
+                        break;
+                    case '\\':
+                        out.write('\\');
+                        out.write('\\');
+                        break;
+                    case '\n':
+                        out.write('\\');
+                        out.write('n');
+                        break;
+                    case '\r':
+                        out.write('\\');
+                        out.write('r');
+                        break;
+                    case '\t':
+                        out.write('\\');
+                        out.write('t');
+                        break;
+                    default:
+                        out.write(new byte[]{'\\', 'u', '0', '0', HEX[c >> 4], HEX[c & 0xf]});
+                }
+            }
+            out.write(b, start, end - start);
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package co.zeroae.gate;
+
+import co.zeroae.gate.mmap.BufferPool;
+import co.zeroae.gate.mmap.Handler;
+import com.amazonaws.util.Base64;
+import gate.Document;
+import gate.FeatureMap;
+import gate.util.GateException;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.codehaus.httpcache4j.util.Hex;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The content of a request, decoded and digested in a single pass over the body.
+ * Text bodies are digested in small chunks and handed to GATE as they are.
+ * Base64 bodies, gzip or deflate compressed or not, are decoded off the heap, which the mmap Handler serves
+ * without copying them again, until the Document is built or the RequestContent is closed:
+ * <ul>
+ *     <li>into a pooled direct buffer,</li>
+ *     <li>or, from GATE_MMAP_SPILL_MIN_BYTES up, into a temporary file that is mapped in memory.
+ *     The kernel pages it in and out as GATE reads it.</li>
+ * </ul>
+ */
+class RequestContent implements Closeable {
+    private static final Logger logger = LogManager.getLogger(RequestContent.class);
+    private static final int DIGEST_CHUNK = 8192;
+    private static final int DECODE_CHUNK = 1 << 16;
+    private static final byte[] BASE64_VALUES = new byte[128];
+    private static final byte BASE64_INVALID = -1;
+    private static final byte BASE64_SKIP = -2;
+
+    static {
+        Arrays.fill(BASE64_VALUES, BASE64_INVALID);
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++)
+            BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+        BASE64_VALUES['-'] = 62;
+        BASE64_VALUES['_'] = 63;
+        for (char c : new char[]{' ', '\t', '\r', '\n'})
+            BASE64_VALUES[c] = BASE64_SKIP;
+    }
+
+    private static final BufferPool bufferPool = new BufferPool(Long.parseLong(System.getenv().getOrDefault(
+            "GATE_BUFFER_POOL_MB", "64")) * 1024 * 1024);
+    private static final int SPILL_MIN_BYTES = Integer.parseInt(System.getenv().getOrDefault(
+            "GATE_MMAP_SPILL_MIN_BYTES", String.valueOf(1 << 20)));
+    private static final long MAX_DECODED_BYTES = Long.parseLong(System.getenv().getOrDefault(
+            "GATE_MAX_DECODED_BYTES", String.valueOf(64 << 20)));
+    private static final ThreadLocal<ByteBuffer> encoderBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(DIGEST_CHUNK));
+    private static final ThreadLocal<byte[]> decoderBuffer = ThreadLocal.withInitial(() -> new byte[DECODE_CHUNK]);
+    private static final URLStreamHandler mmapHandler = new Handler();
+    private static final AtomicLong registrations = new AtomicLong();
+
+    private final String digest;
+    private final String text;
+    private final ByteBuffer content;
+    private final Runnable onRelease;
+    private final AtomicBoolean released = new AtomicBoolean();
+    private String mmapPath = null;
+
+    /**
+     * The decoded body is larger than GATE_MAX_DECODED_BYTES, a small compressed body can inflate to any size.
+     */
+    static class TooLargeException extends GateException {
+        TooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    private RequestContent(String digest, String text, ByteBuffer content, Runnable onRelease) {
+        this.digest = digest;
+        this.text = text;
+        this.content = content;
+        this.onRelease = onRelease;
+    }
+
+    /**
+     * @param contentType      the validated request content type
+     * @param body             the request body
+     * @param isBase64Encoded  if the body is Base64 encoded binary content
+     * @param contentEncoding  gzip or deflate if the decoded body is compressed, null otherwise
+     * @param nextAnnotationId the first annotation id
+     * @param salt             the digest salt
+     * @return the ingested content, it must be closed once the Document is built.
+     * @throws GateException if the body is not valid Base64, or can not be decompressed.
+     * @throws TooLargeException if the decoded body is larger than GATE_MAX_DECODED_BYTES.
+     */
+    static RequestContent ingest(
+            String contentType,
+            String body,
+            boolean isBase64Encoded,
+            String contentEncoding,
+            int nextAnnotationId,
+            String salt
+    ) throws GateException {
+        return ingest(contentType, body, isBase64Encoded, contentEncoding, nextAnnotationId, salt, SPILL_MIN_BYTES,
+                MAX_DECODED_BYTES);
+    }
+
+    /**
+     * @param spillMinBytes   the decoded size from which binary content goes to a mapped file
+     * @param maxDecodedBytes the largest decoded body accepted
+     * @see #ingest(String, String, boolean, String, int, String)
+     */
+    static RequestContent ingest(
+            String contentType,
+            String body,
+            boolean isBase64Encoded,
+            String contentEncoding,
+            int nextAnnotationId,
+            String salt,
+            int spillMinBytes,
+            long maxDecodedBytes
+    ) throws GateException {
+        if (contentEncoding != null && !isBase64Encoded)
+            throw new GateException("A " + contentEncoding + " encoded body must also be Base64 encoded.");
+        if (isBase64Encoded && body != null) {
+            try {
+                return decode(contentType, body, contentEncoding, nextAnnotationId, salt, spillMinBytes,
+                        maxDecodedBytes);
+            } catch (UncheckedIOException e) {
+                logger.warn("Unable to spill the request body, keeping it in memory.", e.getCause());
+            }
+            return decode(contentType, body, contentEncoding, nextAnnotationId, salt, Integer.MAX_VALUE,
+                    maxDecodedBytes);
+        }
+        final MessageDigest md = newMessageDigest(contentType, nextAnnotationId, salt);
+        final String text = body == null ? "" : body;
+        update(md, text);
+        return new RequestContent(Hex.encode(md.digest()), text, null, () -> {
+        });
+    }
+
+    /**
+     * Decodes, and decompresses, the body in a single pass while updating the digest with the decoded bytes.
+     * A compressed body is digested as it would be uncompressed, both share their cache entries.
+     * It stops as soon as the decoded body outgrows maxDecodedBytes, what was decoded so far is released.
+     *
+     * @throws UncheckedIOException if the body could not be spilled.
+     */
+    private static RequestContent decode(
+            String contentType,
+            String body,
+            String contentEncoding,
+            int nextAnnotationId,
+            String salt,
+            int spillMinBytes,
+            long maxDecodedBytes
+    ) throws GateException {
+        final MessageDigest md = newMessageDigest(contentType, nextAnnotationId, salt);
+        // The decoded length of a compressed body is unknown, the Sink grows as needed.
+        final Sink sink = new Sink((int) Math.min(body.length() / 4 * 3 + 3, maxDecodedBytes), spillMinBytes);
+        final String digest;
+        try (InputStream in = decompress(new Base64Input(body), contentEncoding)) {
+            final byte[] chunk = decoderBuffer.get();
+            long decoded = 0;
+            for (int n = in.read(chunk); n >= 0; n = in.read(chunk)) {
+                decoded += n;
+                if (decoded > maxDecodedBytes)
+                    throw new TooLargeException(
+                            "The decoded request body is larger than " + maxDecodedBytes + " bytes.");
+                md.update(chunk, 0, n);
+                sink.write(chunk, 0, n);
+            }
+            digest = Hex.encode(md.digest());
+        } catch (IOException e) {
+            sink.abort();
+            throw new GateException("Unable to decode the request body: " + e.getMessage());
+        } catch (TooLargeException | RuntimeException e) {
+            sink.abort();
+            throw e;
+        }
+        return sink.finish(digest);
+    }
+
+    private static InputStream decompress(InputStream in, String contentEncoding) throws IOException {
+        if (contentEncoding == null)
+            return in;
+        switch (contentEncoding) {
+            case "gzip":
+                return new GZIPInputStream(in, DIGEST_CHUNK);
+            case "deflate":
+                return new InflaterInputStream(in);
+            default:
+                throw new IOException("Unsupported content encoding " + contentEncoding + ".");
+        }
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists())
+            logger.warn("Unable to delete " + file);
+    }
+
+    /**
+     * Holds the decoded body in a pooled direct buffer, and moves it to a temporary file that is mapped once it
+     * reaches spillMinBytes. The file is deleted once the content is released, the mapping itself goes away with
+     * the last buffer that references it. File errors are thrown as UncheckedIOException.
+     */
+    private static class Sink {
+        private final int spillMinBytes;
+        private ByteBuffer buffer = null;
+        private File file = null;
+        private FileChannel channel = null;
+
+        /**
+         * @param expectedLength the expected decoded length
+         * @param spillMinBytes  the decoded length from which the body goes to a file
+         */
+        Sink(int expectedLength, int spillMinBytes) {
+            this.spillMinBytes = spillMinBytes;
+            if (expectedLength >= spillMinBytes)
+                spill();
+            else
+                buffer = bufferPool.acquire(expectedLength);
+        }
+
+        void write(byte[] chunk, int offset, int length) {
+            if (channel == null && buffer.remaining() < length) {
+                final long required = (long) buffer.position() + length;
+                if (required >= spillMinBytes)
+                    spill();
+                else
+                    grow((int) Math.min(Math.max(required, 2L * buffer.capacity()), spillMinBytes));
+            }
+            if (channel != null)
+                writeFully(ByteBuffer.wrap(chunk, offset, length));
+            else
+                buffer.put(chunk, offset, length);
+        }
+
+        /**
+         * @param digest the content digest
+         * @return the RequestContent, which owns the buffer or file from now on.
+         */
+        RequestContent finish(String digest) {
+            if (channel == null) {
+                final ByteBuffer rv = buffer;
+                rv.flip();
+                return new RequestContent(digest, null, rv, () -> bufferPool.release(rv));
+            }
+            try (FileChannel ignored = channel) {
+                final ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                final File rv = file;
+                return new RequestContent(digest, null, mapped, () -> delete(rv));
+            } catch (IOException e) {
+                abort();
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void abort() {
+            if (buffer != null)
+                bufferPool.release(buffer);
+            buffer = null;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (file != null)
+                delete(file);
+        }
+
+        private void grow(int capacity) {
+            final ByteBuffer grown = bufferPool.acquire(capacity);
+            buffer.flip();
+            grown.put(buffer);
+            bufferPool.release(buffer);
+            buffer = grown;
+        }
+
+        private void spill() {
+            try {
+                file = File.createTempFile("gate-mmap-", ".bin");
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                abort();
+                throw new UncheckedIOException(e);
+            }
+            if (buffer != null) {
+                buffer.flip();
+                writeFully(buffer);
+                bufferPool.release(buffer);
+                buffer = null;
+            }
+        }
+
+        private void writeFully(ByteBuffer src) {
+            try {
+                while (src.hasRemaining())
+                    channel.write(src);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Sets the Document content parameters, binary content goes through the mmap URL handler.
+     *
+     * @param featureMap the Document parameters
+     * @param mimeType   the Document MIME type
+     * @throws MalformedURLException if the mmap URL can not be created.
+     */
+    void putContent(FeatureMap featureMap, String mimeType) throws MalformedURLException {
+        featureMap.put(Document.DOCUMENT_MIME_TYPE_PARAMETER_NAME, mimeType);
+        if (content == null)
+            featureMap.put(Document.DOCUMENT_STRING_CONTENT_PARAMETER_NAME, text);
+        else {
+            // GATE FastInfosetFormat can not handle binary in the string content.
+            // The path must be unique, identical requests may be running at the same time.
+            if (mmapPath == null) {
+                mmapPath = digest + "-" + registrations.incrementAndGet();
+                Handler.register(mmapPath, content, this::release);
+            }
+            featureMap.put(
+                    Document.DOCUMENT_URL_PARAMETER_NAME,
+                    new URL("mmap",
+                            mimeType != null ? Base64.encodeAsString(mimeType.getBytes()) : null,
+                            64,
+                            mmapPath,
+                            mmapHandler));
+        }
+    }
+
+    /**
+     * Releases the decoded content, the Documents built from this content must have been created already.
+     * App releases the mmap path as soon as the Document is built, this covers everything else.
+     */
+    @Override
+    public void close() {
+        if (mmapPath != null)
+            Handler.release(mmapPath);
+        release();
+    }
+
+    private void release() {
+        if (released.compareAndSet(false, true))
+            onRelease.run();
+    }
+
+    /**
+     * The fields come first, each one followed by a NUL, and the content is all that follows them.
+     * So no two requests digest the same, "abc1" from id 0 and "abc" from id 10 included.
+     *
+     * @return a digest of the fields, ready for the content.
+     */
+    private static MessageDigest newMessageDigest(String contentType, int nextAnnotationId, String salt) {
+        final MessageDigest rv;
+        try {
+            rv = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        for (String field : new String[]{contentType, String.valueOf(nextAnnotationId), salt}) {
+            update(rv, String.valueOf(field));
+            rv.update((byte) 0);
+        }
+        return rv;
+    }
+
+    /**
+     * Updates the digest with the UTF-8 encoding of the text, one small chunk at a time.
+     */
+    private static void update(MessageDigest md, CharSequence text) {
+        final ByteBuffer chunk = encoderBuffer.get();
+        final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final CharBuffer in = CharBuffer.wrap(text);
+        CoderResult result;
+        do {
+            chunk.clear();
+            result = encoder.encode(in, chunk, true);
+            chunk.flip();
+            md.update(chunk);
+        } while (result.isOverflow());
+        do {
+            chunk.clear();
+            result = encoder.flush(chunk);
+            chunk.flip();
+            md.update(chunk);
+        } while (result.isOverflow());
+    }
+
+    /**
+     * Decodes Base64, or its URL safe variant, straight from the body.
+     */
+    private static class Base64Input extends InputStream {
+        private final CharSequence in;
+        private int position = 0;
+        private int bits = 0;
+        private int pendingBits = 0;
+
+        Base64Input(CharSequence in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            int n = 0;
+            while (n < len) {
+                if (pendingBits >= 8) {
+                    pendingBits -= 8;
+                    b[off + n++] = (byte) (bits >> pendingBits);
+                    bits &= (1 << pendingBits) - 1;
+                    continue;
+                }
+                if (position >= in.length())
+                    break;
+                final char c = in.charAt(position++);
+                if (c == '=') {
+                    position = in.length();
+                    break;
+                }
+                final byte value = c < 128 ? BASE64_VALUES[c] : BASE64_INVALID;
+                if (value == BASE64_SKIP)
+                    continue;
+                if (value == BASE64_INVALID)
+                    throw new IOException("Invalid Base64 character at position " + (position - 1) + " of the body.");
+                bits = (bits << 6) | value;
+                pendingBits += 6;
+            }
+            return n == 0 ? -1 : n;
+        }
+    }
+}
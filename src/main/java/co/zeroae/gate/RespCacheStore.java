@@ -0,0 +1,347 @@
+package co.zeroae.gate;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A CacheStore on a server that speaks the Redis protocol (RESP), shared by every container of the fleet.
+ * <ul>
+ *     <li>Lookups give up after timeoutMillis, connecting included, a slow lookup is a miss.</li>
+ *     <li>Writes are queued and sent by a background thread, they are dropped when the queue is full.</li>
+ *     <li>After {@value #FAILURE_THRESHOLD} failures in a row the circuit opens: for the next cooldown every lookup
+ *     misses and every write is dropped without touching the network. Then one request probes the server.</li>
+ * </ul>
+ * The URL is redis://[:password@]host[:port], keys are prefixed so that several applications can share a server.
+ */
+class RespCacheStore implements CacheStore, Closeable {
+    static final int FAILURE_THRESHOLD = 3;
+    static final int MAX_ENTRY_BYTES = 16 << 20;
+    private static final int MAX_LINE_CHARS = 4096;
+
+    private static final Logger logger = LogManager.getLogger(RespCacheStore.class);
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final String host;
+    private final int port;
+    private final String password;
+    private final String prefix;
+    private final int timeoutMillis;
+    private final int ttlSeconds;
+    private final long cooldownNanos;
+
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+    private final ThreadPoolExecutor writer;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean probing = new AtomicBoolean();
+    private volatile boolean open = false;
+    private volatile long retryAt = 0;
+
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong shortCircuited = new AtomicLong();
+    private final AtomicLong circuitOpenings = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Nothing connects until the first lookup or write.
+     *
+     * @param url            redis://[:password@]host[:port]
+     * @param prefix         prepended to every key
+     * @param timeoutMillis  the connect and lookup timeout, writes get ten times as much
+     * @param ttlSeconds     the expiry of the entries, 0 for none
+     * @param cooldownMillis how long the circuit stays open
+     */
+    RespCacheStore(String url, String prefix, int timeoutMillis, int ttlSeconds, long cooldownMillis) {
+        final URI uri = URI.create(url);
+        if (!"redis".equals(uri.getScheme()) || uri.getHost() == null)
+            throw new IllegalArgumentException("Expected redis://[:password@]host[:port], got '" + url + "'.");
+        this.host = uri.getHost();
+        this.port = uri.getPort() > 0 ? uri.getPort() : 6379;
+        final String userInfo = uri.getUserInfo();
+        this.password = userInfo == null ? null : userInfo.substring(userInfo.indexOf(':') + 1);
+        this.prefix = prefix;
+        this.timeoutMillis = timeoutMillis;
+        this.ttlSeconds = ttlSeconds;
+        this.cooldownNanos = TimeUnit.MILLISECONDS.toNanos(cooldownMillis);
+        writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(64), (runnable) -> {
+            final Thread rv = new Thread(runnable, "remote-cache-writer");
+            rv.setDaemon(true);
+            return rv;
+        }, (runnable, executor) -> dropped.incrementAndGet());
+    }
+
+    @Override
+    public byte[] get(String key) throws IOException {
+        if (!allow()) {
+            shortCircuited.incrementAndGet();
+            return null;
+        }
+        return call(timeoutMillis, "GET", key);
+    }
+
+    @Override
+    public void put(String key, byte[] entry) {
+        if (entry.length > MAX_ENTRY_BYTES || open && System.nanoTime() < retryAt) {
+            dropped.incrementAndGet();
+            return;
+        }
+        writer.execute(() -> {
+            if (!allow()) {
+                dropped.incrementAndGet();
+                return;
+            }
+            try {
+                if (ttlSeconds > 0)
+                    call(timeoutMillis * 10, "SET", key, entry, "EX", String.valueOf(ttlSeconds));
+                else
+                    call(timeoutMillis * 10, "SET", key, entry);
+                writes.incrementAndGet();
+            } catch (IOException e) {
+                logger.debug("Unable to write " + key, e);
+            }
+        });
+    }
+
+    @Override
+    public boolean remove(String key) {
+        writer.execute(() -> {
+            if (!allow())
+                return;
+            try {
+                call(timeoutMillis * 10, "DEL", key);
+            } catch (IOException e) {
+                logger.debug("Unable to remove " + key, e);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        final Map<String, Object> rv = new LinkedHashMap<>();
+        rv.put("circuitOpen", open);
+        rv.put("circuitOpenings", circuitOpenings.get());
+        rv.put("timeouts", timeouts.get());
+        rv.put("errors", errors.get());
+        rv.put("shortCircuited", shortCircuited.get());
+        rv.put("writes", writes.get());
+        rv.put("dropped", dropped.get());
+        rv.put("queued", writer.getQueue().size());
+        return rv;
+    }
+
+    @Override
+    public void close() {
+        writer.shutdownNow();
+        for (Connection connection = idle.poll(); connection != null; connection = idle.poll())
+            connection.close();
+    }
+
+    /**
+     * @return true if the circuit is closed, or if this is the one request that probes a server in cooldown.
+     */
+    private boolean allow() {
+        if (!open)
+            return true;
+        return System.nanoTime() >= retryAt && probing.compareAndSet(false, true);
+    }
+
+    private void succeeded() {
+        consecutiveFailures.set(0);
+        if (open) {
+            open = false;
+            logger.info("The remote cache is back, closing the circuit.");
+        }
+        probing.set(false);
+    }
+
+    private void failed(IOException e) {
+        if (e instanceof SocketTimeoutException)
+            timeouts.incrementAndGet();
+        else
+            errors.incrementAndGet();
+        if (consecutiveFailures.incrementAndGet() >= FAILURE_THRESHOLD || open) {
+            retryAt = System.nanoTime() + cooldownNanos;
+            if (!open) {
+                open = true;
+                circuitOpenings.incrementAndGet();
+                logger.warn("The remote cache is failing, opening the circuit: " + e);
+            }
+        }
+        probing.set(false);
+    }
+
+    /**
+     * Sends one command and reads its reply, on a pooled connection. A connection is only pooled again after a
+     * complete reply, any failure closes it.
+     *
+     * @param timeout the time the whole call may take, connecting included
+     * @param command the command and its arguments, Strings or byte arrays, the first argument is the key
+     * @return the reply, as bytes, or null for a nil reply.
+     */
+    private byte[] call(int timeout, String command, Object... arguments) throws IOException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        Connection connection = idle.poll();
+        boolean completed = false;
+        try {
+            if (connection == null)
+                connection = new Connection(deadline);
+            final Object[] request = arguments.clone();
+            request[0] = prefix + request[0];
+            final byte[] rv = connection.call(deadline, command, request);
+            completed = true;
+            return rv;
+        } catch (IOException e) {
+            failed(e);
+            throw e;
+        } finally {
+            if (completed) {
+                idle.push(connection);
+                succeeded();
+            } else {
+                if (connection != null)
+                    connection.close();
+                probing.set(false);
+            }
+        }
+    }
+
+    private class Connection {
+        final Socket socket;
+        final DataInputStream in;
+        final OutputStream out;
+        private long deadline;
+
+        Connection(long deadline) throws IOException {
+            socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(host, port), remainingMillis(deadline));
+                in = new DataInputStream(new BufferedInputStream(new FilterInputStream(socket.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        socket.setSoTimeout(remainingMillis(Connection.this.deadline));
+                        return super.read();
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        socket.setSoTimeout(remainingMillis(Connection.this.deadline));
+                        return super.read(b, off, len);
+                    }
+                }));
+                out = new BufferedOutputStream(socket.getOutputStream());
+                if (password != null)
+                    call(deadline, "AUTH", password);
+            } catch (IOException | RuntimeException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @param deadline the System.nanoTime by which the reply must be read, every read waits what is left
+         */
+        byte[] call(long deadline, String command, Object... arguments) throws IOException {
+            this.deadline = deadline;
+            out.write(("*" + (arguments.length + 1) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            writeBulk(command.getBytes(StandardCharsets.UTF_8));
+            for (Object argument : arguments)
+                writeBulk(argument instanceof byte[] ?
+                        (byte[]) argument : argument.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            return readReply(in);
+        }
+
+        private void writeBulk(byte[] bytes) throws IOException {
+            out.write(("$" + bytes.length + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(bytes);
+            out.write(CRLF);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * @return the milliseconds left until the deadline, never 0 which would mean no timeout at all.
+     * @throws SocketTimeoutException if the deadline has passed.
+     */
+    private static int remainingMillis(long deadline) throws SocketTimeoutException {
+        final long rv = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (rv <= 0)
+            throw new SocketTimeoutException("The remote cache call timed out.");
+        return (int) Math.min(rv, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads a simple string, error, integer or bulk string reply.
+     *
+     * @return the reply, or null for a nil bulk string.
+     * @throws IOException with the message of an error reply, or if the reply is malformed or too large.
+     */
+    static byte[] readReply(DataInputStream in) throws IOException {
+        final int type = in.read();
+        if (type < 0)
+            throw new EOFException();
+        final String line = readLine(in);
+        switch (type) {
+            case '+':
+            case ':':
+                return line.getBytes(StandardCharsets.UTF_8);
+            case '-':
+                throw new IOException("Remote cache error: " + line);
+            case '$':
+                final int length;
+                try {
+                    length = Integer.parseInt(line);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed bulk length '" + line + "'.", e);
+                }
+                if (length < 0)
+                    return null;
+                if (length > MAX_ENTRY_BYTES)
+                    throw new IOException("Bulk reply of " + length + " bytes, more than " + MAX_ENTRY_BYTES + ".");
+                final byte[] rv = new byte[length];
+                in.readFully(rv);
+                if (!readLine(in).isEmpty())
+                    throw new IOException("Malformed bulk reply.");
+                return rv;
+            default:
+                throw new IOException("Unexpected reply type " + type + ".");
+        }
+    }
+
+    static String readLine(DataInputStream in) throws IOException {
+        final StringBuilder rv = new StringBuilder();
+        for (int c = in.read(); c != '\r'; c = in.read()) {
+            if (c < 0)
+                throw new EOFException();
+            if (rv.length() == MAX_LINE_CHARS)
+                throw new IOException("Line longer than " + MAX_LINE_CHARS + " characters.");
+            rv.append((char) c);
+        }
+        if (in.read() != '\n')
+            throw new IOException("Malformed line.");
+        return rv.toString();
+    }
+}
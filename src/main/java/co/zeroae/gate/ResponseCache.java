@@ -0,0 +1,118 @@
+package co.zeroae.gate;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * An in-heap cache of exported response bodies, keyed by content digest, response type, annotation selector and
+ * content encoding.
+ * A hit skips GATE entirely, there is no Document to read, filter or export.
+ */
+class ResponseCache {
+    private final WeightedLRUCache<String, Entry> cache;
+    private final CacheStats stats = new CacheStats();
+
+    /**
+     * @param maxBytes the heap budget for the cached bodies.
+     */
+    ResponseCache(long maxBytes) {
+        cache = new WeightedLRUCache<>(maxBytes, (entry) -> { });
+    }
+
+    /**
+     * @param contentDigest      the Document cache key
+     * @param responseType       the negotiated response type
+     * @param annotationSelector a normalized annotation selector, see {@link #normalize(List)}
+     * @return the response cache key
+     */
+    static String key(String contentDigest, String responseType, List<String> annotationSelector) {
+        return contentDigest + "\n" + responseType + "\n" +
+                (annotationSelector == null ? "*" : String.join(",", annotationSelector));
+    }
+
+    /**
+     * @param contentEncoding the negotiated response content encoding, null for identity
+     * @see #key(String, String, List)
+     */
+    static String key(String contentDigest, String responseType, List<String> annotationSelector,
+                      String contentEncoding) {
+        final String rv = key(contentDigest, responseType, annotationSelector);
+        return contentEncoding == null ? rv : rv + "\n" + contentEncoding;
+    }
+
+    /**
+     * @param annotationSelector the annotation selector as requested
+     * @return the sorted, de-duplicated selector, or null if every annotation was requested.
+     */
+    static List<String> normalize(List<String> annotationSelector) {
+        if (annotationSelector == null)
+            return null;
+        final TreeSet<String> rv = new TreeSet<>();
+        for (String selector : annotationSelector)
+            rv.add(selector.trim());
+        return new ArrayList<>(rv);
+    }
+
+    Entry get(String key) {
+        final Entry rv = cache.get(key);
+        if (rv != null)
+            stats.hit();
+        else
+            stats.miss();
+        return rv;
+    }
+
+    void put(String key, Entry entry) {
+        stats.evicted(Math.max(0, cache.put(key, entry, entry.weight())));
+    }
+
+    Map<String, Object> getStats() {
+        final Map<String, Object> rv = stats.asMap();
+        rv.put("entries", cache.size());
+        rv.put("bytes", cache.getWeight());
+        rv.put("maxBytes", cache.getMaxWeight());
+        return rv;
+    }
+
+    /**
+     * The encoded body of a response, with the headers it depends on.
+     */
+    static class Entry {
+        final String contentType;
+        final String contentEncoding;
+        final String body;
+        final boolean isBase64Encoded;
+
+        Entry(String contentType, String contentEncoding, String body, boolean isBase64Encoded) {
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.body = body;
+            this.isBase64Encoded = isBase64Encoded;
+        }
+
+        static Entry of(APIGatewayProxyResponseEvent response) {
+            return new Entry(
+                    response.getHeaders().get("Content-Type"),
+                    response.getHeaders().get("Content-Encoding"),
+                    response.getBody(),
+                    Boolean.TRUE.equals(response.getIsBase64Encoded()));
+        }
+
+        APIGatewayProxyResponseEvent applyTo(APIGatewayProxyResponseEvent response) {
+            response.getHeaders().put("Content-Type", contentType);
+            if (contentEncoding != null)
+                response.getHeaders().put("Content-Encoding", contentEncoding);
+            if (isBase64Encoded)
+                response.withIsBase64Encoded(true);
+            return response.withBody(body);
+        }
+
+        long weight() {
+            return 64 + 2L * body.length();
+        }
+    }
+}
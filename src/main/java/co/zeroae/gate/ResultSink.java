@@ -0,0 +1,29 @@
+package co.zeroae.gate;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Paths;
+
+/**
+ * Where the asynchronous handlers write the exported documents.
+ */
+interface ResultSink {
+    /**
+     * @param name        the name of the result, unique within the sink.
+     * @param contentType the MIME type of the content.
+     * @param content     the exported document.
+     * @throws IOException if the result could not be written.
+     */
+    void write(String name, String contentType, byte[] content) throws IOException;
+
+    /**
+     * @param uri the sink location, only file: URIs are supported for now.
+     * @return the ResultSink for the URI.
+     */
+    static ResultSink fromUri(String uri) {
+        final URI sinkUri = URI.create(uri);
+        if ("file".equals(sinkUri.getScheme()))
+            return new LocalResultSink(Paths.get(sinkUri));
+        throw new IllegalArgumentException("Unsupported result sink " + uri);
+    }
+}
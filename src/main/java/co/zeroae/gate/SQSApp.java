@@ -0,0 +1,127 @@
+package co.zeroae.gate;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.util.Base64;
+import gate.DocumentExporter;
+import gate.util.GateException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * This class runs the GATE application over SQS batches.
+ * Every message body is one document, described by the same attributes as the HTTP request headers and
+ * query parameters: Content-Type, Accept, annotations, nextAnnotationId and isBase64Encoded.
+ * The exported documents are written to the ResultSink defined by the GATE_RESULT_SINK environment variable,
+ * under the message "key" attribute or its messageId. Messages that fail are reported back individually.
+ */
+public class SQSApp implements RequestHandler<SQSEvent, SQSBatchResponse> {
+    private static final Logger logger = LoggerFactory.getLogger(SQSApp.class);
+
+    private final App app = new App();
+    private final ResultSink sink;
+
+    public SQSApp() {
+        this(ResultSink.fromUri(System.getenv().getOrDefault(
+                "GATE_RESULT_SINK", "file:///tmp/results/" + System.getenv("GATE_APP_NAME"))));
+    }
+
+    SQSApp(ResultSink sink) {
+        this.sink = sink;
+    }
+
+    public SQSBatchResponse handleRequest(SQSEvent input, final Context context) {
+        final SQSBatchResponse response = new SQSBatchResponse();
+
+        // Messages that share the response type and annotation selector run together.
+        final Map<List<String>, List<SQSEvent.SQSMessage>> groups = new LinkedHashMap<>();
+        for (SQSEvent.SQSMessage message : input.getRecords()) {
+            groups.computeIfAbsent(Arrays.asList(
+                    getAttribute(message, "Accept", "application/json"),
+                    getAttribute(message, "annotations", null)
+            ), (key) -> new ArrayList<>()).add(message);
+        }
+        for (Map.Entry<List<String>, List<SQSEvent.SQSMessage>> group : groups.entrySet())
+            handleGroup(group.getKey().get(0), group.getKey().get(1), group.getValue(), response);
+        return response;
+    }
+
+    private void handleGroup(
+            String accept,
+            String annotations,
+            List<SQSEvent.SQSMessage> messages,
+            SQSBatchResponse response
+    ) {
+        final List<SQSEvent.SQSMessage> accepted = new ArrayList<>(messages.size());
+        final List<BatchDocument> batch = new ArrayList<>(messages.size());
+        for (SQSEvent.SQSMessage message : messages) {
+            try {
+                batch.add(toBatchDocument(message));
+                accepted.add(message);
+            } catch (NumberFormatException e) {
+                failed(message, e, response);
+            }
+        }
+
+        final String responseType;
+        final List<Map<String, Object>> results;
+        try {
+            responseType = Utils.ensureValidResponseType(accept);
+            results = app.executeBatch(
+                    batch,
+                    responseType,
+                    annotations == null ? null : Arrays.asList(annotations.split("\\s*,\\s*")));
+        } catch (GateException | IOException e) {
+            for (SQSEvent.SQSMessage message : accepted)
+                failed(message, e, response);
+            return;
+        }
+
+        final DocumentExporter exporter = Utils.exporters.get(responseType);
+        for (int i = 0; i < accepted.size(); i++) {
+            final SQSEvent.SQSMessage message = accepted.get(i);
+            final Map<String, Object> result = results.get(i);
+            try {
+                if (!Integer.valueOf(200).equals(result.get("statusCode")))
+                    throw new IOException(String.valueOf(result.get("message")));
+                final String body = (String) result.get("body");
+                final byte[] content = Boolean.TRUE.equals(result.get("isBase64Encoded")) ?
+                        Base64.decode(body) :
+                        body.getBytes(StandardCharsets.UTF_8);
+                sink.write(
+                        getAttribute(message, "key", message.getMessageId()) + "." + exporter.getDefaultExtension(),
+                        responseType,
+                        content);
+            } catch (IOException e) {
+                failed(message, e, response);
+            }
+        }
+    }
+
+    private static void failed(SQSEvent.SQSMessage message, Exception e, SQSBatchResponse response) {
+        logger.error("Message " + message.getMessageId() + " failed: " + e.getMessage(), e);
+        response.getBatchItemFailures().add(new SQSBatchResponse.BatchItemFailure(message.getMessageId()));
+    }
+
+    private static BatchDocument toBatchDocument(SQSEvent.SQSMessage message) {
+        final BatchDocument rv = new BatchDocument();
+        rv.id = message.getMessageId();
+        rv.content = message.getBody();
+        rv.contentType = getAttribute(message, "Content-Type", "text/plain");
+        rv.nextAnnotationId = Integer.parseInt(getAttribute(message, "nextAnnotationId", "0"));
+        rv.isBase64Encoded = Boolean.parseBoolean(getAttribute(message, "isBase64Encoded", "false"));
+        return rv;
+    }
+
+    private static String getAttribute(SQSEvent.SQSMessage message, String name, String defaultValue) {
+        final Map<String, SQSEvent.MessageAttribute> attributes = message.getMessageAttributes();
+        if (attributes == null || attributes.get(name) == null || attributes.get(name).getStringValue() == null)
+            return defaultValue;
+        return attributes.get(name).getStringValue();
+    }
+}
@@ -0,0 +1,39 @@
+package co.zeroae.gate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The partial batch response of an SQS event source mapping with ReportBatchItemFailures enabled.
+ * This class structure must match the SQSBatchResponse of newer aws-lambda-java-events releases.
+ */
+public class SQSBatchResponse {
+    private List<BatchItemFailure> batchItemFailures = new ArrayList<>();
+
+    public List<BatchItemFailure> getBatchItemFailures() {
+        return batchItemFailures;
+    }
+
+    public void setBatchItemFailures(List<BatchItemFailure> batchItemFailures) {
+        this.batchItemFailures = batchItemFailures;
+    }
+
+    public static class BatchItemFailure {
+        private String itemIdentifier;
+
+        public BatchItemFailure() {
+        }
+
+        public BatchItemFailure(String itemIdentifier) {
+            this.itemIdentifier = itemIdentifier;
+        }
+
+        public String getItemIdentifier() {
+            return itemIdentifier;
+        }
+
+        public void setItemIdentifier(String itemIdentifier) {
+            this.itemIdentifier = itemIdentifier;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package co.zeroae.gate;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sun.xml.fastinfoset.stax.StAXDocumentSerializer;
+import gate.Document;
+import gate.DocumentExporter;
+import gate.FeatureMap;
+import gate.corpora.DocumentJsonUtils;
+import gate.corpora.DocumentStaxUtils;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Exporters of the whole Document that only write the annotations in its {@link AnnotationSelection}.
+ * They replace the GATE exporters of the same formats, which can only filter by modifying the Document.
+ */
+abstract class SelectionExporter extends DocumentExporter {
+    /**
+     * @param fileType         this is the human readable file type name that will
+     *                         appear on the menu
+     * @param defaultExtension the default file extension for this type
+     * @param mimeType         the mimeType
+     */
+    public SelectionExporter(String fileType, String defaultExtension, String mimeType) {
+        super(fileType, defaultExtension, mimeType);
+    }
+
+    protected void export(Document doc, XMLStreamWriter xsw, FeatureMap options) throws XMLStreamException {
+        final AnnotationSelection selection = AnnotationSelection.fromOptions(doc, options);
+        xsw.writeStartDocument("1.0");
+        DocumentStaxUtils.writeDocument(doc, selection.byAnnotationSet(), xsw, "");
+        xsw.writeEndDocument();
+        xsw.flush();
+        xsw.close();
+    }
+
+    static class GateXML extends SelectionExporter {
+        private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+        public GateXML() {
+            super("GATE XML", "xml", "application/gate+xml");
+        }
+
+        @Override
+        public void export(Document doc, OutputStream out, FeatureMap options) throws IOException {
+            try {
+                export(doc, outputFactory.createXMLStreamWriter(out, "UTF-8"), options);
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    static class GATEFastInfoset extends SelectionExporter {
+        public GATEFastInfoset() {
+            super("GATE FastInfoset", "finf", "application/fastinfoset");
+        }
+
+        @Override
+        public void export(Document doc, OutputStream out, FeatureMap options) throws IOException {
+            try {
+                export(doc, new StAXDocumentSerializer(out), options);
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    static class GATEJson extends SelectionExporter {
+        public GATEJson() {
+            super("GATE JSON", "json", "application/json");
+        }
+
+        @Override
+        public void export(Document doc, OutputStream out, FeatureMap options) throws IOException {
+            final AnnotationSelection selection = AnnotationSelection.fromOptions(doc, options);
+            try (JsonGenerator json = Utils.objectMapper.getFactory().createGenerator(out)) {
+                DocumentJsonUtils.writeDocument(doc, selection.byType(), json);
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package co.zeroae.gate;
+
+import com.amazonaws.xray.AWSXRay;
+import com.amazonaws.xray.entities.Entity;
+import gate.Corpus;
+import gate.CorpusController;
+import gate.Factory;
+import gate.Gate;
+import gate.creole.Plugin;
+import gate.util.persistence.PersistenceManager;
+import org.codehaus.httpcache4j.util.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs the independent steps of the App static initialization concurrently, each one timed in its own
+ * X-Ray segment or subsegment.
+ * <p>
+ * The steps must not touch the App class, its static initializer is the one waiting for them.
+ */
+class Startup {
+    private static final Logger logger = LoggerFactory.getLogger(Startup.class);
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool((runnable) -> {
+        final Thread rv = new Thread(runnable, "startup");
+        rv.setDaemon(true);
+        return rv;
+    });
+
+    @FunctionalInterface
+    interface Step<T> {
+        T get() throws Exception;
+    }
+
+    /**
+     * @param appName the GATE_APP_NAME
+     * @return the loaded application, with its own Corpus. GATE and its document formats are initialized first.
+     */
+    static CompletableFuture<CorpusController> loadApplication(String appName) {
+        return segment("Gate Init", Startup::initGate)
+                .thenCompose((ignored) -> segment("Gate Load", () -> loadApplicationNow(appName)));
+    }
+
+    /**
+     * @return the DocumentLRUCache, it does not depend on GATE so it is built while GATE initializes.
+     */
+    static CompletableFuture<DocumentLRUCache> initCache(
+            String cacheDir, double maxUsage, long maxHeapBytes, long coalesceTimeoutMillis,
+            CacheAdmission admission, CacheStore remote, EntryCodec.Selector codecs) {
+        return segment("Cache Init", () -> new DocumentLRUCache(
+                cacheDir, maxUsage, maxHeapBytes, coalesceTimeoutMillis, admission, remote, codecs));
+    }
+
+    /**
+     * @return the fingerprint of the loaded application and settings, see {@link #fingerprint(String, String...)}.
+     */
+    static CompletableFuture<String> fingerprintApplication(String appName, String... settings) {
+        return segment("Fingerprint", () -> fingerprint(appName, settings));
+    }
+
+    /**
+     * Fingerprints the loaded application, so the cache keys of two processes running the same application agree,
+     * across restarts and containers. It covers the application, see {@link #fingerprint(URL)}, the plugins in the
+     * CREOLE register and the given settings.
+     *
+     * @param appName  the GATE_APP_NAME, GATE must have loaded it already
+     * @param settings anything else that changes the annotations of a Document
+     * @return the hex encoded SHA-256 of it all.
+     * @throws IOException if the application directory could not be read.
+     */
+    static String fingerprint(String appName, String... settings) throws IOException {
+        final MessageDigest md = digestApplication(Objects.requireNonNull(
+                Startup.class.getClassLoader().getResource(appName + "/application.xgapp")));
+        final List<String> plugins = new ArrayList<>();
+        for (Plugin plugin : Gate.getCreoleRegister().getPlugins())
+            plugins.add(String.valueOf(plugin.getBaseURL()));
+        Collections.sort(plugins);
+        for (String plugin : plugins)
+            update(md, plugin);
+        for (String setting : settings)
+            update(md, String.valueOf(setting));
+        return Hex.encode(md.digest());
+    }
+
+    /**
+     * Fingerprints an application before it is loaded: the application.xgapp and every resource file next to it,
+     * and the GATE and Java versions. The xgapp names the plugins it loads, and the jars of the maven-cache.gate
+     * are only fingerprinted by path and size, their path has the plugin version.
+     * The application may be packaged in a jar, as it is for the AppCDS training, its fingerprint is the same.
+     *
+     * @param gappUrl the application.xgapp
+     * @return the hex encoded SHA-256 of it all.
+     * @throws IOException if the application directory could not be read.
+     */
+    static String fingerprint(URL gappUrl) throws IOException {
+        return Hex.encode(digestApplication(gappUrl).digest());
+    }
+
+    private static MessageDigest digestApplication(URL gappUrl) throws IOException {
+        final URI gappUri;
+        try {
+            gappUri = gappUrl.toURI();
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        try (FileSystem ignored = openJar(gappUri)) {
+            final Path directory = Paths.get(gappUri).getParent();
+            final String separator = directory.getFileSystem().getSeparator();
+            final List<Path> files;
+            try (Stream<Path> walk = Files.walk(directory)) {
+                files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+            final byte[] buffer = new byte[8192];
+            for (Path file : files) {
+                final String relative = directory.relativize(file).toString().replace(separator, "/");
+                // The snapshot is derived from the xgapp, built or not the annotations are the same.
+                if (relative.startsWith(ApplicationSnapshot.GRAMMARS + "/") ||
+                        relative.equals(ApplicationSnapshot.XGAPP) || relative.equals(ApplicationSnapshot.FINGERPRINT))
+                    continue;
+                update(md, relative);
+                if (relative.endsWith(".jar"))
+                    update(md, String.valueOf(Files.size(file)));
+                else
+                    try (InputStream in = Files.newInputStream(file)) {
+                        for (int read = in.read(buffer); read >= 0; read = in.read(buffer))
+                            md.update(buffer, 0, read);
+                    }
+            }
+        }
+        update(md, String.valueOf(Gate.class.getPackage().getImplementationVersion()));
+        update(md, System.getProperty("java.specification.version"));
+        return md;
+    }
+
+    /**
+     * @return the file system of a jar: URI, to be closed once its paths are no longer used, or null if the URI is
+     * not in a jar or its jar is already open.
+     */
+    private static FileSystem openJar(URI uri) throws IOException {
+        if (!"jar".equals(uri.getScheme()))
+            return null;
+        try {
+            return FileSystems.newFileSystem(uri, Collections.emptyMap());
+        } catch (FileSystemAlreadyExistsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Digests the string followed by a NUL, so that no two sequences of strings digest the same.
+     */
+    private static void update(MessageDigest md, String value) {
+        md.update(value.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+    }
+
+    private static Void initGate() throws Exception {
+        Gate.init();
+        join(CompletableFuture.allOf(
+                subsegment("Document Formats", () -> {
+                    Utils.loadDocumentFormats();
+                    return null;
+                }),
+                subsegment("Exporters", () -> Utils.exporters)));
+        return null;
+    }
+
+    private static CorpusController loadApplicationNow(String appName) throws Exception {
+        final String gappResourcePah = appName + "/application.xgapp";
+        final URL gappUrl = Objects.requireNonNull(Startup.class.getClassLoader().getResource(gappResourcePah));
+        CorpusController rv = ApplicationSnapshot.load(gappUrl);
+        AWSXRay.getCurrentSegment().putMetadata("Snapshot", rv != null);
+        if (rv == null)
+            rv = (CorpusController) PersistenceManager.loadObjectFromUrl(gappUrl);
+        final Corpus corpus = Factory.newCorpus("Lambda Corpus");
+        rv.setCorpus(corpus);
+        return rv;
+    }
+
+    /**
+     * @param name the X-Ray segment name
+     * @param step the step to run in the background
+     * @return the future result of the step.
+     */
+    static <T> CompletableFuture<T> segment(String name, Step<T> step) {
+        return CompletableFuture.supplyAsync(() -> AWSXRay.createSegment(name, () -> timed(name, step)), executor);
+    }
+
+    /**
+     * Runs the step in a subsegment of the current X-Ray entity, which must not end before the step does.
+     *
+     * @param name the X-Ray subsegment name
+     * @param step the step to run in the background
+     * @return the future result of the step.
+     */
+    static <T> CompletableFuture<T> subsegment(String name, Step<T> step) {
+        final Entity parent = AWSXRay.getTraceEntity();
+        return CompletableFuture.supplyAsync(() -> {
+            AWSXRay.setTraceEntity(parent);
+            try {
+                return AWSXRay.createSubsegment(name, () -> timed(name, step));
+            } finally {
+                AWSXRay.clearTraceEntity();
+            }
+        }, executor);
+    }
+
+    /**
+     * @return the result of the future, a failed step is rethrown as a RuntimeException.
+     */
+    static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ?
+                    (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        }
+    }
+
+    private static <T> T timed(String name, Step<T> step) {
+        final long start = System.nanoTime();
+        try {
+            return step.get();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            logger.info(name + " took " + (System.nanoTime() - start) / 1000000 + " ms.");
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package co.zeroae.gate;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * This class serves the same API Gateway proxy requests as App, through a RequestStreamHandler.
+ * Execute responses are exported straight into the Lambda output stream, Base64 encoded on the fly if needed,
+ * instead of being buffered, converted to a String and serialized once more by the runtime.
+ * Use it as co.zeroae.gate.StreamApp::handleRequest for applications that return large documents.
+ */
+public class StreamApp implements RequestStreamHandler {
+    private static final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final App app = new App();
+
+    @Override
+    public void handleRequest(InputStream input, OutputStream output, Context context) throws IOException {
+        final APIGatewayProxyRequestEvent request = objectMapper.readValue(input, APIGatewayProxyRequestEvent.class);
+        final OutputStream out = new BufferedOutputStream(output, 64 * 1024);
+        if (request.getPath().matches("^/([^/]*)/?$"))
+            app.streamExecute(request, out);
+        else
+            ProxyResponseWriter.write(out, app.handleRequest(request, context));
+        out.flush();
+    }
+}
@@ -0,0 +1,85 @@
+package co.zeroae.gate;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.amazonaws.util.Base64;
+import com.amazonaws.xray.AWSXRay;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Runs the App over a training corpus, so the JVM loads the classes a real invocation needs.
+ * The appcds Gradle tasks run it with -XX:DumpLoadedClassList to build the class list of the archive,
+ * and again with and without the archive to report the cold start times.
+ * <p>
+ * Usage: Training corpusDirOrFile...
+ */
+public class Training {
+    private static final Map<String, String> contentTypes = new HashMap<String, String>() {{
+        put("txt", "text/plain");
+        put("json", "application/json");
+        put("xml", "text/xml");
+        put("html", "text/html");
+        put("finf", "application/fastinfoset");
+    }};
+
+    public static void main(String[] args) throws IOException {
+        final long start = System.nanoTime();
+        AWSXRay.beginSegment("Training");
+        int failures = 0;
+        try {
+            final App app = new App();
+            final long initMs = (System.nanoTime() - start) / 1000000;
+            final long firstStart = System.nanoTime();
+            long firstMs = -1;
+
+            final List<File> corpus = new ArrayList<>();
+            for (String arg : args) {
+                final File file = new File(arg);
+                final File[] children = file.listFiles();
+                if (children != null) {
+                    Arrays.sort(children);
+                    corpus.addAll(Arrays.asList(children));
+                } else
+                    corpus.add(file);
+            }
+            for (File file : corpus) {
+                final String extension = file.getName().substring(file.getName().lastIndexOf('.') + 1);
+                final String contentType = contentTypes.get(extension);
+                if (contentType == null)
+                    continue;
+                final byte[] content = Files.readAllBytes(file.toPath());
+                final boolean isBinary = contentType.equals("application/fastinfoset");
+                for (String responseType : new TreeSet<>(Utils.exporters.keySet())) {
+                    final Map<String, String> headers = new HashMap<>();
+                    headers.put("Content-Type", contentType);
+                    headers.put("Accept", responseType);
+                    final APIGatewayProxyResponseEvent response = app.handleRequest(new APIGatewayProxyRequestEvent()
+                            .withPath("/" + System.getenv("GATE_APP_NAME"))
+                            .withHttpMethod("POST")
+                            .withHeaders(headers)
+                            .withBody(isBinary ? Base64.encodeAsString(content) : new String(content))
+                            .withIsBase64Encoded(isBinary), null);
+                    if (firstMs < 0)
+                        firstMs = (System.nanoTime() - firstStart) / 1000000;
+                    if (response.getStatusCode() != 200) {
+                        failures++;
+                        System.err.println(file + " as " + responseType + ": " + response.getBody());
+                    }
+                }
+            }
+            System.out.println("Cold start: " +
+                    "JVM uptime " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms, " +
+                    "init " + initMs + " ms, " +
+                    "first response " + firstMs + " ms, " +
+                    ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount() + " classes loaded.");
+        } finally {
+            AWSXRay.endSegment();
+        }
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
@@ -2,23 +2,28 @@ package co.zeroae.gate;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.xml.fastinfoset.stax.StAXDocumentParser;
+import com.sun.xml.fastinfoset.stax.StAXDocumentSerializer;
 import gate.*;
 import gate.corpora.*;
-import gate.corpora.export.GATEJsonExporter;
-import gate.corpora.export.GateXMLExporter;
 import gate.creole.Plugin;
+import gate.creole.ResourceData;
 import gate.creole.ResourceInstantiationException;
+import gate.creole.metadata.AutoInstance;
+import gate.creole.metadata.AutoInstanceParam;
+import gate.creole.metadata.CreoleParameter;
+import gate.creole.metadata.CreoleResource;
 import gate.util.GateException;
-import org.codehaus.httpcache4j.util.Hex;
 
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.net.MalformedURLException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Utils {
 
@@ -26,6 +31,14 @@ public class Utils {
 
     static final Map<String, DocumentExporter> exporters = loadExporters();
 
+    /**
+     * The response types whose exporters write binary content.
+     */
+    static final Set<String> binaryResponseTypes = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "application/fastinfoset",
+            "application/fastinfoset; includeText=no",
+            ColumnarExporter.MIME_TYPE)));
+
     static String asJson(Map<String, Object> obj) {
         try {
             return objectMapper.writeValueAsString(obj);
@@ -34,13 +47,27 @@ public class Utils {
         }
     }
 
+    /**
+     * The document formats that register on their first request, by the MIME types they declare.
+     */
+    private static final Map<String, Class<? extends Resource>> lazyDocumentFormats = new ConcurrentHashMap<>();
+
     static String ensureValidRequestContentType(String contentType) throws GateException {
-        final MimeType mimeType = DocumentFormat.getMimeTypeForString(
-                contentType.equals("application/json") ? "text/json" : contentType);
+        final String requestedType = contentType.equals("application/json") ? "text/json" : contentType;
+        MimeType mimeType = DocumentFormat.getMimeTypeForString(requestedType);
+        if (mimeType == null) {
+            final String baseType = requestedType.split(";")[0].trim().toLowerCase();
+            if (lazyDocumentFormats.containsKey(baseType)) {
+                registerDocumentFormat(baseType);
+                mimeType = DocumentFormat.getMimeTypeForString(requestedType);
+            }
+        }
         if (mimeType == null) {
+            final Set<String> supportedTypes = new TreeSet<>(DocumentFormat.getSupportedMimeTypes());
+            supportedTypes.addAll(lazyDocumentFormats.keySet());
             throw new GateException(
                     "Unsupported MIME type " + contentType + " valid options are "
-                            + Arrays.toString(DocumentFormat.getSupportedMimeTypes()
+                            + Arrays.toString(supportedTypes
                             .stream()
                             .map((type) -> type.equals("text/json") ? "application/json" : type)
                             .sorted()
@@ -61,6 +88,66 @@ public class Utils {
                 Arrays.toString(exporters.keySet().stream().sorted().toArray()));
     }
 
+    /**
+     * @param contentEncoding the Content-Encoding request header, may be null
+     * @return gzip, deflate, or null for identity.
+     * @throws GateException if the encoding is not supported.
+     */
+    static String ensureValidContentEncoding(String contentEncoding) throws GateException {
+        if (contentEncoding == null)
+            return null;
+        switch (contentEncoding.trim().toLowerCase()) {
+            case "":
+            case "identity":
+                return null;
+            case "gzip":
+            case "x-gzip":
+                return "gzip";
+            case "deflate":
+                return "deflate";
+            default:
+                throw new GateException("Unsupported Content-Encoding " + contentEncoding +
+                        ", valid options are [deflate, gzip, identity]");
+        }
+    }
+
+    /**
+     * @param acceptEncoding the Accept-Encoding request header, may be null
+     * @return gzip or deflate, whichever the client prefers, or null if it accepts neither.
+     */
+    static String negotiateContentEncoding(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return null;
+        final Map<String, Double> qualities = new HashMap<>();
+        for (String coding : acceptEncoding.split(",")) {
+            final String[] parts = coding.split(";");
+            final String name = parts[0].trim().toLowerCase();
+            double q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                final String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            qualities.put(name.equals("x-gzip") ? "gzip" : name, q);
+        }
+        // On a tie gzip wins, it is the one every client decodes.
+        String rv = null;
+        double best = 0;
+        for (String encoding : new String[]{"gzip", "deflate"}) {
+            final double q = qualities.getOrDefault(encoding, qualities.getOrDefault("*", 0.));
+            if (q > best) {
+                rv = encoding;
+                best = q;
+            }
+        }
+        return rv;
+    }
+
     /**
      * @param gateXMLReader a Reader with GateXML content.
      * @return The parsed Document.
@@ -68,46 +155,138 @@ public class Utils {
      * @throws XMLStreamException             if the reader has invalid XML content.
      */
     static Document xmlToDocument(Reader gateXMLReader) throws ResourceInstantiationException, XMLStreamException {
+        return readGateXmlDocument(XMLInputFactory.newFactory().createXMLStreamReader(gateXMLReader));
+    }
+
+    /**
+     * @param fastInfosetStream an InputStream with GateXML content encoded as FastInfoset.
+     * @return The parsed Document.
+     * @throws ResourceInstantiationException if the Factory fails to create an empty Document.
+     * @throws XMLStreamException             if the stream has invalid FastInfoset content.
+     */
+    static Document fastInfosetToDocument(InputStream fastInfosetStream)
+            throws ResourceInstantiationException, XMLStreamException {
+        return readGateXmlDocument(new StAXDocumentParser(fastInfosetStream));
+    }
+
+    /**
+     * @param doc the Document to write, content, features and every annotation set.
+     * @param out the OutputStream for the GateXML content encoded as FastInfoset, it is left open.
+     * @throws XMLStreamException if the Document can not be written.
+     */
+    static void documentToFastInfoset(Document doc, OutputStream out) throws XMLStreamException {
+        final StAXDocumentSerializer xsw = new StAXDocumentSerializer(out);
+        xsw.writeStartDocument("1.0");
+        DocumentStaxUtils.writeDocument(doc, xsw, "");
+        xsw.writeEndDocument();
+        xsw.flush();
+    }
+
+    private static Document readGateXmlDocument(XMLStreamReader reader)
+            throws ResourceInstantiationException, XMLStreamException {
         final Document doc = Factory.newDocument("");
-        XMLStreamReader reader;
-        reader = XMLInputFactory.newFactory().createXMLStreamReader(gateXMLReader);
-        do {
-            reader.next();
-        } while (reader.getEventType() != XMLStreamReader.START_ELEMENT);
-        gate.corpora.DocumentStaxUtils.readGateXmlDocument(reader, doc);
-        return doc;
+        try {
+            do {
+                reader.next();
+            } while (reader.getEventType() != XMLStreamReader.START_ELEMENT);
+            DocumentStaxUtils.readGateXmlDocument(reader, doc);
+            return doc;
+        } catch (XMLStreamException | RuntimeException e) {
+            Factory.deleteResource(doc);
+            throw e;
+        }
     }
 
+    /**
+     * Removes a Resource from the CREOLE register without cleaning it up, it is reclaimed once unreachable.
+     * Unlike Factory.deleteResource, this is safe while other threads are still reading the Resource.
+     *
+     * @param resource a Resource created by the Factory.
+     */
+    static void unregisterResource(Resource resource) {
+        final ResourceData resourceData = Gate.getCreoleRegister().get(resource.getClass().getName());
+        if (resourceData != null)
+            resourceData.removeInstantiation(resource);
+    }
+
+    /**
+     * Indexes the document formats we bundle by the MIME types they declare, so they only register once requested.
+     * The formats that do not declare their MIME type in their CREOLE metadata are registered right away.
+     */
     static void loadDocumentFormats() {
+        final Set<Class<? extends gate.Resource>> classes = new HashSet<>();
+        classes.add(CochraneTextDocumentFormat.class);
+        classes.add(DataSiftFormat.class);
+        classes.add(FastInfosetDocumentFormat.class);
+        classes.add(GATEJSONFormat.class);
+        classes.add(JSONTweetFormat.class);
+        classes.add(MediaWikiDocumentFormat.class);
+        classes.add(PubmedTextDocumentFormat.class);
+        for (Class<? extends gate.Resource> clazz : classes) {
+            final Set<String> mimeTypes = declaredMimeTypes(clazz);
+            if (mimeTypes.isEmpty())
+                registerDocumentFormat(clazz);
+            for (String mimeType : mimeTypes)
+                lazyDocumentFormats.put(mimeType.toLowerCase(), clazz);
+        }
+    }
+
+    private static synchronized void registerDocumentFormat(String mimeType) {
+        final Class<? extends Resource> clazz = lazyDocumentFormats.get(mimeType);
+        if (clazz != null) {
+            registerDocumentFormat(clazz);
+            lazyDocumentFormats.values().removeIf((registered) -> registered == clazz);
+        }
+    }
+
+    private static void registerDocumentFormat(Class<? extends Resource> clazz) {
         try {
-            final Set<Class<? extends gate.Resource>> classes = new HashSet<>();
-            classes.add(CochraneTextDocumentFormat.class);
-            classes.add(DataSiftFormat.class);
-            classes.add(FastInfosetDocumentFormat.class);
-            classes.add(GATEJSONFormat.class);
-            classes.add(JSONTweetFormat.class);
-            classes.add(MediaWikiDocumentFormat.class);
-            classes.add(PubmedTextDocumentFormat.class);
-            for (Class<? extends gate.Resource> clazz : classes) {
-                Gate.getCreoleRegister().registerPlugin(new UniqueHashComponent(clazz));
-            }
+            Gate.getCreoleRegister().registerPlugin(new UniqueHashComponent(clazz));
         } catch (GateException | MalformedURLException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * @param clazz a DocumentFormat class
+     * @return the MIME types of its auto instances, or of its mimeType parameter default value.
+     */
+    private static Set<String> declaredMimeTypes(Class<?> clazz) {
+        final Set<String> rv = new HashSet<>();
+        final CreoleResource creoleResource = clazz.getAnnotation(CreoleResource.class);
+        if (creoleResource != null)
+            for (AutoInstance autoInstance : creoleResource.autoinstances())
+                for (AutoInstanceParam param : autoInstance.parameters())
+                    if (param.name().equals("mimeType"))
+                        rv.add(param.value());
+        if (rv.isEmpty()) {
+            try {
+                final CreoleParameter parameter = clazz.getMethod("setMimeType", MimeType.class)
+                        .getAnnotation(CreoleParameter.class);
+                if (parameter != null && !parameter.defaultValue().isEmpty())
+                    rv.add(parameter.defaultValue());
+            } catch (NoSuchMethodException e) {
+                // Not a DocumentFormat, it is registered right away.
+            }
+        }
+        return rv;
+    }
+
     /**
      * Loads all exporters that we support
      *
      * @return an UnmodifiableMap of the supported exporters.
      */
     static Map<String, DocumentExporter> loadExporters() {
-        final GATEJsonExporter gateJsonExporter = new GATEJsonExporter();
-        final GateXMLExporter gateXMLExporter = new GateXMLExporter();
-        final FastInfosetExporter fastInfosetExporter = new FastInfosetExporter();
+        final SelectionExporter.GATEJson gateJsonExporter = new SelectionExporter.GATEJson();
+        final SelectionExporter.GateXML gateXMLExporter = new SelectionExporter.GateXML();
+        final SelectionExporter.GATEFastInfoset fastInfosetExporter = new SelectionExporter.GATEFastInfoset();
 
         final AnnotationSetExporter.GateXML annotationSetXMLExporter = new AnnotationSetExporter.GateXML();
         final AnnotationSetExporter.GATEFastInfoset annotationSetFastInfosetExporter = new AnnotationSetExporter.GATEFastInfoset();
+        final CompactJsonExporter compactJsonExporter = new CompactJsonExporter(false);
+        final CompactJsonExporter offsetsOnlyJsonExporter = new CompactJsonExporter(true);
+        final ColumnarExporter columnarExporter = new ColumnarExporter();
 
         final Map<String, DocumentExporter> rv = new HashMap<>();
         rv.put("application/gate+xml", gateXMLExporter);
@@ -117,21 +296,12 @@ public class Utils {
 
         rv.put("application/gate+xml; includeText=no", annotationSetXMLExporter);
         rv.put("application/fastinfoset; includeText=no", annotationSetFastInfosetExporter);
+        rv.put(compactJsonExporter.getMimeType(), compactJsonExporter);
+        rv.put(offsetsOnlyJsonExporter.getMimeType(), offsetsOnlyJsonExporter);
+        rv.put(columnarExporter.getMimeType(), columnarExporter);
         return Collections.unmodifiableMap(rv);
     }
 
-    static String computeMessageDigest(String message) {
-        try {
-            final String rv;
-            final MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(message.getBytes());
-            rv = Hex.encode(md.digest());
-            return rv;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     @FunctionalInterface
     interface GATESupplier<T> {
         T get() throws GateException;
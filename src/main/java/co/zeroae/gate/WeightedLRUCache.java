@@ -0,0 +1,104 @@
+package co.zeroae.gate;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A thread-safe LRU map bounded by the total weight of its values instead of their count.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+class WeightedLRUCache<K, V> {
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, .75f, true);
+    private final long maxWeight;
+    private final Consumer<V> onEviction;
+    private long weight = 0;
+
+    /**
+     * @param maxWeight  the weight budget
+     * @param onEviction called with every value that leaves the cache, evicted, removed or replaced.
+     */
+    WeightedLRUCache(long maxWeight, Consumer<V> onEviction) {
+        this.maxWeight = maxWeight;
+        this.onEviction = onEviction;
+    }
+
+    synchronized V get(K key) {
+        final Entry<V> entry = entries.get(key);
+        return entry != null ? entry.value : null;
+    }
+
+    /**
+     * @param weight the weight of a value
+     * @return true if a value with this weight can ever be stored.
+     */
+    boolean fits(long weight) {
+        return weight <= maxWeight;
+    }
+
+    /**
+     * Stores the value, evicting the least recently used ones until it fits.
+     *
+     * @param key    the key
+     * @param value  the value
+     * @param weight the weight of the value
+     * @return the number of values evicted to make space, or -1 if the value does not fit at all.
+     */
+    synchronized int put(K key, V value, long weight) {
+        if (!fits(weight))
+            return -1;
+        final Entry<V> previous = entries.put(key, new Entry<>(value, weight));
+        if (previous != null) {
+            this.weight -= previous.weight;
+            if (previous.value != value)
+                onEviction.accept(previous.value);
+        }
+        this.weight += weight;
+
+        int evictions = 0;
+        final Iterator<Map.Entry<K, Entry<V>>> it = entries.entrySet().iterator();
+        while (this.weight > maxWeight && it.hasNext()) {
+            final Map.Entry<K, Entry<V>> eldest = it.next();
+            if (eldest.getKey().equals(key))
+                continue;
+            it.remove();
+            this.weight -= eldest.getValue().weight;
+            onEviction.accept(eldest.getValue().value);
+            evictions++;
+        }
+        return evictions;
+    }
+
+    synchronized void remove(K key) {
+        final Entry<V> entry = entries.remove(key);
+        if (entry != null) {
+            weight -= entry.weight;
+            onEviction.accept(entry.value);
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getWeight() {
+        return weight;
+    }
+
+    long getMaxWeight() {
+        return maxWeight;
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long weight;
+
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package co.zeroae.gate.mmap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct ByteBuffers with power of two capacities, bounded by the total number of bytes it keeps idle.
+ * The buffers live off the heap, a large body in flight does not grow the heap nor survive into the old generation.
+ */
+public class BufferPool {
+    private static final int MIN_BUCKET = 12;
+    private static final int MAX_BUCKET = 30;
+
+    private final long maxIdleBytes;
+    private final AtomicLong idleBytes = new AtomicLong();
+    private final List<ConcurrentLinkedDeque<ByteBuffer>> buckets = new ArrayList<>();
+
+    /**
+     * @param maxIdleBytes the most bytes the pool keeps around between acquire calls.
+     */
+    public BufferPool(long maxIdleBytes) {
+        this.maxIdleBytes = maxIdleBytes;
+        for (int i = 0; i <= MAX_BUCKET; i++)
+            buckets.add(new ConcurrentLinkedDeque<>());
+    }
+
+    /**
+     * @param minCapacity the minimum capacity of the buffer
+     * @return a cleared direct buffer of at least minCapacity bytes, its content is undefined.
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        final int bucket = bucketOf(minCapacity);
+        if (bucket > MAX_BUCKET)
+            return ByteBuffer.allocateDirect(minCapacity);
+        final ByteBuffer rv = buckets.get(bucket).pollFirst();
+        if (rv != null) {
+            idleBytes.addAndGet(-rv.capacity());
+            rv.clear();
+            return rv;
+        }
+        return ByteBuffer.allocateDirect(1 << bucket);
+    }
+
+    /**
+     * @param buffer a buffer obtained through acquire, the caller must not use it, nor its duplicates, afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        final int bucket = bucketOf(buffer.capacity());
+        if (!buffer.isDirect() || bucket > MAX_BUCKET || buffer.capacity() != 1 << bucket)
+            return;
+        if (idleBytes.addAndGet(buffer.capacity()) > maxIdleBytes) {
+            idleBytes.addAndGet(-buffer.capacity());
+            return;
+        }
+        buckets.get(bucket).offerFirst(buffer);
+    }
+
+    public long getIdleBytes() {
+        return idleBytes.get();
+    }
+
+    private static int bucketOf(int capacity) {
+        if (capacity <= 1 << MIN_BUCKET)
+            return MIN_BUCKET;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1);
+    }
+}
@@ -2,18 +2,71 @@ package co.zeroae.gate.mmap;
 
 import com.amazonaws.util.Base64;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
+import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
-import java.util.Collections;
+import java.nio.ByteBuffer;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Serves mmap://&lt;Base64 content type&gt;/&lt;path&gt; URLs from the buffers registered under each path.
+ * A registration lasts until it is released, which hands the buffer back to its owner.
+ */
 public class Handler extends URLStreamHandler {
-    public static final Map<String, byte[]> paths = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final Map<String, Registration> paths = new ConcurrentHashMap<>();
+
+    private static class Registration {
+        final ByteBuffer content;
+        final Runnable onRelease;
+
+        Registration(ByteBuffer content, Runnable onRelease) {
+            this.content = content;
+            this.onRelease = onRelease;
+        }
+    }
+
+    /**
+     * @param path      a unique path
+     * @param content   the bytes between its position and its limit are served, read-only
+     * @param onRelease called once the path is released
+     * @throws IllegalStateException if the path is already registered.
+     */
+    public static void register(String path, ByteBuffer content, Runnable onRelease) {
+        if (paths.putIfAbsent(path, new Registration(content.asReadOnlyBuffer(), onRelease)) != null)
+            throw new IllegalStateException("The mmap path '" + path + "' is already registered.");
+    }
+
+    /**
+     * Stops serving the path. Streams already open keep reading until their owner reuses the buffer.
+     *
+     * @param path a registered path
+     * @return false if the path was not registered, or released already.
+     */
+    public static boolean release(String path) {
+        final Registration registration = paths.remove(path);
+        if (registration == null)
+            return false;
+        registration.onRelease.run();
+        return true;
+    }
+
+    /**
+     * @param url any URL
+     * @return true if it is an mmap URL that was still registered.
+     */
+    public static boolean release(URL url) {
+        return "mmap".equals(url.getProtocol()) && release(url.getPath());
+    }
+
+    /**
+     * @return the number of paths registered.
+     */
+    public static int size() {
+        return paths.size();
+    }
 
     @Override
     protected URLConnection openConnection(URL u) {
@@ -41,8 +94,18 @@ public class Handler extends URLStreamHandler {
         }
 
         @Override
-        public InputStream getInputStream() throws IOException {
-            return new ByteArrayInputStream(paths.get(url.getPath()));
+        public int getContentLength() {
+            final Registration registration = paths.get(url.getPath());
+            return registration == null ? -1 : registration.content.remaining();
+        }
+
+        @Override
+        public InputStream getInputStream() throws FileNotFoundException {
+            final Registration registration = paths.get(url.getPath());
+            if (registration == null)
+                throw new FileNotFoundException(url.toString());
+            // Every stream gets its own position, GATE opens the URL more than once per Document.
+            return new ByteBufferInputStream(registration.content.duplicate());
         }
     }
 }
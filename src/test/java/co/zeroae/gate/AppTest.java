@@ -1,5 +1,6 @@
 package co.zeroae.gate;
 
+import co.zeroae.gate.mmap.Handler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
 import com.amazonaws.util.Base64;
@@ -9,8 +10,12 @@ import com.amazonaws.xray.AWSXRay;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.sun.xml.fastinfoset.stax.StAXDocumentParser;
+import gate.Annotation;
 import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
 import gate.util.GateException;
 import org.apache.commons.codec.binary.Base64InputStream;
 import org.junit.After;
@@ -21,13 +26,22 @@ import org.junit.Test;
 import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Random;
-import java.util.UUID;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static com.github.stefanbirkner.systemlambda.SystemLambda.withEnvironmentVariable;
 import static org.junit.Assert.*;
@@ -36,7 +50,9 @@ public class AppTest {
 
     @BeforeClass
     public static void setUpClass() throws Exception {
+        // A salt of its own keeps the caches left behind by earlier runs from answering this one.
         app = withEnvironmentVariable("GATE_APP_NAME", "annie")
+                .and("CACHE_KEY_SALT", UUID.randomUUID().toString())
                 .execute(App::new);
     }
 
@@ -121,6 +137,55 @@ public class AppTest {
 
     }
 
+    @Test
+    public void testNamedSetSelector() throws Exception {
+        final Document source = Factory.newDocument("Wanda Maximoff moved to Westview.");
+        source.getAnnotations().add(0L, 5L, "Token", Factory.newFeatureMap());
+        source.getAnnotations("Sentences").add(0L, 33L, "Sentence", Factory.newFeatureMap());
+        source.getAnnotations("Sentences").add(0L, 33L, "Paragraph", Factory.newFeatureMap());
+        try {
+            final FeatureMap options = Factory.newFeatureMap();
+            options.put(AnnotationSelection.OPTION,
+                    AnnotationSelection.of(source, Arrays.asList("Sentences:Sentence", ":Token")));
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new SelectionExporter.GateXML().export(source, out, options);
+
+            final Document doc = Utils.xmlToDocument(new StringReader(out.toString("UTF-8")));
+            assertEquals(Collections.singleton("Token"), doc.getAnnotations().getAllTypes());
+            assertEquals(Collections.singleton("Sentence"), doc.getAnnotations("Sentences").getAllTypes());
+            // The exporter reads a view, the Document keeps every annotation.
+            assertEquals(2, source.getAnnotations("Sentences").size());
+            Factory.deleteResource(doc);
+        } finally {
+            Factory.deleteResource(source);
+        }
+    }
+
+    @Test
+    public void testPipelinePruning() throws Exception {
+        input.withBody(input.getBody() + new Random().nextInt())
+                .withQueryStringParameters(new HashMap<>())
+                .getQueryStringParameters()
+                .put("annotations", ":Sentence");
+        APIGatewayProxyResponseEvent result = app.handleRequest(input, context);
+        assertEquals("MISS", result.getHeaders().get("x-zae-gate-cache"));
+        Document doc = Utils.xmlToDocument(new StringReader(result.getBody()));
+        // The OrthoMatcher changes the Tokens of the profile, so a Sentence selector is the one that gets pruned.
+        assertEquals(Collections.singleton("Sentence"), doc.getAnnotations().getAllTypes());
+
+        // The pruned Document must not serve a request for everything.
+        input.getQueryStringParameters().remove("annotations");
+        result = app.handleRequest(input, context);
+        assertEquals("MISS", result.getHeaders().get("x-zae-gate-cache"));
+        doc = Utils.xmlToDocument(new StringReader(result.getBody()));
+        assertEquals(7, doc.getAnnotations().getAllTypes().size());
+
+        // But the whole one serves every selector.
+        input_headers.put("Accept", "application/gate+json");
+        input.getQueryStringParameters().put("annotations", ":Sentence");
+        assertEquals("HIT", app.handleRequest(input, context).getHeaders().get("x-zae-gate-cache"));
+    }
+
     @Test
     public void testNextAnnotationId() {
         final int nextAnnotationId = 1000 + new Random().nextInt(1000);
@@ -167,6 +232,53 @@ public class AppTest {
         }
     }
 
+    @Test
+    public void testCompactJsonResponse() throws Exception {
+        input.withQueryStringParameters(new HashMap<>())
+                .getQueryStringParameters()
+                .put("annotations", ":Token");
+        input_headers.put("Accept", "application/gate+json; includeText=no");
+        APIGatewayProxyResponseEvent result = app.handleRequest(input, context);
+        assertEquals(200, result.getStatusCode().intValue());
+        assertEquals("application/gate+json", result.getHeaders().get("Content-Type"));
+        final Map<String, Map<String, List<Map<String, Object>>>> compact = Utils.objectMapper.readValue(
+                result.getBody(), new TypeReference<Map<String, Map<String, List<Map<String, Object>>>>>() { });
+        assertFalse(compact.containsKey("text"));
+        final List<Map<String, Object>> tokens = compact.get("entities").get("Token");
+        assertEquals(0, tokens.get(0).get("start"));
+        assertEquals("This", ((Map<?, ?>) tokens.get(0).get("features")).get("string"));
+
+        input_headers.put("Accept", "application/gate+json; offsetsOnly=yes");
+        result = app.handleRequest(input, context);
+        final Map<String, Map<String, List<List<Integer>>>> offsets = Utils.objectMapper.readValue(
+                result.getBody(), new TypeReference<Map<String, Map<String, List<List<Integer>>>>>() { });
+        assertEquals(tokens.size(), offsets.get("entities").get("Token").size());
+        assertEquals(Arrays.asList(tokens.get(0).get("id"), 0, 4), offsets.get("entities").get("Token").get(0));
+    }
+
+    @Test
+    public void testColumnarResponse() throws Exception {
+        final Document doc = Utils.xmlToDocument(new StringReader(app.handleRequest(input, context).getBody()));
+
+        input_headers.put("Accept", "application/vnd.zeroae.gate.columnar");
+        final APIGatewayProxyResponseEvent result = app.handleRequest(input, context);
+        assertEquals(200, result.getStatusCode().intValue());
+        assertTrue(result.getIsBase64Encoded());
+        final Map<String, ColumnarReader.Block> blocks = ColumnarReader.read(
+                new ByteArrayInputStream(Base64.decode(result.getBody())));
+        assertEquals(doc.getAnnotations().getAllTypes(), blocks.keySet());
+
+        final ColumnarReader.Block tokens = blocks.get("Token");
+        final List<Annotation> expected = gate.Utils.inDocumentOrder(doc.getAnnotations().get("Token"));
+        assertEquals(expected.size(), tokens.size());
+        assertEquals(0, tokens.getStarts()[0]);
+        assertEquals(4, tokens.getEnds()[0]);
+        assertEquals(expected.get(0).getId().intValue(), tokens.getIds()[0]);
+        assertEquals(expected.get(0).getFeatures().get("string"), tokens.getFeature("string", 0));
+        assertEquals(expected.get(0).getFeatures().get("length"), tokens.getFeature("length", 0));
+        assertTrue(tokens.hasFeature("string", 0));
+    }
+
     @Test
     public void testFastInfosetResponse() {
         input_headers.put("Accept", "application/fastinfoset");
@@ -209,7 +321,102 @@ public class AppTest {
 
         final APIGatewayProxyResponseEvent cachedResult = app.handleRequest(input, context);
         assertEquals(200, cachedResult.getStatusCode().intValue());
-        assertEquals("HIT", cachedResult.getHeaders().get("x-zae-gate-cache"));
+        assertEquals("HIT-RESPONSE", cachedResult.getHeaders().get("x-zae-gate-cache"));
+        assertEquals(result.getBody(), cachedResult.getBody());
+
+        // A different response type is served from the Document, not the response.
+        input_headers.put("Accept", "application/gate+json");
+        final APIGatewayProxyResponseEvent documentResult = app.handleRequest(input, context);
+        assertEquals(200, documentResult.getStatusCode().intValue());
+        assertEquals("HIT", documentResult.getHeaders().get("x-zae-gate-cache"));
+        assertEquals("application/gate+json", documentResult.getHeaders().get("Content-Type"));
+
+        // So is a different annotation selector, but its order does not matter.
+        input.withQueryStringParameters(new HashMap<>())
+                .getQueryStringParameters()
+                .put("annotations", ":Token, :Sentence");
+        assertEquals("HIT", app.handleRequest(input, context).getHeaders().get("x-zae-gate-cache"));
+        input.getQueryStringParameters().put("annotations", ":Sentence,:Token");
+        assertEquals("HIT-RESPONSE", app.handleRequest(input, context).getHeaders().get("x-zae-gate-cache"));
+    }
+
+    @Test
+    public void testConcurrentExecute() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<APIGatewayProxyResponseEvent>> results = new ArrayList<>();
+            final List<String> texts = new ArrayList<>();
+            final String run = UUID.randomUUID().toString();
+            for (int i = 0; i < 8; i++) {
+                final String text = input.getBody() + " Request " + i + " of " + run + ".";
+                texts.add(text);
+                final APIGatewayProxyRequestEvent request = new APIGatewayProxyRequestEvent()
+                        .withPath(input.getPath())
+                        .withHttpMethod("POST")
+                        .withHeaders(new HashMap<>(input_headers))
+                        .withBody(text)
+                        .withIsBase64Encoded(false);
+                results.add(executor.submit(() -> {
+                    AWSXRay.beginSegment("Test Concurrent");
+                    try {
+                        return app.handleRequest(request, context);
+                    } finally {
+                        AWSXRay.endSegment();
+                    }
+                }));
+            }
+            // Every response must carry its own request's text, a mix-up in the pool would hand back another one.
+            for (int i = 0; i < results.size(); i++) {
+                final APIGatewayProxyResponseEvent result = results.get(i).get();
+                assertEquals(200, result.getStatusCode().intValue());
+                final Document doc = Utils.xmlToDocument(new StringReader(result.getBody()));
+                assertEquals(texts.get(i), doc.getContent().toString());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        final String text = input.getBody() + new Random().nextInt();
+        input.withPath(input.getPath() + "/batch")
+                .withBody("[" +
+                        "{\"id\": \"a\", \"content\": \"" + text + "\"}," +
+                        "{\"id\": \"b\", \"content\": \"" + text + "\", \"nextAnnotationId\": 1000}," +
+                        "{\"id\": \"c\", \"content\": \"" + text + "\"}," +
+                        "{\"id\": \"d\", \"content\": \"" + text + "\", \"contentType\": \"text/x-unknown\"}" +
+                        "]");
+        input.getHeaders().put("Content-Type", "application/json");
+
+        APIGatewayProxyResponseEvent result = app.handleRequest(input, context);
+        assertEquals(200, result.getStatusCode().intValue());
+        List<Map<String, Object>> results = Utils.objectMapper.readValue(
+                result.getBody(), new TypeReference<List<Map<String, Object>>>() {});
+        assertEquals(4, results.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(200, results.get(i).get("statusCode"));
+            assertEquals("MISS", ((Map<?, ?>) results.get(i).get("headers")).get("x-zae-gate-cache"));
+            final Document doc = Utils.xmlToDocument(new StringReader((String) results.get(i).get("body")));
+            assertEquals(text, doc.getContent().toString());
+        }
+        assertTrue(((String) results.get(1).get("body")).contains("<Annotation Id=\"1001\""));
+        assertEquals(400, results.get(3).get("statusCode"));
+
+        // The second time around, the same documents come from the cache as NDJSON
+        input.withBody("{\"id\": \"a\", \"content\": \"" + text + "\"}\n" +
+                "{\"id\": \"b\", \"content\": \"" + text + "\", \"nextAnnotationId\": 1000}\n");
+        input.getHeaders().put("Content-Type", "application/x-ndjson");
+        result = app.handleRequest(input, context);
+        assertEquals(200, result.getStatusCode().intValue());
+        assertEquals("application/x-ndjson", result.getHeaders().get("Content-Type"));
+        final String[] lines = result.getBody().split("\n");
+        assertEquals(2, lines.length);
+        for (String line : lines) {
+            final Map<String, Object> lineResult = Utils.objectMapper.readValue(
+                    line, new TypeReference<Map<String, Object>>() {});
+            assertEquals("HIT-RESPONSE", ((Map<?, ?>) lineResult.get("headers")).get("x-zae-gate-cache"));
+        }
     }
 
     @Test
@@ -273,10 +480,115 @@ public class AppTest {
         final APIGatewayProxyResponseEvent result = app.handleRequest(input, context);
         assertEquals(200, result.getStatusCode().intValue());
         assertEquals("MISS", result.getHeaders().get("x-zae-gate-cache"));
+        assertEquals(0, Handler.size());
 
         final APIGatewayProxyResponseEvent cachedResult = app.handleRequest(input, context);
         assertEquals(200, cachedResult.getStatusCode().intValue());
-        assertEquals("HIT", cachedResult.getHeaders().get("x-zae-gate-cache"));
+        assertEquals("HIT-RESPONSE", cachedResult.getHeaders().get("x-zae-gate-cache"));
+    }
+
+    @Test
+    public void testMappedContent() throws GateException, IOException {
+        final byte[] body = IOUtils.toByteArray(getClass().getResourceAsStream("example.finf"));
+        final String base64 = Base64.encodeAsString(body);
+        try (RequestContent mapped = RequestContent.ingest(
+                "application/fastinfoset", base64, true, null, 0, "salt", 0, Long.MAX_VALUE);
+             RequestContent pooled = RequestContent.ingest(
+                     "application/fastinfoset", base64, true, null, 0, "salt", Integer.MAX_VALUE,
+                     Long.MAX_VALUE)) {
+            assertEquals(pooled.getDigest(), mapped.getDigest());
+
+            final FeatureMap featureMap = Factory.newFeatureMap();
+            mapped.putContent(featureMap, "application/fastinfoset");
+            final URL url = (URL) featureMap.get(Document.DOCUMENT_URL_PARAMETER_NAME);
+            assertEquals("application/fastinfoset", url.openConnection().getContentType());
+            // GATE opens the URL more than once, every stream reads the whole content.
+            assertArrayEquals(body, IOUtils.toByteArray(url.openStream()));
+            assertArrayEquals(body, IOUtils.toByteArray(url.openStream()));
+            assertTrue(Handler.release(url));
+            assertFalse(Handler.release(url));
+        }
+    }
+
+    @Test
+    public void testDigestFieldSeparation() throws GateException {
+        try (RequestContent first = RequestContent.ingest("text/plain", "abc1", false, null, 0, "salt");
+             RequestContent second = RequestContent.ingest("text/plain", "abc", false, null, 10, "salt");
+             RequestContent third = RequestContent.ingest("text/plain", "abc", false, null, 10, "salt")) {
+            assertNotEquals(first.getDigest(), second.getDigest());
+            assertEquals(second.getDigest(), third.getDigest());
+        }
+        // Binary content is digested the same way, "abc1" is YWJjMQ and "abc" is YWJj.
+        try (RequestContent first = RequestContent.ingest("text/plain", "YWJjMQ==", true, null, 0, "salt");
+             RequestContent second = RequestContent.ingest("text/plain", "YWJj", true, null, 10, "salt")) {
+            assertNotEquals(first.getDigest(), second.getDigest());
+        }
+    }
+
+    @Test
+    public void testContentEncoding() throws IOException {
+        final APIGatewayProxyResponseEvent plain = app.handleRequest(input, context);
+        assertEquals(200, plain.getStatusCode().intValue());
+        assertNull(plain.getHeaders().get("Content-Encoding"));
+
+        final ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write(input.getBody().getBytes(StandardCharsets.UTF_8));
+        }
+        input.withIsBase64Encoded(true).withBody(Base64.encodeAsString(gzipped.toByteArray()));
+        input_headers.put("Content-Encoding", "gzip");
+        input_headers.put("Accept-Encoding", "br;q=1.0, gzip;q=0.8, *;q=0.1");
+
+        // A compressed body shares the cache entries of the same body uncompressed.
+        final APIGatewayProxyResponseEvent result = app.handleRequest(input, context);
+        assertEquals(200, result.getStatusCode().intValue());
+        assertEquals("HIT", result.getHeaders().get("x-zae-gate-cache"));
+        assertEquals("gzip", result.getHeaders().get("Content-Encoding"));
+        assertTrue(result.getIsBase64Encoded());
+        assertEquals(plain.getBody(), IOUtils.toString(new GZIPInputStream(
+                new ByteArrayInputStream(Base64.decode(result.getBody())))));
+
+        final APIGatewayProxyResponseEvent cachedResult = app.handleRequest(input, context);
+        assertEquals("HIT-RESPONSE", cachedResult.getHeaders().get("x-zae-gate-cache"));
+        assertEquals("gzip", cachedResult.getHeaders().get("Content-Encoding"));
+        assertEquals(result.getBody(), cachedResult.getBody());
+
+        input_headers.put("Content-Encoding", "br");
+        assertEquals(400, app.handleRequest(input, context).getStatusCode().intValue());
+    }
+
+    @Test
+    public void testDecodedSizeLimit() throws IOException, GateException {
+        // A few KB of gzip that inflate to 1MB, well over the limit.
+        final ByteArrayOutputStream bomb = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(bomb)) {
+            out.write(new byte[1 << 20]);
+        }
+        final String base64 = Base64.encodeAsString(bomb.toByteArray());
+        final File tmp = new File(System.getProperty("java.io.tmpdir"));
+        final FilenameFilter spilled = (dir, name) -> name.startsWith("gate-mmap-");
+        final int spilledBefore = Objects.requireNonNull(tmp.list(spilled)).length;
+        try {
+            // Every decoded byte goes to a spill file, which must not outlive the failure.
+            RequestContent.ingest("text/plain", base64, true, "gzip", 0, "salt", 0, 64 << 10).close();
+            fail("Expected a TooLargeException.");
+        } catch (RequestContent.TooLargeException expected) {
+            assertEquals(spilledBefore, Objects.requireNonNull(tmp.list(spilled)).length);
+        }
+        try (RequestContent content = RequestContent.ingest(
+                "text/plain", base64, true, "gzip", 0, "salt", 0, 1 << 20)) {
+            assertNotNull(content.getDigest());
+        }
+    }
+
+    @Test
+    public void testNegotiateContentEncoding() {
+        assertNull(Utils.negotiateContentEncoding(null));
+        assertNull(Utils.negotiateContentEncoding("identity, br"));
+        assertEquals("gzip", Utils.negotiateContentEncoding("deflate, gzip"));
+        assertEquals("deflate", Utils.negotiateContentEncoding("gzip;q=0.5, deflate"));
+        assertEquals("deflate", Utils.negotiateContentEncoding("gzip;q=0, *"));
+        assertNull(Utils.negotiateContentEncoding("gzip;q=0, deflate;q=0"));
     }
 
     @Test
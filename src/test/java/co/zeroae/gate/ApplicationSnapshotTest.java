@@ -0,0 +1,128 @@
+package co.zeroae.gate;
+
+import gate.*;
+import gate.util.GateException;
+import gate.util.persistence.PersistenceManager;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.nio.file.*;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+
+import static com.github.stefanbirkner.systemlambda.SystemLambda.withEnvironmentVariable;
+import static org.junit.Assert.*;
+
+public class ApplicationSnapshotTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        // Initializes GATE the same way the handlers do.
+        withEnvironmentVariable("GATE_APP_NAME", "annie")
+                .and("CACHE_KEY_SALT", UUID.randomUUID().toString())
+                .execute(App::new);
+    }
+
+    private File copyApplication() throws Exception {
+        final Path source = Paths.get(Objects.requireNonNull(
+                getClass().getClassLoader().getResource("annie/application.xgapp")).toURI()).getParent();
+        final Path target = folder.getRoot().toPath().resolve("annie");
+        try (Stream<Path> paths = Files.walk(source)) {
+            for (Path path : (Iterable<Path>) paths::iterator)
+                Files.copy(path, target.resolve(source.relativize(path).toString()));
+        }
+        return target.resolve("application.xgapp").toFile();
+    }
+
+    private static int execute(CorpusController controller) throws GateException {
+        final Corpus corpus = Factory.newCorpus("Snapshot Test");
+        final Document doc = Factory.newDocument("Wanda Maximoff moved to Westview, New Jersey on March 5, 2021.");
+        try {
+            controller.setCorpus(corpus);
+            corpus.add(doc);
+            controller.execute();
+            return doc.getAnnotations().size();
+        } finally {
+            Factory.deleteResource(doc);
+            Factory.deleteResource(corpus);
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final File xgapp = copyApplication();
+        final CorpusController original = (CorpusController) PersistenceManager.loadObjectFromFile(xgapp);
+        final int expected = execute(original);
+
+        ApplicationSnapshot.write(original, xgapp);
+        assertTrue(new File(xgapp.getParentFile(), ApplicationSnapshot.FINGERPRINT).exists());
+
+        final CorpusController snapshot = ApplicationSnapshot.load(xgapp.toURI().toURL());
+        assertNotNull(snapshot);
+        assertEquals(expected, execute(snapshot));
+
+        Factory.deleteResource(snapshot);
+        Factory.deleteResource(original);
+    }
+
+    @Test
+    public void testFingerprintMismatch() throws Exception {
+        final File xgapp = copyApplication();
+        assertNull(ApplicationSnapshot.load(xgapp.toURI().toURL()));
+
+        final CorpusController original = (CorpusController) PersistenceManager.loadObjectFromFile(xgapp);
+        ApplicationSnapshot.write(original, xgapp);
+        Factory.deleteResource(original);
+
+        // Any change to the application invalidates the snapshot.
+        Files.write(xgapp.toPath(), "\n".getBytes(), StandardOpenOption.APPEND);
+        assertNull(ApplicationSnapshot.load(xgapp.toURI().toURL()));
+
+        // So does a change to the resources next to it.
+        final CorpusController changed = (CorpusController) PersistenceManager.loadObjectFromFile(xgapp);
+        ApplicationSnapshot.write(changed, xgapp);
+        Factory.deleteResource(changed);
+        final CorpusController rebuilt = ApplicationSnapshot.load(xgapp.toURI().toURL());
+        assertNotNull(rebuilt);
+        Factory.deleteResource(rebuilt);
+        Files.write(xgapp.toPath().resolveSibling("gazetteer.lst"), "Westview\n".getBytes());
+        assertNull(ApplicationSnapshot.load(xgapp.toURI().toURL()));
+    }
+
+    @Test
+    public void testJarApplication() throws Exception {
+        final File xgapp = copyApplication();
+        final CorpusController original = (CorpusController) PersistenceManager.loadObjectFromFile(xgapp);
+        final int expected = execute(original);
+        ApplicationSnapshot.write(original, xgapp);
+        Factory.deleteResource(original);
+
+        // The AppCDS training loads the application from a jar.
+        final Path directory = folder.getRoot().toPath();
+        final File jar = folder.newFile("application.jar");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+             Stream<Path> paths = Files.walk(directory.resolve("annie"))) {
+            for (Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator) {
+                out.putNextEntry(new JarEntry(directory.relativize(path).toString().replace(File.separatorChar, '/')));
+                Files.copy(path, out);
+                out.closeEntry();
+            }
+        }
+        final CorpusController snapshot = ApplicationSnapshot.load(
+                new URL("jar:" + jar.toURI() + "!/annie/application.xgapp"));
+        assertNotNull(snapshot);
+        assertEquals(expected, execute(snapshot));
+        Factory.deleteResource(snapshot);
+    }
+}
@@ -0,0 +1,123 @@
+package co.zeroae.gate;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ColumnarReaderTest {
+
+    /**
+     * Loads the classes of this package on its own, and none of GATE, so they fail to load if they need it.
+     */
+    private static class NoGateClassLoader extends ClassLoader {
+        NoGateClassLoader() {
+            super(ColumnarReaderTest.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.startsWith("gate."))
+                throw new ClassNotFoundException(name);
+            if (!name.startsWith(ColumnarReaderTest.class.getPackage().getName() + "."))
+                return super.loadClass(name, resolve);
+            synchronized (getClassLoadingLock(name)) {
+                final Class<?> loaded = findLoadedClass(name);
+                if (loaded != null)
+                    return loaded;
+                try (InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                    if (in == null)
+                        throw new ClassNotFoundException(name);
+                    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    final byte[] buffer = new byte[8192];
+                    for (int read = in.read(buffer); read >= 0; read = in.read(buffer))
+                        bytes.write(buffer, 0, read);
+                    return defineClass(name, bytes.toByteArray(), 0, bytes.size());
+                } catch (IOException e) {
+                    throw new ClassNotFoundException(name, e);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testWithoutGate() throws Throwable {
+        final Class<?> isolated = new NoGateClassLoader().loadClass(ColumnarReaderTest.class.getName());
+        assertNotSame(ColumnarReaderTest.class, isolated);
+        try {
+            isolated.getDeclaredMethod("readTokens").invoke(null);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Runs in the NoGateClassLoader, it must not touch GATE itself.
+     */
+    public static void readTokens() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.write(ColumnarReader.MAGIC);
+        out.writeByte(ColumnarReader.VERSION);
+        final String[] dictionary = {"Token", "string", "length", "Wanda", "[\"PERSON\"]", "kinds"};
+        writeVarint(out, dictionary.length);
+        for (String string : dictionary) {
+            writeVarint(out, string.getBytes(StandardCharsets.UTF_8).length);
+            out.write(string.getBytes(StandardCharsets.UTF_8));
+        }
+        writeVarint(out, 1);
+        writeVarint(out, 0);
+        writeVarint(out, 2);
+        for (int value : new int[]{0, 6, 5, 14, 10, 11})
+            out.writeInt(value);
+        writeVarint(out, 3);
+        for (int name : new int[]{1, 2, 5})
+            writeVarint(out, name);
+        out.writeByte(ColumnarReader.TAG_STRING);
+        writeVarint(out, 3);
+        out.writeByte(ColumnarReader.TAG_ABSENT);
+        out.writeByte(ColumnarReader.TAG_LONG);
+        writeVarint(out, 10);
+        out.writeByte(ColumnarReader.TAG_NULL);
+        out.writeByte(ColumnarReader.TAG_JSON);
+        writeVarint(out, 4);
+        out.writeByte(ColumnarReader.TAG_ABSENT);
+        out.flush();
+
+        final Map<String, ColumnarReader.Block> blocks = ColumnarReader.read(
+                new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(Collections.singleton("Token"), blocks.keySet());
+        final ColumnarReader.Block tokens = blocks.get("Token");
+        assertEquals(2, tokens.size());
+        assertArrayEquals(new int[]{0, 6}, tokens.getStarts());
+        assertArrayEquals(new int[]{5, 14}, tokens.getEnds());
+        assertArrayEquals(new int[]{10, 11}, tokens.getIds());
+        assertEquals("Wanda", tokens.getFeature("string", 0));
+        assertEquals(5, tokens.getFeature("length", 0));
+        assertEquals(Collections.singletonList("PERSON"), tokens.getFeature("kinds", 0));
+
+        // An absent feature and a null one both read as null, only hasFeature tells them apart.
+        assertNull(tokens.getFeature("string", 1));
+        assertFalse(tokens.hasFeature("string", 1));
+        assertNull(tokens.getFeature("length", 1));
+        assertTrue(tokens.hasFeature("length", 1));
+        assertTrue(tokens.hasFeature("string", 0));
+        assertFalse(tokens.hasFeature("missing", 0));
+        assertEquals(Arrays.asList("string", "length", "kinds"), Arrays.asList(
+                tokens.getFeatureNames().toArray()));
+    }
+
+    private static void writeVarint(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
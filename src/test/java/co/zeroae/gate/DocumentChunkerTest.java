@@ -0,0 +1,170 @@
+package co.zeroae.gate;
+
+import com.amazonaws.xray.AWSXRay;
+import gate.*;
+import gate.corpora.DocumentImpl;
+import gate.util.GateException;
+import gate.util.persistence.PersistenceManager;
+import org.junit.*;
+
+import java.io.File;
+import java.util.*;
+
+import static com.github.stefanbirkner.systemlambda.SystemLambda.withEnvironmentVariable;
+import static org.junit.Assert.*;
+
+public class DocumentChunkerTest {
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        // Initializes GATE the same way the handlers do.
+        withEnvironmentVariable("GATE_APP_NAME", "annie")
+                .and("CACHE_KEY_SALT", UUID.randomUUID().toString())
+                .execute(App::new);
+        final CorpusController controller = (CorpusController) PersistenceManager.loadObjectFromFile(new File(
+                Objects.requireNonNull(DocumentChunkerTest.class.getClassLoader().getResource(
+                        "annie/application.xgapp")).getFile()));
+        controller.setCorpus(Factory.newCorpus("Chunker Test"));
+        pool = new ControllerPool(controller, 2);
+    }
+
+    private static ControllerPool pool = null;
+
+    @Before
+    public void setUp() {
+        AWSXRay.beginSegment("Test");
+        AWSXRay.beginSubsegment("Gate Execute");
+    }
+
+    @After
+    public void tearDown() {
+        AWSXRay.endSubsegment();
+        AWSXRay.endSegment();
+    }
+
+    private static String paragraphs(int count) {
+        final StringBuilder rv = new StringBuilder();
+        for (int i = 0; i < count; i++)
+            rv.append("Wanda Maximoff met Tony Stark in London on March ").append(i % 28 + 1)
+                    .append(". Tony Stark paid $").append(i * 100).append(" to Stark Industries.\n\n");
+        return rv.toString();
+    }
+
+    private static Document execute(String text, boolean chunked) throws GateException {
+        final Document rv = Factory.newDocument(text);
+        ((DocumentImpl) rv).setNextAnnotationId(1000);
+        if (chunked) {
+            new DocumentChunker(pool, new PipelineMetrics("annie", "Test", false, false), 500,
+                    Collections.singleton("Sentence")).execute(rv, PipelinePruner.Plan.FULL);
+            return rv;
+        }
+        final CorpusController controller = pool.checkout();
+        try {
+            controller.getCorpus().add(rv);
+            controller.execute();
+        } finally {
+            pool.release(controller);
+        }
+        return rv;
+    }
+
+    @Test
+    public void testSplit() {
+        final String text = paragraphs(20);
+        final List<DocumentChunker.Chunk> chunks = DocumentChunker.split(text, 500);
+        assertTrue(chunks.size() > 1);
+        int start = 0;
+        for (DocumentChunker.Chunk chunk : chunks) {
+            assertEquals(start, chunk.start);
+            assertFalse(chunk.reconcile);
+            assertTrue(chunk.start == 0 || text.startsWith("\n\n", chunk.start - 2));
+            start = chunk.end;
+        }
+        assertEquals(text.length(), start);
+
+        // Without paragraphs or sentence ends we fall back to whitespace, and reconcile the seams.
+        final String words = String.join(" ", Collections.nCopies(200, "wanda"));
+        final List<DocumentChunker.Chunk> wordChunks = DocumentChunker.split(words, 300);
+        assertTrue(wordChunks.get(1).reconcile);
+        assertEquals(' ', words.charAt(wordChunks.get(1).start - 1));
+    }
+
+    @Test
+    public void testChunkedMatchesWhole() throws GateException {
+        final String text = paragraphs(20);
+        final Document whole = execute(text, false);
+        final Document chunked = execute(text, true);
+        try {
+            for (String type : new String[]{"Token", "Sentence", "Person", "Location"})
+                assertEquals(type, whole.getAnnotations().get(type).size(), chunked.getAnnotations().get(type).size());
+
+            // Ids start at the nextAnnotationId, and the OrthoMatcher matches point at the merged annotations.
+            for (Annotation annotation : chunked.getAnnotations()) {
+                assertTrue(annotation.getId() >= 1000);
+                final Object matches = annotation.getFeatures().get(DocumentChunker.MATCHES_FEATURE);
+                if (matches instanceof List)
+                    for (Object id : (List<?>) matches)
+                        assertNotNull(chunked.getAnnotations().get((Integer) id));
+            }
+        } finally {
+            Factory.deleteResource(whole);
+            Factory.deleteResource(chunked);
+        }
+    }
+
+    @Test
+    public void testClippedMarkups() throws GateException {
+        final String text = paragraphs(2);
+        final Document doc = Factory.newDocument(text);
+        final AnnotationSet markups = doc.getAnnotations(GateConstants.ORIGINAL_MARKUPS_ANNOT_SET_NAME);
+        markups.add(0L, (long) text.length(), "body", Factory.newFeatureMap());
+        markups.add(20L, 40L, "b", Factory.newFeatureMap());
+        markups.add(0L, 10L, "title", Factory.newFeatureMap());
+        final Document chunkDoc = DocumentChunker.newChunkDocument(doc, text, new DocumentChunker.Chunk(10, 30, false));
+        try {
+            final AnnotationSet chunkMarkups = chunkDoc.getAnnotations(GateConstants.ORIGINAL_MARKUPS_ANNOT_SET_NAME);
+            // The title only touches the chunk, the body and the bold text overlap it.
+            assertTrue(chunkMarkups.get("title").isEmpty());
+            final Annotation body = chunkMarkups.get("body").iterator().next();
+            assertEquals(0L, body.getStartNode().getOffset().longValue());
+            assertEquals(20L, body.getEndNode().getOffset().longValue());
+            final Annotation bold = chunkMarkups.get("b").iterator().next();
+            assertEquals(10L, bold.getStartNode().getOffset().longValue());
+            assertEquals(20L, bold.getEndNode().getOffset().longValue());
+        } finally {
+            Factory.deleteResource(chunkDoc);
+            Factory.deleteResource(doc);
+        }
+    }
+
+    @Test
+    public void testReconcileRemapsMatches() throws Exception {
+        final String text = "Wanda Maximoff Vision";
+        final Document doc = Factory.newDocument(text);
+        final AnnotationSet annotations = doc.getAnnotations();
+        annotations.add(1000, 0L, 5L, "Person", gate.Utils.featureMap(
+                DocumentChunker.MATCHES_FEATURE, new ArrayList<>(Arrays.asList(1000, 1002))));
+        annotations.add(1001, 6L, 14L, "Person", gate.Utils.featureMap(
+                DocumentChunker.MATCHES_FEATURE, new ArrayList<>(Arrays.asList(1001, 1002))));
+        annotations.add(1002, 15L, 21L, "Person", gate.Utils.featureMap(
+                DocumentChunker.MATCHES_FEATURE, new ArrayList<>(Arrays.asList(1002, 1001))));
+        final Map<Object, Object> matchesAnnots = new HashMap<>();
+        matchesAnnots.put(null, new ArrayList<>(Collections.singletonList(Arrays.asList(1002, 1001))));
+        doc.getFeatures().put(DocumentChunker.MATCHES_ANNOTS_FEATURE, matchesAnnots);
+        try {
+            // The seam at 6 cut "Wanda Maximoff" in two, the second half goes away.
+            new DocumentChunker(pool, new PipelineMetrics("annie", "Test", false, false), 500,
+                    Collections.singleton("Person")).reconcile(doc, text, 6);
+            assertNull(annotations.get(1001));
+            final Annotation joined = annotations.get(1000);
+            assertEquals(14L, joined.getEndNode().getOffset().longValue());
+            assertEquals(Arrays.asList(1000, 1002), joined.getFeatures().get(DocumentChunker.MATCHES_FEATURE));
+            assertEquals(Arrays.asList(1002, 1000),
+                    annotations.get(1002).getFeatures().get(DocumentChunker.MATCHES_FEATURE));
+            assertEquals(Collections.singletonList(Arrays.asList(1002, 1000)),
+                    ((Map<?, ?>) doc.getFeatures().get(DocumentChunker.MATCHES_ANNOTS_FEATURE)).get(null));
+        } finally {
+            Factory.deleteResource(doc);
+        }
+    }
+}
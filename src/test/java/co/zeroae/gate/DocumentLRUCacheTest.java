@@ -0,0 +1,504 @@
+package co.zeroae.gate;
+
+import com.amazonaws.xray.AWSXRay;
+import com.amazonaws.xray.entities.Entity;
+import gate.Document;
+import gate.Factory;
+import gate.Gate;
+import gate.util.GateException;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.github.stefanbirkner.systemlambda.SystemLambda.withEnvironmentVariable;
+import static org.junit.Assert.*;
+
+public class DocumentLRUCacheTest {
+
+    @Rule
+    public final TemporaryFolder cacheFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        // Initializes GATE the same way the handlers do.
+        withEnvironmentVariable("GATE_APP_NAME", "annie")
+                .and("CACHE_KEY_SALT", UUID.randomUUID().toString())
+                .execute(App::new);
+    }
+
+    @Before
+    public void setUp() {
+        AWSXRay.beginSegment("Test");
+    }
+
+    @After
+    public void tearDown() {
+        AWSXRay.endSegment();
+    }
+
+    private static Document newDocument(int sentences) throws GateException {
+        final Random random = new Random(sentences);
+        final StringBuilder content = new StringBuilder();
+        for (int i = 0; i < sentences; i++)
+            content.append("Sentence number ").append(i).append(" mentions Wanda ").append(random.nextInt()).append(". ");
+        final Document rv = Factory.newDocument(content.toString());
+        long start = 0;
+        for (String token : content.toString().split(" ")) {
+            rv.getAnnotations().add(start, start + token.length(), "Token",
+                    gate.Utils.featureMap("string", token, "length", token.length()));
+            start += token.length() + 1;
+        }
+        rv.getAnnotations("Sentences").add(0L, (long) content.length(), "Paragraph", Factory.newFeatureMap());
+        return rv;
+    }
+
+    @Test
+    public void testDiskRoundTrip() throws GateException {
+        // A heap budget of zero forces every read through the disk tier.
+        final DocumentLRUCache cache = new DocumentLRUCache(cacheFolder.getRoot().getPath(), .9, 0);
+        final Document doc = newDocument(100);
+        cache.put("round-trip", doc);
+
+        final Document cached = cache.get("round-trip");
+        assertNotNull(cached);
+        assertEquals(doc.getContent().toString(), cached.getContent().toString());
+        assertEquals(doc.getAnnotations().size(), cached.getAnnotations().size());
+        assertEquals(doc.getAnnotations("Sentences").size(), cached.getAnnotations("Sentences").size());
+        assertEquals(
+                doc.getAnnotations().get(0).getFeatures().get("string"),
+                cached.getAnnotations().get(0).getFeatures().get("string"));
+
+        final Map<String, Object> stats = cache.getStats();
+        assertEquals(1L, ((Map<?, ?>) stats.get("disk")).get("hits"));
+        assertEquals(1L, ((Map<?, ?>) stats.get("heap")).get("misses"));
+
+        // The FastInfoset entry must be smaller than the GateXML it replaces.
+        final File entry = new File(new File(cacheFolder.getRoot(), "ro"), "round-trip");
+        assertTrue(entry.length() < doc.toXml().getBytes().length);
+    }
+
+    @Test
+    public void testCodecs() throws GateException, IOException, XMLStreamException {
+        final Document doc = newDocument(100);
+        final Map<String, Long> sizes = new HashMap<>();
+        for (EntryCodec codec : Arrays.asList(EntryCodec.NONE, EntryCodec.LZ4, EntryCodec.DEFLATE)) {
+            final DocumentLRUCache cache = new DocumentLRUCache(cacheFolder.newFolder().getPath(), .9, 0, 30000,
+                    new CacheAdmission(1024, 2, Long.MAX_VALUE), null, EntryCodec.Selector.always(codec));
+            cache.put(codec.name, doc);
+            final Document cached = cache.get(codec.name);
+            assertNotNull(codec.name, cached);
+            assertEquals(doc.getContent().toString(), cached.getContent().toString());
+            assertEquals(doc.getAnnotations().size(), cached.getAnnotations().size());
+            cache.release(cached);
+            sizes.put(codec.name, (Long) ((Map<?, ?>) cache.getStats().get("admission")).get("bytesWritten"));
+        }
+        assertTrue(sizes.get("lz4") < sizes.get("none"));
+        assertTrue(sizes.get("deflate") < sizes.get("lz4"));
+
+        // The entries of the previous format are still read.
+        final File legacyFolder = cacheFolder.newFolder();
+        final FileStore store = new FileStore(legacyFolder, Long.MAX_VALUE, (evicted) -> {
+        });
+        final ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+        legacy.write(2);
+        Utils.documentToFastInfoset(doc, legacy);
+        store.put("legacy", legacy.toByteArray());
+        final Document cached = new DocumentLRUCache(legacyFolder.getPath(), .9, 0).get("legacy");
+        assertNotNull(cached);
+        assertEquals(doc.getAnnotations().size(), cached.getAnnotations().size());
+    }
+
+    @Test
+    public void testCorruptEntries() throws IOException {
+        for (int rawLength : new int[]{-1, EntryCodec.MAX_RAW_BYTES + 1}) {
+            try {
+                EntryCodec.DEFLATE.decode(new byte[16], 0, 16, rawLength);
+                fail("Expected an IOException for " + rawLength + " bytes.");
+            } catch (IOException expected) {
+                // A corrupt header is a corrupt entry.
+            }
+        }
+
+        final FileStore store = new FileStore(cacheFolder.getRoot(), Long.MAX_VALUE, (evicted) -> {
+        });
+        // An LZ4 entry that claims 2GB, and a legacy entry that is not even FastInfoset.
+        store.put("huge", new byte[]{3, 1, 0x7f, -1, -1, -1, 0, 0, 0, 0});
+        store.put("garbage", new byte[]{2, 'n', 'o', 't', ' ', 'F', 'I'});
+        final DocumentLRUCache cache = new DocumentLRUCache(cacheFolder.getRoot().getPath(), .9, 0);
+        assertNull(cache.get("huge"));
+        assertNull(cache.get("garbage"));
+        assertEquals(2L, ((Map<?, ?>) cache.getStats().get("disk")).get("misses"));
+        assertNull(store.get("huge"));
+        assertNull(store.get("garbage"));
+    }
+
+    @Test
+    public void testSharedDirectory() throws GateException, IOException {
+        // Two caches on one directory stand for two processes, or one process and its restart.
+        final DocumentLRUCache first = new DocumentLRUCache(cacheFolder.getRoot().getPath(), .9, 0);
+        final DocumentLRUCache second = new DocumentLRUCache(cacheFolder.getRoot().getPath(), .9, 0);
+        final Document doc = newDocument(10);
+        first.put("shared", doc);
+
+        final Document cached = second.get("shared");
+        assertNotNull(cached);
+        assertEquals(doc.getContent().toString(), cached.getContent().toString());
+        second.release(cached);
+
+        // A writer holds the entry lock, the other one leaves the entry alone.
+        final FileStore store = new FileStore(cacheFolder.getRoot(), Long.MAX_VALUE, (evicted) -> {
+        });
+        final FileStore.Editor editor = store.edit("locked");
+        assertNotNull(editor);
+        assertNull(store.edit("locked"));
+        try (OutputStream out = editor.newOutputStream()) {
+            out.write(new byte[]{1, 2, 3});
+        }
+        assertNull(store.get("locked"));
+        assertEquals(3, editor.commit());
+        assertArrayEquals(new byte[]{1, 2, 3}, store.get("locked"));
+        assertNotNull(store.edit("locked"));
+    }
+
+    @Test
+    public void testSweep() throws IOException, InterruptedException {
+        final AtomicLong evictions = new AtomicLong();
+        final FileStore store = new FileStore(cacheFolder.getRoot(), Long.MAX_VALUE, evictions::addAndGet);
+        for (String key : Arrays.asList("aa-old", "bb-new")) {
+            final FileStore.Editor editor = store.edit(key);
+            try (OutputStream out = editor.newOutputStream()) {
+                out.write(new byte[600]);
+            }
+            editor.commit();
+        }
+        assertTrue(new File(new File(cacheFolder.getRoot(), "aa"), "aa-old").setLastModified(0));
+        store.setMaxSize(1000);
+        // A background sweep may hold the lock, ours is skipped then.
+        for (int i = 0; i < 100 && evictions.get() == 0; i++) {
+            store.sweep();
+            Thread.sleep(10);
+        }
+        assertEquals(1, evictions.get());
+        assertNull(store.get("aa-old"));
+        assertNotNull(store.get("bb-new"));
+        assertEquals(600, store.size());
+    }
+
+    @Test
+    public void testReplaceEntry() throws IOException {
+        // Holding the sweep lock keeps the sweeps from recounting the entries behind our back.
+        try (FileChannel channel = FileChannel.open(new File(cacheFolder.getRoot(), ".sweep.lock").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock()) {
+            final FileStore store = new FileStore(cacheFolder.getRoot(), Long.MAX_VALUE, (evicted) -> {
+            });
+            store.put("aa-replaced", new byte[600]);
+            store.put("aa-replaced", new byte[400]);
+            assertEquals(1, store.entryCount());
+            assertEquals(400, store.size());
+        }
+    }
+
+    @Test
+    public void testHeapTier() throws GateException {
+        final DocumentLRUCache cache = new DocumentLRUCache(
+                cacheFolder.getRoot().getPath(), .9, Long.MAX_VALUE);
+        final Document doc = newDocument(10);
+        cache.put("heap", doc);
+
+        // The heap tier shares the Document it was given, releasing it must not delete it.
+        final Document first = cache.get("heap");
+        assertSame(doc, first);
+        cache.release(first);
+        final Document second = cache.get("heap");
+        assertSame(first, second);
+        assertNotNull(second.getContent());
+        assertEquals(doc.getAnnotations().size(), second.getAnnotations().size());
+        assertEquals(2L, ((Map<?, ?>) cache.getStats().get("heap")).get("hits"));
+    }
+
+    @Test
+    public void testStats() throws GateException {
+        // The heap tier fits one of these Documents, not two.
+        final Document first = newDocument(10);
+        final DocumentLRUCache cache = new DocumentLRUCache(
+                cacheFolder.getRoot().getPath(), .9, DocumentLRUCache.estimateFootprint(first) * 3 / 2);
+        cache.put("first", first);
+        cache.release(cache.get("first"));
+        cache.put("second", newDocument(10));
+        assertNull(cache.get("missing"));
+
+        final Map<String, Object> stats = cache.getStats();
+        final Map<?, ?> heap = (Map<?, ?>) stats.get("heap");
+        assertEquals(1L, heap.get("hits"));
+        assertEquals(1L, heap.get("misses"));
+        assertEquals(1L, heap.get("evictions"));
+        assertEquals(.5, heap.get("hitRatio"));
+        assertEquals(1, heap.get("entries"));
+        final Map<?, ?> disk = (Map<?, ?>) stats.get("disk");
+        assertEquals(0L, disk.get("hits"));
+        assertEquals(1L, disk.get("misses"));
+        assertEquals(2L, disk.get("entries"));
+        assertTrue((Long) disk.get("bytes") > 0);
+        assertNull(stats.get("remote"));
+        assertEquals(0L, ((Map<?, ?>) stats.get("coalescing")).get("leaders"));
+    }
+
+    @Test
+    public void testAdmission() throws GateException {
+        // The heap tier fits one of these Documents, not two.
+        final Document hot = newDocument(10);
+        final DocumentLRUCache cache = new DocumentLRUCache(
+                cacheFolder.getRoot().getPath(), .9, DocumentLRUCache.estimateFootprint(hot) * 3 / 2, 30000,
+                new CacheAdmission(1024, 2, Long.MAX_VALUE), null, EntryCodec.Selector.always(EntryCodec.LZ4));
+        cache.put("hot", hot);
+
+        // A one-hit wonder does not evict the hot Document.
+        final Document once = cache.computeIfNull("once", () -> newDocument(10));
+        assertNotNull(once);
+        cache.release(once);
+        assertSame(hot, cache.get("hot"));
+        final Map<?, ?> admission = (Map<?, ?>) cache.getStats().get("admission");
+        assertEquals(1L, admission.get("rejectedFrequency"));
+        assertTrue((Long) admission.get("bytesWritten") > 0);
+        assertTrue(((Map<?, ?>) admission.get("entrySizes")).size() > 0);
+        assertEquals(.5, ((Map<?, ?>) cache.getStats().get("heap")).get("hitRatio"));
+    }
+
+    @Test
+    public void testFrequencySketch() {
+        final FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 5; i++)
+            sketch.increment("hot");
+        sketch.increment("cold");
+        assertEquals(5, sketch.frequency("hot"));
+        assertEquals(1, sketch.frequency("cold"));
+        assertEquals(0, sketch.frequency("never"));
+
+        // The counters saturate at 15.
+        for (int i = 0; i < 20; i++)
+            sketch.increment("hot");
+        assertEquals(15, sketch.frequency("hot"));
+    }
+
+    @Test
+    public void testRemoteTier() throws Exception {
+        try (RespServer server = new RespServer(0);
+             RespCacheStore remote = new RespCacheStore(
+                     "redis://localhost:" + server.getPort(), "test:", 1000, 0, 60000)) {
+            final DocumentLRUCache writer = new DocumentLRUCache(cacheFolder.newFolder().getPath(), .9, 0, 30000,
+                    new CacheAdmission(1024, 2, Long.MAX_VALUE), remote,
+                    EntryCodec.Selector.always(EntryCodec.LZ4));
+            final DocumentLRUCache reader = new DocumentLRUCache(cacheFolder.newFolder().getPath(), .9, 0, 30000,
+                    new CacheAdmission(1024, 2, Long.MAX_VALUE), remote,
+                    EntryCodec.Selector.always(EntryCodec.LZ4));
+            final Document doc = newDocument(10);
+            writer.put("remote", doc);
+            // Writes are asynchronous.
+            for (int i = 0; i < 100 && server.size() == 0; i++)
+                Thread.sleep(10);
+
+            final Document cached = reader.get("remote");
+            assertNotNull(cached);
+            assertEquals(doc.getContent().toString(), cached.getContent().toString());
+            reader.release(cached);
+            assertEquals(1L, ((Map<?, ?>) reader.getStats().get("remote")).get("hits"));
+
+            // The remote hit was written back to disk.
+            reader.release(reader.get("remote"));
+            assertEquals(1L, ((Map<?, ?>) reader.getStats().get("disk")).get("hits"));
+        }
+    }
+
+    @Test
+    public void testRemoteCircuitBreaker() throws Exception {
+        try (RespServer server = new RespServer(0);
+             RespCacheStore remote = new RespCacheStore(
+                     "redis://localhost:" + server.getPort(), "test:", 50, 0, 60000)) {
+            server.setLatency(1000);
+            for (int i = 0; i < RespCacheStore.FAILURE_THRESHOLD; i++) {
+                try {
+                    remote.get("slow");
+                    fail("Expected a timeout.");
+                } catch (SocketTimeoutException expected) {
+                    // A slow lookup is a miss.
+                }
+            }
+            assertEquals(true, remote.getStats().get("circuitOpen"));
+
+            // Once the circuit is open the server is not even asked.
+            final long start = System.nanoTime();
+            assertNull(remote.get("slow"));
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50));
+            assertEquals(1L, remote.getStats().get("shortCircuited"));
+        }
+    }
+
+    @Test
+    public void testRemoteReplies() throws IOException {
+        assertArrayEquals("abc".getBytes(StandardCharsets.UTF_8), readReply("$3\r\nabc\r\n"));
+        assertNull(readReply("$-1\r\n"));
+        // Malformed or oversized replies fail like any other I/O error, before anything is allocated.
+        for (String reply : Arrays.asList("$abc\r\n", "$" + (RespCacheStore.MAX_ENTRY_BYTES + 1) + "\r\n",
+                "$3\r\nabcd\r\n", "", "*1\r\n")) {
+            try {
+                readReply(reply);
+                fail("Expected an IOException for '" + reply + "'.");
+            } catch (IOException expected) {
+                // The connection is closed and the lookup is a miss.
+            }
+        }
+    }
+
+    private static byte[] readReply(String reply) throws IOException {
+        return RespCacheStore.readReply(new DataInputStream(
+                new ByteArrayInputStream(reply.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        final DocumentLRUCache cache = new DocumentLRUCache(
+                cacheFolder.getRoot().getPath(), .9, Long.MAX_VALUE);
+        final CountDownLatch computing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger computed = new AtomicInteger();
+        final Entity parent = AWSXRay.getTraceEntity();
+        final Callable<Document> caller = () -> {
+            AWSXRay.setTraceEntity(parent);
+            return cache.computeIfNull("coalesce", () -> {
+                computed.incrementAndGet();
+                computing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return newDocument(10);
+            });
+        };
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<Document> leader = executor.submit(caller);
+            computing.await();
+            final Future<Document> follower = executor.submit(caller);
+            while (((Map<?, ?>) cache.getStats().get("coalescing")).get("followers").equals(0L))
+                Thread.sleep(10);
+            release.countDown();
+            assertSame(leader.get(), follower.get());
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, computed.get());
+        assertEquals(1L, ((Map<?, ?>) cache.getStats().get("coalescing")).get("leaders"));
+    }
+
+    @Test
+    public void testCoalescingWithoutHeap() throws Exception {
+        // Without a heap tier the leader shares its own Document, the last caller to release it deletes it.
+        final DocumentLRUCache cache = new DocumentLRUCache(cacheFolder.getRoot().getPath(), .9, 0);
+        final CountDownLatch computing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Entity parent = AWSXRay.getTraceEntity();
+        final Callable<Document> caller = () -> {
+            AWSXRay.setTraceEntity(parent);
+            return cache.computeIfNull("borrowed", () -> {
+                computing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return newDocument(10);
+            });
+        };
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final Document leader;
+        final Document follower;
+        try {
+            final Future<Document> leading = executor.submit(caller);
+            computing.await();
+            final Future<Document> following = executor.submit(caller);
+            while (((Map<?, ?>) cache.getStats().get("coalescing")).get("followers").equals(0L))
+                Thread.sleep(10);
+            release.countDown();
+            leader = leading.get();
+            follower = following.get();
+        } finally {
+            executor.shutdown();
+        }
+        assertSame(leader, follower);
+        assertEquals(0L, ((Map<?, ?>) cache.getStats().get("disk")).get("hits"));
+
+        cache.release(leader);
+        assertTrue(Gate.getCreoleRegister().getLrInstances().contains(follower));
+        cache.release(follower);
+        assertFalse(Gate.getCreoleRegister().getLrInstances().contains(follower));
+    }
+
+    @Test
+    public void testCoalescedFailure() throws Exception {
+        final DocumentLRUCache cache = new DocumentLRUCache(
+                cacheFolder.getRoot().getPath(), .9, Long.MAX_VALUE);
+        final CountDownLatch computing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Entity parent = AWSXRay.getTraceEntity();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<Document> leader = executor.submit(() -> {
+                AWSXRay.setTraceEntity(parent);
+                return cache.computeIfNull("failure", () -> {
+                    computing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    throw new GateException("Pipeline failed.");
+                });
+            });
+            computing.await();
+            final Future<Document> follower = executor.submit(() -> {
+                AWSXRay.setTraceEntity(parent);
+                return cache.computeIfNull("failure", () -> {
+                    throw new IllegalStateException("The follower must not compute.");
+                });
+            });
+            while (((Map<?, ?>) cache.getStats().get("coalescing")).get("followers").equals(0L))
+                Thread.sleep(10);
+            release.countDown();
+            for (Future<Document> future : Arrays.asList(leader, follower)) {
+                try {
+                    future.get();
+                    fail("Expected the leader's failure.");
+                } catch (ExecutionException e) {
+                    assertEquals("Pipeline failed.", e.getCause().getMessage());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package co.zeroae.gate;
+
+import com.amazonaws.xray.AWSXRay;
+import com.fasterxml.jackson.databind.JsonNode;
+import gate.*;
+import gate.creole.AnalyserRunningStrategy;
+import gate.creole.ConditionalController;
+import gate.creole.RunningStrategy;
+import gate.util.GateException;
+import gate.util.persistence.PersistenceManager;
+import org.junit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static com.github.stefanbirkner.systemlambda.SystemLambda.withEnvironmentVariable;
+import static org.junit.Assert.*;
+
+public class PipelineMetricsTest {
+    private static final String TEXT = "Wanda Maximoff met Tony Stark in London on March 5, 2021.";
+
+    private static CorpusController template = null;
+
+    private CorpusController controller = null;
+    private final List<String> lines = new ArrayList<>();
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        // Initializes GATE the same way the handlers do.
+        withEnvironmentVariable("GATE_APP_NAME", "annie")
+                .and("CACHE_KEY_SALT", UUID.randomUUID().toString())
+                .execute(App::new);
+        template = (CorpusController) PersistenceManager.loadObjectFromFile(new File(
+                Objects.requireNonNull(PipelineMetricsTest.class.getClassLoader().getResource(
+                        "annie/application.xgapp")).getFile()));
+    }
+
+    @Before
+    public void setUp() throws GateException {
+        AWSXRay.beginSegment("Test");
+        controller = (CorpusController) Factory.duplicate(template);
+        controller.setCorpus(Factory.newCorpus("Metrics Test"));
+    }
+
+    @After
+    public void tearDown() {
+        Factory.deleteResource(controller.getCorpus());
+        Factory.deleteResource(controller);
+        AWSXRay.endSegment();
+    }
+
+    private static Map<String, Integer> countTypes(Document doc) {
+        final Map<String, Integer> rv = new TreeMap<>();
+        for (Annotation annotation : doc.getAnnotations())
+            rv.merge(annotation.getType(), 1, Integer::sum);
+        return rv;
+    }
+
+    private Document execute(boolean measured, FeatureMap features) throws GateException {
+        final Document rv = Factory.newDocument(TEXT);
+        rv.getFeatures().putAll(features);
+        controller.getCorpus().add(rv);
+        try {
+            if (measured)
+                new PipelineMetrics("annie", "Test", true, true, lines::add).execute(controller);
+            else
+                controller.execute();
+        } finally {
+            controller.getCorpus().clear();
+        }
+        return rv;
+    }
+
+    private RunningStrategy strategyOf(String prClassName) {
+        for (RunningStrategy strategy : ((ConditionalController) controller).getRunningStrategies())
+            if (strategy.getPR().getClass().getSimpleName().equals(prClassName))
+                return strategy;
+        throw new AssertionError(prClassName);
+    }
+
+    @Test
+    public void testSameAnnotations() throws GateException {
+        final Document plain = execute(false, Factory.newFeatureMap());
+        final Document measured = execute(true, Factory.newFeatureMap());
+        try {
+            assertFalse(countTypes(plain).isEmpty());
+            assertEquals(countTypes(plain), countTypes(measured));
+            assertEquals(controller.getPRs().size(), lines.size());
+        } finally {
+            Factory.deleteResource(plain);
+            Factory.deleteResource(measured);
+        }
+    }
+
+    @Test
+    public void testRunningStrategies() throws GateException {
+        final AnalyserRunningStrategy transducer = (AnalyserRunningStrategy) strategyOf("ANNIETransducer");
+        transducer.setRunMode(RunningStrategy.RUN_NEVER);
+        final AnalyserRunningStrategy tagger = (AnalyserRunningStrategy) strategyOf("POSTagger");
+        tagger.setRunMode(RunningStrategy.RUN_CONDITIONAL);
+        tagger.setFeatureName("tag");
+        tagger.setFeatureValue("yes");
+
+        final FeatureMap tagged = Factory.newFeatureMap();
+        tagged.put("tag", "yes");
+        final Document with = execute(true, tagged);
+        final Document without = execute(true, Factory.newFeatureMap());
+        try {
+            assertTrue(with.getAnnotations().get("Person").isEmpty());
+            assertTrue(without.getAnnotations().get("Person").isEmpty());
+            assertNotNull(with.getAnnotations().get("Token").iterator().next().getFeatures().get("category"));
+            assertNull(without.getAnnotations().get("Token").iterator().next().getFeatures().get("category"));
+        } finally {
+            Factory.deleteResource(with);
+            Factory.deleteResource(without);
+        }
+
+        // A PR that never ran has no metrics, one that ran for some Documents does.
+        final Set<String> measuredPRs = new HashSet<>();
+        for (String line : lines)
+            measuredPRs.add(readTree(line).get("PR").asText());
+        assertFalse(measuredPRs.contains(transducer.getPR().getName()));
+        assertTrue(measuredPRs.contains(tagger.getPR().getName()));
+    }
+
+    @Test
+    public void testEmfLine() throws GateException {
+        Factory.deleteResource(execute(true, Factory.newFeatureMap()));
+        assertFalse(lines.isEmpty());
+
+        final JsonNode line = readTree(lines.get(0));
+        assertEquals("annie", line.get("Application").asText());
+        assertEquals(controller.getPRs().iterator().next().getName(), line.get("PR").asText());
+
+        final JsonNode aws = line.get("_aws");
+        assertTrue(aws.get("Timestamp").isNumber());
+        final JsonNode directive = aws.get("CloudWatchMetrics").get(0);
+        assertEquals("Test", directive.get("Namespace").asText());
+        assertEquals("Application", directive.get("Dimensions").get(0).get(0).asText());
+        assertEquals("PR", directive.get("Dimensions").get(0).get(1).asText());
+
+        final List<String> names = new ArrayList<>();
+        for (JsonNode metric : directive.get("Metrics")) {
+            names.add(metric.get("Name").asText());
+            assertTrue(metric.get("Unit").isTextual());
+            // Every metric has one value per Document.
+            assertTrue(line.get(metric.get("Name").asText()).isArray());
+            assertEquals(1, line.get(metric.get("Name").asText()).size());
+        }
+        assertEquals(Arrays.asList("Latency", "DocumentSize", "Annotations", "AllocatedBytes"), names);
+    }
+
+    private static JsonNode readTree(String line) {
+        try {
+            return Utils.objectMapper.readTree(line);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package co.zeroae.gate;
+
+import com.amazonaws.xray.AWSXRay;
+import gate.*;
+import gate.creole.AnalyserRunningStrategy;
+import gate.creole.ConditionalController;
+import gate.creole.RunningStrategy;
+import gate.util.GateException;
+import gate.util.persistence.PersistenceManager;
+import org.junit.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+import static com.github.stefanbirkner.systemlambda.SystemLambda.withEnvironmentVariable;
+import static org.junit.Assert.*;
+
+public class PipelinePrunerTest {
+    private static final String PROFILE = "Wanda Maximoff met Tony Stark in London on March 5, 2021. " +
+            "Tony Stark paid $100 to Stark Industries.";
+
+    private static CorpusController template = null;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        // Initializes GATE the same way the handlers do.
+        withEnvironmentVariable("GATE_APP_NAME", "annie")
+                .and("CACHE_KEY_SALT", UUID.randomUUID().toString())
+                .execute(App::new);
+        template = (CorpusController) PersistenceManager.loadObjectFromFile(new File(
+                Objects.requireNonNull(PipelinePrunerTest.class.getClassLoader().getResource(
+                        "annie/application.xgapp")).getFile()));
+        template.setCorpus(Factory.newCorpus("Pruner Test"));
+    }
+
+    @Before
+    public void setUp() {
+        AWSXRay.beginSegment("Test");
+    }
+
+    @After
+    public void tearDown() {
+        AWSXRay.endSegment();
+    }
+
+    private static Document execute(ControllerPool pool, PipelinePruner.Plan plan) throws GateException {
+        final Document rv = Factory.newDocument(PROFILE);
+        final CorpusController controller = pool.checkout();
+        final Runnable restore = plan.applyTo(controller);
+        try {
+            controller.getCorpus().add(rv);
+            controller.execute();
+        } finally {
+            restore.run();
+            pool.release(controller);
+        }
+        return rv;
+    }
+
+    @Test
+    public void testPlan() throws GateException {
+        final ControllerPool pool = new ControllerPool(template, 1);
+        final PipelinePruner pruner = new PipelinePruner(pool, PROFILE);
+        assertTrue(pruner.plan(null).isFull());
+
+        final PipelinePruner.Plan plan = pruner.plan(Collections.singletonList(":Token"));
+        assertFalse(plan.isFull());
+        assertNotEquals("digest", plan.cacheKey("digest"));
+        // Selectors of the same types share their plan.
+        assertSame(plan, pruner.plan(Arrays.asList("Token", " :Token")));
+
+        final Document doc = execute(pool, plan);
+        try {
+            assertFalse(doc.getAnnotations().get("Token").isEmpty());
+            // The POS tagger changes the Tokens, so it still runs, the NE transducer does not.
+            assertNotNull(doc.getAnnotations().get("Token").iterator().next().getFeatures().get("category"));
+            assertTrue(doc.getAnnotations().get("Person").isEmpty());
+        } finally {
+            Factory.deleteResource(doc);
+        }
+
+        // The controller runs in full again once the plan is restored.
+        final Document full = execute(pool, PipelinePruner.Plan.FULL);
+        try {
+            assertFalse(full.getAnnotations().get("Person").isEmpty());
+        } finally {
+            Factory.deleteResource(full);
+        }
+    }
+
+    @Test
+    public void testTrailingPR() throws GateException {
+        final ControllerPool pool = new ControllerPool(template, 1);
+        final PipelinePruner.Plan plan = new PipelinePruner(pool, PROFILE).plan(
+                Collections.singletonList(":Person"));
+        // The OrthoMatcher is the last PR, it still runs for the Person annotations it links.
+        assertTrue(plan.runs(template.getPRs().size() - 1));
+
+        final Document doc = execute(pool, plan);
+        try {
+            assertFalse(doc.getAnnotations().get("Person").isEmpty());
+            boolean matched = false;
+            for (Annotation person : doc.getAnnotations().get("Person"))
+                matched |= person.getFeatures().containsKey("matches");
+            assertTrue(matched);
+        } finally {
+            Factory.deleteResource(doc);
+        }
+    }
+
+    @Test
+    public void testRunNever() throws GateException {
+        final CorpusController controller = (CorpusController) Factory.duplicate(template);
+        controller.setCorpus(Factory.newCorpus("Pruner Run Never Test"));
+        final List<RunningStrategy> strategies = new ArrayList<>(
+                ((ConditionalController) controller).getRunningStrategies());
+        int tagger = -1;
+        for (int i = 0; i < strategies.size(); i++)
+            if (strategies.get(i).getPR().getClass().getSimpleName().equals("POSTagger"))
+                tagger = i;
+        assertTrue(tagger >= 0);
+        ((AnalyserRunningStrategy) strategies.get(tagger)).setRunMode(RunningStrategy.RUN_NEVER);
+
+        // The tagger never runs, so it changes no Tokens and the pipeline can stop at the tokeniser.
+        final ControllerPool pool = new ControllerPool(controller, 1);
+        final PipelinePruner.Plan plan = new PipelinePruner(pool, PROFILE).plan(Collections.singletonList(":Token"));
+        assertFalse(plan.runs(tagger));
+        assertFalse(plan.runs(tagger - 1));
+
+        final Document doc = execute(pool, plan);
+        try {
+            assertFalse(doc.getAnnotations().get("Token").isEmpty());
+            assertNull(doc.getAnnotations().get("Token").iterator().next().getFeatures().get("category"));
+        } finally {
+            Factory.deleteResource(doc);
+        }
+        assertEquals(RunningStrategy.RUN_NEVER, strategies.get(tagger).getRunMode());
+        Factory.deleteResource(controller);
+    }
+}
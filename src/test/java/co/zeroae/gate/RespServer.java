@@ -0,0 +1,209 @@
+package co.zeroae.gate;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stand-in for the remote cache server, with just enough of the Redis protocol for {@link RespCacheStore}:
+ * PING, AUTH, SELECT, GET, SET [EX seconds|PX milliseconds], DEL, EXISTS, DBSIZE, FLUSHALL and QUIT.
+ * The entries live in this JVM only. Run it for local testing with: RespServer [port]
+ */
+class RespServer implements Closeable {
+    private static final Logger logger = LogManager.getLogger(RespServer.class);
+
+    private final ServerSocket serverSocket;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool((runnable) -> {
+        final Thread rv = new Thread(runnable, "resp-server");
+        rv.setDaemon(true);
+        return rv;
+    });
+    private volatile long latencyMillis = 0;
+
+    private static class Entry {
+        final byte[] value;
+        final long expiresAt;
+
+        Entry(byte[] value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean expired() {
+            return expiresAt > 0 && System.currentTimeMillis() >= expiresAt;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final RespServer server = new RespServer(args.length > 0 ? Integer.parseInt(args[0]) : 6379);
+        System.out.println("Listening on redis://localhost:" + server.getPort());
+        server.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    /**
+     * Starts listening on the loopback interface.
+     *
+     * @param port the port, 0 for any free one
+     */
+    RespServer(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        executor.execute(this::accept);
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @param latencyMillis how long every command waits before it replies, to stand for a slow server.
+     */
+    void setLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                executor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed())
+                    logger.warn(e);
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket ignored = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+            for (List<byte[]> request = readRequest(in); request != null; request = readRequest(in)) {
+                if (latencyMillis > 0)
+                    Thread.sleep(latencyMillis);
+                final String command = new String(request.get(0), StandardCharsets.UTF_8).toUpperCase(Locale.ROOT);
+                if (!execute(command, request, out))
+                    break;
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (SocketException | EOFException e) {
+            // The client went away.
+        } catch (IOException e) {
+            logger.warn(e);
+        }
+    }
+
+    /**
+     * @return false once the client quits.
+     */
+    private boolean execute(String command, List<byte[]> request, OutputStream out) throws IOException {
+        switch (command) {
+            case "PING":
+            case "AUTH":
+            case "SELECT":
+                writeSimple(out, "+OK");
+                return true;
+            case "QUIT":
+                writeSimple(out, "+OK");
+                out.flush();
+                return false;
+            case "GET":
+                final Entry entry = entries.get(key(request, 1));
+                if (entry == null || entry.expired())
+                    writeSimple(out, "$-1");
+                else {
+                    writeSimple(out, "$" + entry.value.length);
+                    out.write(entry.value);
+                    writeSimple(out, "");
+                }
+                return true;
+            case "SET":
+                long expiresAt = 0;
+                if (request.size() >= 5) {
+                    final String unit = key(request, 3).toUpperCase(Locale.ROOT);
+                    final long amount = Long.parseLong(key(request, 4));
+                    expiresAt = System.currentTimeMillis() + (unit.equals("EX") ? amount * 1000 : amount);
+                }
+                entries.put(key(request, 1), new Entry(request.get(2), expiresAt));
+                writeSimple(out, "+OK");
+                return true;
+            case "DEL":
+            case "EXISTS":
+                int count = 0;
+                for (int i = 1; i < request.size(); i++) {
+                    final String key = key(request, i);
+                    final Entry existing = command.equals("DEL") ? entries.remove(key) : entries.get(key);
+                    if (existing != null && !existing.expired())
+                        count++;
+                }
+                writeSimple(out, ":" + count);
+                return true;
+            case "DBSIZE":
+                writeSimple(out, ":" + entries.size());
+                return true;
+            case "FLUSHALL":
+                entries.clear();
+                writeSimple(out, "+OK");
+                return true;
+            default:
+                writeSimple(out, "-ERR unknown command '" + command + "'");
+                return true;
+        }
+    }
+
+    private static String key(List<byte[]> request, int index) {
+        return new String(request.get(index), StandardCharsets.UTF_8);
+    }
+
+    private static void writeSimple(OutputStream out, String line) throws IOException {
+        out.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the request as an array of bulk strings, or null at the end of the stream.
+     */
+    private static List<byte[]> readRequest(DataInputStream in) throws IOException {
+        final int type = in.read();
+        if (type < 0)
+            return null;
+        if (type != '*')
+            throw new IOException("Expected a request array, got " + type + ".");
+        final int count = Integer.parseInt(RespCacheStore.readLine(in));
+        final List<byte[]> rv = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (in.read() != '$')
+                throw new IOException("Expected a bulk string.");
+            final byte[] argument = new byte[Integer.parseInt(RespCacheStore.readLine(in))];
+            in.readFully(argument);
+            RespCacheStore.readLine(in);
+            rv.add(argument);
+        }
+        return rv;
+    }
+}
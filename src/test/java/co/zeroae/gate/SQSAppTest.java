@@ -0,0 +1,115 @@
+package co.zeroae.gate;
+
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.util.Base64;
+import com.amazonaws.xray.AWSXRay;
+import gate.Document;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static com.github.stefanbirkner.systemlambda.SystemLambda.withEnvironmentVariable;
+import static org.junit.Assert.*;
+
+public class SQSAppTest {
+
+    @ClassRule
+    public static final TemporaryFolder sinkFolder = new TemporaryFolder();
+
+    private static SQSApp app = null;
+    private static LocalResultSink sink = null;
+    private static final TestContext context = new TestContext();
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        sink = new LocalResultSink(sinkFolder.getRoot().toPath());
+        app = withEnvironmentVariable("GATE_APP_NAME", "annie")
+                .execute(() -> new SQSApp(sink));
+    }
+
+    @Before
+    public void setUp() {
+        AWSXRay.beginSegment("Test");
+    }
+
+    @After
+    public void tearDown() {
+        AWSXRay.endSegment();
+    }
+
+    private static SQSEvent.SQSMessage message(String messageId, String body, Map<String, String> attributes) {
+        final SQSEvent.SQSMessage rv = new SQSEvent.SQSMessage();
+        rv.setMessageId(messageId);
+        rv.setBody(body);
+        final Map<String, SQSEvent.MessageAttribute> messageAttributes = new HashMap<>();
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            final SQSEvent.MessageAttribute messageAttribute = new SQSEvent.MessageAttribute();
+            messageAttribute.setDataType("String");
+            messageAttribute.setStringValue(attribute.getValue());
+            messageAttributes.put(attribute.getKey(), messageAttribute);
+        }
+        rv.setMessageAttributes(messageAttributes);
+        return rv;
+    }
+
+    @Test
+    public void testPartialBatchFailure() throws Exception {
+        final String text = "This is an SQS message about Wanda Vision. " + new Random().nextInt();
+        final Map<String, String> xml = new HashMap<>();
+        xml.put("Accept", "application/gate+xml");
+        final Map<String, String> unsupported = new HashMap<>(xml);
+        unsupported.put("Content-Type", "text/x-unknown");
+        final Map<String, String> badAnnotationId = new HashMap<>(xml);
+        badAnnotationId.put("nextAnnotationId", "one");
+
+        final SQSEvent event = new SQSEvent();
+        event.setRecords(Arrays.asList(
+                message("good", text, xml),
+                message("unsupported", text, unsupported),
+                message("bad-id", text, badAnnotationId),
+                message("json", text, Collections.singletonMap("Accept", "application/json"))
+        ));
+
+        final SQSBatchResponse response = app.handleRequest(event, context);
+        final Set<String> failures = new HashSet<>();
+        for (SQSBatchResponse.BatchItemFailure failure : response.getBatchItemFailures())
+            failures.add(failure.getItemIdentifier());
+        assertEquals(new HashSet<>(Arrays.asList("unsupported", "bad-id")), failures);
+
+        final Path xmlResult = sink.getDirectory().resolve("good.xml");
+        assertTrue(Files.exists(xmlResult));
+        final Document doc = Utils.xmlToDocument(new StringReader(
+                new String(Files.readAllBytes(xmlResult), StandardCharsets.UTF_8)));
+        assertEquals(text, doc.getContent().toString());
+        assertTrue(Files.exists(sink.getDirectory().resolve("json.json")));
+    }
+
+    @Test
+    public void testCorruptMessageDoesNotFailItsGroup() throws Exception {
+        final String text = "This SQS message shares a batch with a corrupt one. " + new Random().nextInt();
+        final Map<String, String> xml = new HashMap<>();
+        xml.put("Accept", "application/gate+xml");
+        final Map<String, String> corrupt = new HashMap<>(xml);
+        corrupt.put("Content-Type", "application/fastinfoset");
+        corrupt.put("isBase64Encoded", "true");
+
+        final SQSEvent event = new SQSEvent();
+        event.setRecords(Arrays.asList(
+                message("before", text, xml),
+                message("corrupt", Base64.encodeAsString(
+                        ("Not FastInfoset " + new Random().nextInt()).getBytes(StandardCharsets.UTF_8)), corrupt),
+                message("after", text + " Again.", xml)
+        ));
+
+        final SQSBatchResponse response = app.handleRequest(event, context);
+        assertEquals(1, response.getBatchItemFailures().size());
+        assertEquals("corrupt", response.getBatchItemFailures().get(0).getItemIdentifier());
+        assertTrue(Files.exists(sink.getDirectory().resolve("before.xml")));
+        assertTrue(Files.exists(sink.getDirectory().resolve("after.xml")));
+    }
+}
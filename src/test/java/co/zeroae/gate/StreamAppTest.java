@@ -0,0 +1,119 @@
+package co.zeroae.gate;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.amazonaws.util.Base64;
+import com.amazonaws.util.IOUtils;
+import com.amazonaws.xray.AWSXRay;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.sun.xml.fastinfoset.stax.StAXDocumentParser;
+import org.junit.*;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+import static com.github.stefanbirkner.systemlambda.SystemLambda.withEnvironmentVariable;
+import static org.junit.Assert.*;
+
+public class StreamAppTest {
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        app = withEnvironmentVariable("GATE_APP_NAME", "annie")
+                .and("CACHE_KEY_SALT", UUID.randomUUID().toString())
+                .execute(StreamApp::new);
+        bufferedApp = new App();
+    }
+
+    private static StreamApp app = null;
+    private static App bufferedApp = null;
+    private static final TestContext context = new TestContext();
+
+    private Map<String, String> headers = null;
+    private APIGatewayProxyRequestEvent input = null;
+
+    @Before
+    public void setUp() {
+        AWSXRay.beginSegment("Test");
+        headers = new HashMap<>();
+        headers.put("Content-Type", "text/plain");
+        headers.put("Accept", "application/gate+xml");
+        input = new APIGatewayProxyRequestEvent()
+                .withPath("/test")
+                .withHttpMethod("POST")
+                .withHeaders(headers)
+                .withBody("A \"quoted\" message\\ about\tWanda Vision.\n" + new Random().nextInt())
+                .withIsBase64Encoded(false);
+    }
+
+    @After
+    public void tearDown() {
+        AWSXRay.endSegment();
+    }
+
+    private Map<String, Object> stream(APIGatewayProxyRequestEvent request) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        app.handleRequest(new ByteArrayInputStream(Utils.objectMapper.writeValueAsBytes(request)), out, context);
+        return Utils.objectMapper.readValue(out.toByteArray(), new TypeReference<Map<String, Object>>() { });
+    }
+
+    @Test
+    public void testStreamedBodyMatchesBuffered() throws IOException {
+        final Map<String, Object> streamed = stream(input);
+        assertEquals(200, streamed.get("statusCode"));
+        assertEquals(false, streamed.get("isBase64Encoded"));
+        @SuppressWarnings("unchecked") final Map<String, String> streamedHeaders =
+                (Map<String, String>) streamed.get("headers");
+        assertEquals("application/gate+xml", streamedHeaders.get("Content-Type"));
+        assertEquals("MISS", streamedHeaders.get("x-zae-gate-cache"));
+
+        // The quotes, backslash, tab and newline of the body must survive the JSON escaping.
+        final APIGatewayProxyResponseEvent buffered = bufferedApp.handleExecute(input, context);
+        assertEquals(buffered.getBody(), streamed.get("body"));
+    }
+
+    @Test
+    public void testStreamedFastInfoset() throws Exception {
+        headers.put("Accept", "application/fastinfoset");
+        final Map<String, Object> streamed = stream(input);
+        assertEquals(200, streamed.get("statusCode"));
+        assertEquals(true, streamed.get("isBase64Encoded"));
+
+        final XMLStreamReader xsr = new StAXDocumentParser(new ByteArrayInputStream(
+                Base64.decode((String) streamed.get("body"))));
+        xsr.nextTag();
+        xsr.require(XMLStreamConstants.START_ELEMENT, null, "GateDocument");
+    }
+
+    @Test
+    public void testStreamedGzip() throws IOException {
+        final APIGatewayProxyResponseEvent buffered = bufferedApp.handleExecute(input, context);
+
+        headers.put("Accept-Encoding", "gzip");
+        final Map<String, Object> streamed = stream(input);
+        assertEquals(200, streamed.get("statusCode"));
+        assertEquals(true, streamed.get("isBase64Encoded"));
+        @SuppressWarnings("unchecked") final Map<String, String> streamedHeaders =
+                (Map<String, String>) streamed.get("headers");
+        assertEquals("gzip", streamedHeaders.get("Content-Encoding"));
+        assertEquals(buffered.getBody(), IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(
+                Base64.decode((String) streamed.get("body"))))));
+    }
+
+    @Test
+    public void testErrorAndMetadata() throws IOException {
+        headers.put("Content-Type", "text/x-unknown");
+        final Map<String, Object> error = stream(input);
+        assertEquals(400, error.get("statusCode"));
+        assertTrue(((String) error.get("body")).contains("Unsupported MIME type"));
+
+        final Map<String, Object> metadata = stream(input.withPath("/test/metadata").withHttpMethod("GET"));
+        assertEquals(200, metadata.get("statusCode"));
+        assertTrue(((String) metadata.get("body")).contains("\"name\":\"test\""));
+    }
+}